@@ -4,4 +4,25 @@ public final class Exceptions {
     public static final String NO_SUCH_VERSION = "Such version does not exist";
     public static final String NO_SUCH_ELEMENT = "Such element does not exist";
     public static final String LIST_INDEX_OUT_OF_BOUNDS = "List index out of bounds";
+    public static final String NO_ELEMENT_TO_MODIFY = "No element was returned by the iterator since the last modification";
+    public static final String OLD_VERSION_IS_READ_ONLY = "Only the last version can be modified";
+    public static final String CORRUPTED_SNAPSHOT = "Snapshot is corrupted";
+    public static final String WRONG_SNAPSHOT_TYPE = "Snapshot contains another type of structure";
+    public static final String UNSUPPORTED_SNAPSHOT_FORMAT = "Unsupported snapshot format version";
+    public static final String CORRUPTED_LOG = "Write-ahead log is corrupted";
+    public static final String CORRUPTED_STORAGE = "Storage file is corrupted";
+    public static final String WRONG_ELEMENT_WIDTH = "Storage file contains elements of another width";
+    public static final String BROKEN_CHECKPOINT_CHAIN = "Checkpoint does not continue the previous one";
+    public static final String UNSORTED_KEYS = "Keys are not in ascending order";
+    public static final String SPILLED_VERSIONS = "Versions are spilled to disk and cannot be changed";
+    public static final String NO_TRANSACTION = "Structure attached to a version clock is modified outside of its transaction";
+    public static final String LOGGED_CLOCK_STRUCTURE = "Structure with a write-ahead log cannot be attached to a version clock";
+    public static final String BRANCHED_HISTORY = "Operation needs a linear history of versions without branches";
+    public static final String FORKED_HISTORY = "Operation needs the whole history of the structure, not of a fork";
+    public static final String NOT_AN_ANCESTOR = "Base version is not an ancestor of the merged versions";
+    public static final String LEASED_VERSIONS = "Leased versions cannot be discarded";
+    public static final String BATCH_SIZE_MISMATCH = "Numbers of indices and values differ";
+    public static final String SHORT_OUTPUT_ARRAY = "Output array is shorter than the batch";
+    public static final String CLOCK_ROLLBACK = "Structure attached to a version clock is rolled back only by aborting its transaction";
+    public static final String NON_POSITIVE_INTERVAL = "Number of versions must be positive";
 }
@@ -0,0 +1,67 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Writes and reads non-null values which always take the same number of bytes,
+ * directly at absolute positions of a buffer, so stored values are accessed without copying.
+ *
+ * @param <T> type of values
+ */
+public interface FixedWidthCodec<T> {
+
+    int width();
+
+    void write(ByteBuffer buffer, int position, T value);
+
+    T read(ByteBuffer buffer, int position);
+
+    FixedWidthCodec<Integer> INTEGER = new FixedWidthCodec<Integer>() {
+        @Override
+        public int width() {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, int position, Integer value) {
+            buffer.putInt(position, value);
+        }
+
+        @Override
+        public Integer read(ByteBuffer buffer, int position) {
+            return buffer.getInt(position);
+        }
+    };
+
+    FixedWidthCodec<Long> LONG = new FixedWidthCodec<Long>() {
+        @Override
+        public int width() {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, int position, Long value) {
+            buffer.putLong(position, value);
+        }
+
+        @Override
+        public Long read(ByteBuffer buffer, int position) {
+            return buffer.getLong(position);
+        }
+    };
+
+    FixedWidthCodec<Double> DOUBLE = new FixedWidthCodec<Double>() {
+        @Override
+        public int width() {
+            return Double.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, int position, Double value) {
+            buffer.putDouble(position, value);
+        }
+
+        @Override
+        public Double read(ByteBuffer buffer, int position) {
+            return buffer.getDouble(position);
+        }
+    };
+}
@@ -0,0 +1,56 @@
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Operations on single histories, i.e. maps from versions to values read with floorEntry.
+ */
+final class Histories {
+
+    private Histories() {
+    }
+
+    /**
+     * Folds the entries with versions in the specified range into one entry at the last version of the range,
+     * holding the last value of the range. Reads of versions in the range then return the value before the range.
+     *
+     * @return number of removed entries
+     */
+    static <T> int squash(TreeMap<Integer, T> history, int fromVersion, int toVersion) {
+        NavigableMap<Integer, T> range = history.subMap(fromVersion, true, toVersion, true);
+        if (range.isEmpty())
+            return 0;
+        int removed = range.size() - 1;
+        T last = range.lastEntry().getValue();
+        range.clear();
+        history.put(toVersion, last);
+        return removed;
+    }
+
+    /**
+     * Removes the entries older than the value visible in the specified version.
+     * Reads of this version and newer ones return the same values as before.
+     *
+     * @return number of removed entries
+     */
+    static <T> int prune(TreeMap<Integer, T> history, int version) {
+        Integer visibleVersion = history.floorKey(version);
+        if (null == visibleVersion)
+            return 0;
+        NavigableMap<Integer, T> older = history.headMap(visibleVersion, false);
+        int removed = older.size();
+        older.clear();
+        return removed;
+    }
+
+    /**
+     * Removes the entries newer than the specified version.
+     *
+     * @return number of removed entries
+     */
+    static <T> int truncate(TreeMap<Integer, T> history, int version) {
+        NavigableMap<Integer, T> newer = history.tailMap(version, false);
+        int removed = newer.size();
+        newer.clear();
+        return removed;
+    }
+}
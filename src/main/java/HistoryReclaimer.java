@@ -0,0 +1,81 @@
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+
+/**
+ * Background thread which periodically reclaims the history of registered structures,
+ * e.g. {@code reclaimer.register(map::reclaim)}.
+ */
+public class HistoryReclaimer implements Closeable {
+    private final List<IntSupplier> structures = new CopyOnWriteArrayList<>();
+    private final Consumer<RuntimeException> errorHandler;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "history-reclaimer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Starts reclaiming with the specified period. A failure of a structure is passed
+     * to the uncaught exception handler of the reclaimer thread.
+     *
+     * @param period period between reclamations
+     * @param unit   unit of the period
+     */
+    public HistoryReclaimer(long period, TimeUnit unit) {
+        this(period, unit, e -> {
+            Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        });
+    }
+
+    /**
+     * Starts reclaiming with the specified period.
+     *
+     * @param period       period between reclamations
+     * @param unit         unit of the period
+     * @param errorHandler receives the exception of a structure whose reclamation failed
+     */
+    public HistoryReclaimer(long period, TimeUnit unit, Consumer<RuntimeException> errorHandler) {
+        this.errorHandler = errorHandler;
+        executor.scheduleWithFixedDelay(this::reclaim, period, period, unit);
+    }
+
+    /**
+     * Adds a structure to reclaim.
+     *
+     * @param reclaim reclaim method of the structure
+     */
+    public void register(IntSupplier reclaim) {
+        structures.add(reclaim);
+    }
+
+    /**
+     * Stops reclaiming and waits for the running reclamation.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reclaim() {
+        for (IntSupplier structure : structures) {
+            try {
+                structure.getAsInt();
+            } catch (RuntimeException e) {
+                // one failing structure must not stop the reclamation of the others
+                errorHandler.accept(e);
+            }
+        }
+    }
+}
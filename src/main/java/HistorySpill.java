@@ -0,0 +1,245 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Spill file for old parts of histories of persistent structures.
+ * The spilled parts of many histories are packed into one page in the binary snapshot format and read back on demand,
+ * the most recently used pages are kept decoded in memory.
+ * The file is a scratch file: it is deleted when the spill is closed, so it must stay open while the structures are used.
+ */
+public class HistorySpill implements Closeable {
+
+    /**
+     * Place of the spilled part of one history: a page and the index of the part in the page.
+     */
+    private static class Part {
+        private final long position;
+        private final int length;
+        private final int index;
+
+        Part(long position, int length, int index) {
+            this.position = position;
+            this.length = length;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Old part of one history, split into parts of consecutive versions stored in pages.
+     *
+     * @param <T> type of values of the history
+     */
+    class ColdHistory<T> {
+        private final ValueCodec<T> codec;
+        // first version of every part -> place of the part
+        private final TreeMap<Integer, Part> parts = new TreeMap<>();
+
+        ColdHistory(ValueCodec<T> codec) {
+            this.codec = codec;
+        }
+
+        /**
+         * Returns the spilled entry with the greatest version less than or equal to the specified one, or null if there is none.
+         */
+        Map.Entry<Integer, T> floorEntry(int version) {
+            Map.Entry<Integer, Part> part = parts.floorEntry(version);
+            if (null == part)
+                return null;
+            return read(part.getValue()).floorEntry(version);
+        }
+
+        /**
+         * Returns all spilled entries.
+         */
+        TreeMap<Integer, T> entries() {
+            return entries(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Returns the spilled entries of the parts which may hold versions in the specified range,
+         * the result may also contain entries outside of the range. Other parts are not read.
+         */
+        TreeMap<Integer, T> entries(int fromVersion, int toVersion) {
+            TreeMap<Integer, T> entries = new TreeMap<>();
+            if (fromVersion > toVersion)
+                return entries;
+            Integer first = parts.floorKey(fromVersion);
+            for (Part part : parts.subMap(null == first ? fromVersion : first, true, toVersion, true).values()) {
+                entries.putAll(read(part));
+            }
+            return entries;
+        }
+
+        private TreeMap<Integer, T> read(Part part) {
+            return HistorySpill.this.read(part.position, part.length, codec).get(part.index);
+        }
+    }
+
+    /**
+     * Collects the old parts of several histories and writes them as one page.
+     * A part stays in its history until the page is written, so a failed write loses nothing.
+     *
+     * @param <T> type of values of the histories
+     */
+    class PageWriter<T> {
+        private final ValueCodec<T> codec;
+        private final List<ColdHistory<T>> histories = new ArrayList<>();
+        private final List<NavigableMap<Integer, T>> entries = new ArrayList<>();
+        private int size = 0;
+
+        PageWriter(ValueCodec<T> codec) {
+            this.codec = codec;
+        }
+
+        /**
+         * Adds the specified entries to the page, they are removed from the map when the page is written.
+         * They must be newer than all entries spilled to the history before, and the map must not be changed until then.
+         */
+        void add(ColdHistory<T> history, NavigableMap<Integer, T> part) throws IOException {
+            histories.add(history);
+            entries.add(part);
+            size += part.size();
+            if (size >= pageEntries) {
+                flush();
+            }
+        }
+
+        /**
+         * Writes the collected parts, if there are any.
+         */
+        void flush() throws IOException {
+            if (entries.isEmpty())
+                return;
+            long[] page = write(entries, codec);
+            for (int i = 0; i < entries.size(); i++) {
+                NavigableMap<Integer, T> part = entries.get(i);
+                histories.get(i).parts.put(part.firstKey(), new Part(page[0], (int) page[1], i));
+                part.clear();
+            }
+            histories.clear();
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    public static final int DEFAULT_CACHED_PAGES = 1024;
+    public static final int DEFAULT_PAGE_ENTRIES = 4096;
+
+    private final FileChannel channel;
+    private final int pageEntries;
+    private final LinkedHashMap<Long, List<?>> cache;
+    private final ByteArrayOutputStream page = new ByteArrayOutputStream();
+    private final SnapshotOutput pageOut = new SnapshotOutput(Channels.newChannel(page));
+    private long end = 0;
+
+    /**
+     * Creates a spill in the specified file with the default number of cached pages.
+     *
+     * @param path spill file, overwritten if it exists
+     * @throws IOException if an I/O error occurs
+     */
+    public HistorySpill(Path path) throws IOException {
+        this(path, DEFAULT_CACHED_PAGES);
+    }
+
+    /**
+     * Creates a spill in the specified file with the default size of pages.
+     *
+     * @param path        spill file, overwritten if it exists
+     * @param cachedPages number of decoded pages kept in memory
+     * @throws IOException if an I/O error occurs
+     */
+    public HistorySpill(Path path, int cachedPages) throws IOException {
+        this(path, cachedPages, DEFAULT_PAGE_ENTRIES);
+    }
+
+    /**
+     * Creates a spill in the specified file.
+     *
+     * @param path        spill file, overwritten if it exists
+     * @param cachedPages number of decoded pages kept in memory
+     * @param pageEntries number of spilled entries after which a page is written
+     * @throws IOException if an I/O error occurs
+     */
+    public HistorySpill(Path path, int cachedPages, int pageEntries) throws IOException {
+        this.pageEntries = pageEntries;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        cache = new LinkedHashMap<Long, List<?>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, List<?>> eldest) {
+                return size() > cachedPages;
+            }
+        };
+    }
+
+    /**
+     * Closes and deletes the spill file.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        cache.clear();
+        channel.close();
+    }
+
+    /**
+     * Appends the parts of histories as a page and returns the position and the length of the page.
+     */
+    private synchronized <T> long[] write(List<NavigableMap<Integer, T>> parts, ValueCodec<T> codec) throws IOException {
+        page.reset();
+        pageOut.writeVarInt(parts.size());
+        for (NavigableMap<Integer, T> part : parts) {
+            pageOut.writeVersionedValues(part, codec);
+        }
+        pageOut.flush();
+        long position = end;
+        ByteBuffer buffer = ByteBuffer.wrap(page.toByteArray());
+        while (buffer.hasRemaining()) {
+            end += channel.write(buffer, end);
+        }
+        return new long[]{position, page.size()};
+    }
+
+    /**
+     * Returns the decoded parts of the page at the specified position.
+     */
+    @SuppressWarnings("unchecked") // a page is read only by the histories written to it, with the codec of their values
+    private synchronized <T> List<TreeMap<Integer, T>> read(long position, int length, ValueCodec<T> codec) {
+        List<TreeMap<Integer, T>> page = (List<TreeMap<Integer, T>>) cache.get(position);
+        if (null != page)
+            return page;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new IOException(Exceptions.CORRUPTED_STORAGE);
+            }
+            buffer.flip();
+            SnapshotInput in = new SnapshotInput(buffer);
+            int parts = in.readCount();
+            page = new ArrayList<>(parts);
+            for (int i = 0; i < parts; i++) {
+                page.add(in.readVersionedValues(codec));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        cache.put(position, page);
+        return page;
+    }
+}
@@ -0,0 +1,259 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Incremental checkpoints of a persistent map in a directory.
+ * The first checkpoint file (the base) contains all versions up to some version, every next one (a delta) contains
+ * only the versions created since the previous checkpoint and only the keys changed in them.
+ * When the chain gets longer than the specified limit, it is compacted into a new base in a background thread.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public class MapCheckpointChain<K, V> implements Closeable {
+
+    private static class Checkpoint {
+        private final int firstVersion;
+        private final int lastVersion;
+        private final Path path;
+
+        Checkpoint(int firstVersion, int lastVersion, Path path) {
+            this.firstVersion = firstVersion;
+            this.lastVersion = lastVersion;
+            this.path = path;
+        }
+    }
+
+    public static final int DEFAULT_MAX_CHAIN_LENGTH = 16;
+    private static final Pattern FILE_NAME = Pattern.compile("checkpoint-(\\d+)-(\\d+)\\.pds");
+
+    private final Path directory;
+    private final ValueCodec<K> keyCodec;
+    private final ValueCodec<V> valueCodec;
+    private final int maxChainLength;
+    private final List<Checkpoint> checkpoints = new ArrayList<>();
+    private final Object compactionLock = new Object();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "checkpoint-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean isCompactionScheduled = false;
+    private IOException compactionFailure = null;
+
+    /**
+     * Opens the chain of checkpoints in the specified directory with the default limit of its length.
+     *
+     * @param directory  directory of the checkpoint files
+     * @param keyCodec   codec of the keys
+     * @param valueCodec codec of the values
+     * @throws IOException if an I/O error occurs
+     */
+    public MapCheckpointChain(Path directory, ValueCodec<K> keyCodec, ValueCodec<V> valueCodec) throws IOException {
+        this(directory, keyCodec, valueCodec, DEFAULT_MAX_CHAIN_LENGTH);
+    }
+
+    /**
+     * Opens the chain of checkpoints in the specified directory. Files left by an interrupted checkpoint are deleted.
+     *
+     * @param directory      directory of the checkpoint files
+     * @param keyCodec       codec of the keys
+     * @param valueCodec     codec of the values
+     * @param maxChainLength number of files after which the chain is compacted
+     * @throws IOException if an I/O error occurs
+     */
+    public MapCheckpointChain(Path directory, ValueCodec<K> keyCodec, ValueCodec<V> valueCodec,
+                              int maxChainLength) throws IOException {
+        this.directory = directory;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.maxChainLength = maxChainLength;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path path : files) {
+                Matcher matcher = FILE_NAME.matcher(path.getFileName().toString());
+                if (matcher.matches()) {
+                    checkpoints.add(new Checkpoint(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), path));
+                } else if (path.getFileName().toString().endsWith(".tmp")) {
+                    Files.delete(path);
+                }
+            }
+        }
+        checkpoints.sort((a, b) -> a.firstVersion != b.firstVersion
+                ? Integer.compare(a.firstVersion, b.firstVersion)
+                : Integer.compare(b.lastVersion, a.lastVersion));
+        // a compaction interrupted after writing its base leaves the files it merged
+        for (int i = 1; i < checkpoints.size(); i++) {
+            if (checkpoints.get(i).lastVersion <= checkpoints.get(i - 1).lastVersion) {
+                Files.delete(checkpoints.remove(i).path);
+                i--;
+            }
+        }
+    }
+
+    /**
+     * Returns the last version stored in the chain, or -1 if the chain is empty.
+     *
+     * @return the last version stored in the chain
+     */
+    public synchronized int getLastVersion() {
+        return checkpoints.isEmpty() ? -1 : checkpoints.get(checkpoints.size() - 1).lastVersion;
+    }
+
+    /**
+     * Writes the versions of the map created since the previous checkpoint to a new file of the chain.
+     * Nothing is written if there are no such versions. The current version of the map is read once,
+     * and versions created by other threads while the file is written go to the next checkpoint.
+     *
+     * @param map map whose previous versions are already in the chain
+     * @throws IOException if an I/O error occurs or the last background compaction failed
+     */
+    public synchronized void checkpoint(PersistentMap<K, V> map) throws IOException {
+        rethrowCompactionFailure();
+        int afterVersion = getLastVersion();
+        int lastVersion = map.getCurrentVersion();
+        if (lastVersion < afterVersion)
+            throw new IllegalArgumentException(Exceptions.BROKEN_CHECKPOINT_CHAIN);
+        if (lastVersion == afterVersion)
+            return;
+
+        Path path = write(afterVersion + 1, lastVersion,
+                channel -> map.writeCheckpoint(channel, afterVersion, lastVersion, keyCodec, valueCodec));
+        checkpoints.add(new Checkpoint(afterVersion + 1, lastVersion, path));
+        if (checkpoints.size() > maxChainLength && !isCompactionScheduled) {
+            isCompactionScheduled = true;
+            compactor.execute(this::compactInBackground);
+        }
+    }
+
+    /**
+     * Reads the whole chain.
+     *
+     * @return the map with all versions stored in the chain
+     * @throws IOException if an I/O error occurs or the chain is corrupted
+     */
+    public PersistentMap<K, V> load() throws IOException {
+        return load(getLastVersion());
+    }
+
+    /**
+     * Reads versions from zero to the specified one. Files with only newer versions are not read at all.
+     *
+     * @param lastVersion last version to read
+     * @return the map whose current version is the specified one
+     * @throws IOException if an I/O error occurs or the chain is corrupted
+     */
+    public synchronized PersistentMap<K, V> load(int lastVersion) throws IOException {
+        if (lastVersion < 0 || lastVersion > getLastVersion())
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        return read(checkpoints, lastVersion);
+    }
+
+    /**
+     * Merges all files of the chain into one base file.
+     *
+     * @throws IOException if an I/O error occurs or the chain is corrupted
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            List<Checkpoint> merged;
+            synchronized (this) {
+                merged = new ArrayList<>(checkpoints);
+            }
+            if (merged.size() <= 1)
+                return;
+
+            int lastVersion = merged.get(merged.size() - 1).lastVersion;
+            PersistentMap<K, V> map = read(merged, lastVersion);
+            Path path = write(0, lastVersion, channel -> map.writeCheckpoint(channel, -1, lastVersion, keyCodec, valueCodec));
+            synchronized (this) {
+                checkpoints.removeAll(merged);
+                checkpoints.add(0, new Checkpoint(0, lastVersion, path));
+            }
+            for (Checkpoint checkpoint : merged) {
+                Files.delete(checkpoint.path);
+            }
+        }
+    }
+
+    /**
+     * Waits for the background compaction and stops its thread.
+     *
+     * @throws IOException if the background compaction failed
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rethrowCompactionFailure();
+    }
+
+    private interface CheckpointWriter {
+        void write(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Writes a checkpoint file under a temporary name and renames it, so the chain never contains a partial file.
+     */
+    private Path write(int firstVersion, int lastVersion, CheckpointWriter writer) throws IOException {
+        Path path = directory.resolve("checkpoint-" + firstVersion + "-" + lastVersion + ".pds");
+        Path tmp = directory.resolve(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writer.write(channel);
+            channel.force(true);
+        }
+        return Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private PersistentMap<K, V> read(List<Checkpoint> chain, int lastVersion) throws IOException {
+        PersistentMap<K, V> map = new PersistentMap<>();
+        for (Checkpoint checkpoint : chain) {
+            if (checkpoint.firstVersion > lastVersion)
+                break;
+            try (FileChannel channel = FileChannel.open(checkpoint.path, StandardOpenOption.READ)) {
+                map.readCheckpoint(channel, lastVersion, keyCodec, valueCodec);
+            }
+        }
+        return map;
+    }
+
+    private void compactInBackground() {
+        synchronized (this) {
+            isCompactionScheduled = false;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            synchronized (this) {
+                compactionFailure = e;
+            }
+        }
+    }
+
+    private synchronized void rethrowCompactionFailure() throws IOException {
+        if (null != compactionFailure) {
+            IOException failure = compactionFailure;
+            compactionFailure = null;
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * Persistent array of fixed-width elements which keeps its whole history in a memory-mapped file instead of the heap.
+ * Every slot has its own chain of blocks of (version, value) entries, each block twice as large as the previous one
+ * until a block fills a whole segment of the file, so an element is found by skipping a logarithmic number of blocks
+ * and a binary search inside one of them.
+ * Elements are read directly from the mapped file, and the same file can be reopened to get all versions back.
+ *
+ * @param <E> type of elements
+ */
+public class MappedPersistentArray<E> implements Closeable {
+    private static final long MAGIC = 0x5044534D41525259L;
+    private static final int SEGMENT_SHIFT = 26;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int WIDTH_OFFSET = 8;
+    private static final int VERSION_OFFSET = 12;
+    private static final int END_OFFSET = 16;
+    private static final int LENGTHS_OFFSET = 24;
+    private static final int DIRECTORY_OFFSET = 32;
+
+    private static final int BLOCK_HEADER_SIZE = 16;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int MIN_BLOCK_ENTRIES = 8;
+    private static final int LENGTH_ENTRY_SIZE = 2 * Integer.BYTES;
+
+    private static final int DIRECTORY_BLOCK_SLOTS = 1024;
+    private static final int DIRECTORY_BLOCK_SIZE = Long.BYTES + DIRECTORY_BLOCK_SLOTS * Long.BYTES;
+
+    private final FileChannel channel;
+    private final FixedWidthCodec<E> codec;
+    private final int entrySize;
+    private final ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+    private final ArrayList<Long> directory = new ArrayList<>();
+    private int currentVersion = 0;
+    private long end = HEADER_SIZE;
+
+    /**
+     * Opens the array stored in the specified file, or creates an empty array with the specified capacity if the file is empty.
+     *
+     * @param path     file of the array
+     * @param capacity initial capacity, used only when the array is created
+     * @param codec    codec of the elements
+     * @throws IOException if an I/O error occurs or the file contains an array of another element type
+     */
+    public MappedPersistentArray(Path path, int capacity, FixedWidthCodec<E> codec) throws IOException {
+        this.codec = codec;
+        entrySize = Integer.BYTES + codec.width();
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean isNew = channel.size() == 0;
+        mapSegment();
+        ByteBuffer header = segments.get(0);
+        if (isNew) {
+            header.putLong(0, MAGIC);
+            header.putInt(WIDTH_OFFSET, codec.width());
+            header.putLong(END_OFFSET, end);
+            putInt(appendEntry(LENGTHS_OFFSET, LENGTH_ENTRY_SIZE, 0), capacity);
+            return;
+        }
+
+        if (header.getLong(0) != MAGIC)
+            throw new IOException(Exceptions.CORRUPTED_STORAGE);
+        if (header.getInt(WIDTH_OFFSET) != codec.width())
+            throw new IOException(Exceptions.WRONG_ELEMENT_WIDTH);
+        currentVersion = header.getInt(VERSION_OFFSET);
+        end = header.getLong(END_OFFSET);
+        while (segments.size() <= segmentIndex(end - 1)) {
+            mapSegment();
+        }
+        for (long block = header.getLong(DIRECTORY_OFFSET); block != 0; block = getLong(block)) {
+            directory.add(block);
+        }
+    }
+
+    /**
+     * Returns the element at the specified position in the specified version of the array.
+     *
+     * @param index   index of the element to return
+     * @param version version of array to get element
+     * @return the element at the specified position in the specified version of the array, or null if it was never set
+     */
+    public E get(int index, int version) {
+        if (version < 0 || version > currentVersion)
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        if (index < 0 || getLength(version) <= index)
+            throw new ArrayIndexOutOfBoundsException(Exceptions.ARRAY_INDEX_OUT_OF_BOUNDS);
+        long headPointer = headPointer(index, false);
+        long entry = (0 == headPointer) ? 0 : findEntry(getLong(headPointer), entrySize, version);
+        if (0 == entry)
+            return null;
+        return codec.read(segments.get(segmentIndex(entry)), segmentOffset(entry));
+    }
+
+    /**
+     * Returns the element at the specified position in the current version of the array.
+     *
+     * @param index index of the element to return
+     * @return the element at the specified position in the current version of the array
+     */
+    public E get(int index) {
+        return get(index, currentVersion);
+    }
+
+    /**
+     * Replaces the element at the specified position in the last version of this array with the specified element.
+     *
+     * @param index index of the element to replace
+     * @param obj   element to be stored at the specified position, not null
+     * @return number of current version of the array
+     */
+    public int set(int index, E obj) {
+        Objects.requireNonNull(obj);
+        if (index < 0 || getLength() <= index)
+            throw new ArrayIndexOutOfBoundsException(Exceptions.ARRAY_INDEX_OUT_OF_BOUNDS);
+        currentVersion++;
+        putElement(index, obj);
+        commitVersion();
+        return currentVersion;
+    }
+
+    /**
+     * Returns the length of the specified version of this array.
+     *
+     * @param version version of array
+     * @return length of the specified version of this array
+     */
+    public int getLength(int version) {
+        if (version < 0 || version > currentVersion)
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        return getInt(findEntry(getLong(LENGTHS_OFFSET), LENGTH_ENTRY_SIZE, version));
+    }
+
+    /**
+     * Returns the length of the current version of this array.
+     *
+     * @return length of the current version of this array
+     */
+    public int getLength() {
+        return getLength(currentVersion);
+    }
+
+    /**
+     * Adds the element as last in the last version of this array
+     *
+     * @param obj object to be added, not null
+     * @return current version of this array
+     */
+    public int add(E obj) {
+        Objects.requireNonNull(obj);
+        int curLen = getLength();
+        currentVersion++;
+        putElement(curLen, obj);
+        putInt(appendEntry(LENGTHS_OFFSET, LENGTH_ENTRY_SIZE, currentVersion), curLen + 1);
+        commitVersion();
+        return currentVersion;
+    }
+
+    /**
+     * Removes last element in the last version of this array.
+     *
+     * @return current version of this array
+     */
+    public int remove() {
+        int curLen = getLength();
+        if (curLen == 0) {
+            throw new ArrayIndexOutOfBoundsException(Exceptions.NOTHING_TO_REMOVE);
+        }
+        currentVersion++;
+        putInt(appendEntry(LENGTHS_OFFSET, LENGTH_ENTRY_SIZE, currentVersion), curLen - 1);
+        commitVersion();
+        return currentVersion;
+    }
+
+    /**
+     * Forces all changes of the mapped file to the storage device.
+     */
+    public void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Forces all changes to the storage device and closes the file.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private void putElement(int index, E obj) {
+        long entry = appendEntry(headPointer(index, true), entrySize, currentVersion);
+        codec.write(segments.get(segmentIndex(entry)), segmentOffset(entry), obj);
+    }
+
+    private void commitVersion() {
+        putInt(VERSION_OFFSET, currentVersion);
+    }
+
+    /**
+     * Returns the address of the pointer to the last block of the specified slot,
+     * or 0 if the slot has no directory block and it is not created.
+     */
+    private long headPointer(int index, boolean create) {
+        int block = index / DIRECTORY_BLOCK_SLOTS;
+        while (create && directory.size() <= block) {
+            long address = allocate(DIRECTORY_BLOCK_SIZE);
+            putLong(directory.isEmpty() ? DIRECTORY_OFFSET : directory.get(directory.size() - 1), address);
+            directory.add(address);
+        }
+        if (block >= directory.size())
+            return 0;
+        return directory.get(block) + Long.BYTES + (long) (index % DIRECTORY_BLOCK_SLOTS) * Long.BYTES;
+    }
+
+    /**
+     * Returns the address of the value of the last entry not newer than the specified version in the chain of blocks,
+     * or 0 if there is no such entry. The newest block holds about half of the entries of the chain,
+     * so only a logarithmic number of blocks is skipped.
+     */
+    private long findEntry(long block, int entrySize, int version) {
+        while (block != 0 && getInt(block + BLOCK_HEADER_SIZE) > version) {
+            block = getLong(block);
+        }
+        if (block == 0)
+            return 0;
+        int low = 0;
+        int high = getInt(block + COUNT_OFFSET) - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (getInt(block + BLOCK_HEADER_SIZE + (long) mid * entrySize) <= version) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return block + BLOCK_HEADER_SIZE + (long) low * entrySize + Integer.BYTES;
+    }
+
+    /**
+     * Appends an entry with the specified version to the chain of blocks whose last block is stored at the specified pointer.
+     * Returns the address of the value of the entry.
+     */
+    private long appendEntry(long headPointer, int entrySize, int version) {
+        long block = getLong(headPointer);
+        int count = (0 == block) ? 0 : getInt(block + COUNT_OFFSET);
+        if (0 == block || count == getInt(block + CAPACITY_OFFSET)) {
+            int capacity = (0 == block) ? MIN_BLOCK_ENTRIES
+                    : Math.min(2 * getInt(block + CAPACITY_OFFSET), (SEGMENT_SIZE - BLOCK_HEADER_SIZE) / entrySize);
+            long newBlock = allocate(BLOCK_HEADER_SIZE + capacity * entrySize);
+            putLong(newBlock, block);
+            putInt(newBlock + CAPACITY_OFFSET, capacity);
+            putLong(headPointer, newBlock);
+            block = newBlock;
+            count = 0;
+        }
+        long entry = block + BLOCK_HEADER_SIZE + (long) count * entrySize;
+        putInt(entry, version);
+        putInt(block + COUNT_OFFSET, count + 1);
+        return entry + Integer.BYTES;
+    }
+
+    /**
+     * Allocates zeroed bytes at the end of the file. Allocated bytes never cross a segment boundary.
+     */
+    private long allocate(int size) {
+        long address = end;
+        if (segmentOffset(address) + size > SEGMENT_SIZE) {
+            address = (long) (segmentIndex(address) + 1) << SEGMENT_SHIFT;
+        }
+        while (segments.size() <= segmentIndex(address)) {
+            try {
+                mapSegment();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        end = address + size;
+        putLong(END_OFFSET, end);
+        return address;
+    }
+
+    private void mapSegment() throws IOException {
+        long position = (long) segments.size() << SEGMENT_SHIFT;
+        segments.add(channel.map(FileChannel.MapMode.READ_WRITE, position, SEGMENT_SIZE));
+    }
+
+    private static int segmentIndex(long address) {
+        return (int) (address >>> SEGMENT_SHIFT);
+    }
+
+    private static int segmentOffset(long address) {
+        return (int) (address & (SEGMENT_SIZE - 1));
+    }
+
+    private int getInt(long address) {
+        return segments.get(segmentIndex(address)).getInt(segmentOffset(address));
+    }
+
+    private void putInt(long address, int value) {
+        segments.get(segmentIndex(address)).putInt(segmentOffset(address), value);
+    }
+
+    private long getLong(long address) {
+        return segments.get(segmentIndex(address)).getLong(segmentOffset(address));
+    }
+
+    private void putLong(long address, long value) {
+        segments.get(segmentIndex(address)).putLong(segmentOffset(address), value);
+    }
+}
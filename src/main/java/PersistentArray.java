@@ -1,43 +1,130 @@
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 
 
 public class PersistentArray <E> {
 
     public static final int INIT_CAPACITY = 10;
-    private int currentVersion = 0;
+    private volatile int currentVersion = 0;
     private TreeMap <Integer, Integer> versionsLengths;
     private ArrayList <TreeMap <Integer, E>> versionedData;
+    // values of version 0 of the elements given to the constructor, read by the elements without history at version 0
+    private Object[] baseData = null;
+
+    private static final int LOG_SET = 0;
+    private static final int LOG_ADD = 1;
+    private static final int LOG_REMOVE = 2;
+    private static final int LOG_SQUASH = 3;
+    private static final int LOG_SET_AT = 4;
+    private static final int LOG_ADD_AT = 5;
+    private static final int LOG_REMOVE_AT = 6;
+    private static final int LOG_ROLLBACK = 7;
+    private static final int LOG_SET_ALL = 8;
+    private static final int LOG_SET_RANGE = 9;
+    private static final int LOG_RESTORE_RANGE = 10;
+    private static final int LOG_REVERT = 11;
+    private WriteAheadLog log = null;
+    private ValueCodec<E> logCodec = null;
+    private ArrayList<HistorySpill.ColdHistory<E>> coldData = null;
+    private int spilledBeforeVersion = 0;
+    // spill the history is moved to automatically every autoSpillVersions versions, if any
+    private HistorySpill autoSpill = null;
+    private ValueCodec<E> autoSpillCodec = null;
+    private int autoSpillVersions = 0;
+    private IOException autoSpillFailure = null;
+    private final VersionLeases leases = new VersionLeases();
+    private VersionClock clock = null;
+    private VersionTree versionTree = null;
+    // array this one was forked from, read under its lock since it may be changed meanwhile
+    private PersistentArray<E> forkedFrom = null;
+    private int forkVersion = 0;
+    private TreeMap<Integer, List<Integer>> changedIndexes = new TreeMap<>();
+    // elements and length of the current version, if it is mirrored, changed under the lock
+    private Object[] mirrorElements = null;
+    private int mirrorLength = 0;
+    // the mirror as read without the lock, null while a change writes into it
+    private volatile Mirror mirror = null;
+
+    /**
+     * Elements of the current version together with its length, read without the lock of the array.
+     * A change hides the holder before it writes into the elements and publishes a new one once per operation,
+     * so a reader which finds the same holder after reading an element has read a valid one and never a part of a batch.
+     */
+    private static final class Mirror {
+        private final Object[] elements;
+        private final int length;
+
+        Mirror(Object[] elements, int length) {
+            this.elements = elements;
+            this.length = length;
+        }
+    }
 
     /**
      * Constructs an empty array with the initial capacity of ten.
      */
     public PersistentArray() {
-        versionedData = new ArrayList<>();
-        for (int i = 0; i < INIT_CAPACITY; i++) {
-            versionedData.add(new TreeMap<>());
-            versionedData.get(i).put(currentVersion, null);
-        }
-        versionsLengths = new TreeMap<>();
-        versionsLengths.put(currentVersion, INIT_CAPACITY);
+        this(INIT_CAPACITY);
     }
 
     /**
      * Constructs an empty array with the specified initial capacity.
+     * Nothing is allocated per element: an element gets its history when it is changed for the first time.
+     * The histories are kept in a list indexed by position, so the first change of an element
+     * costs one reference for every position up to it that had no history yet.
      *
      * @param capacity initial capacity
      */
     public PersistentArray(int capacity) {
         versionedData = new ArrayList<>();
-        for (int i = 0; i < capacity; i++) {
-            versionedData.add(new TreeMap<>());
-            versionedData.get(i).put(currentVersion, null);
-        }
         versionsLengths = new TreeMap<>();
         versionsLengths.put(currentVersion, capacity);
     }
 
+    /**
+     * Constructs an array whose version 0 contains the elements of the specified collection, in the order of its iterator.
+     * The elements are copied into one plain array in one pass, and no history is allocated until an element is changed.
+     *
+     * @param elements elements of version 0
+     */
+    public PersistentArray(Collection<? extends E> elements) {
+        this(0);
+        baseData = elements.toArray();
+        versionsLengths.put(currentVersion, baseData.length);
+    }
+
+    /**
+     * Constructs an array with the specified initial capacity which appends every modification to the specified write-ahead log.
+     * If the log is not empty, it is replayed first, so the array gets exactly the versions it had before.
+     * The capacity must be the same as when the log was created.
+     *
+     * @param capacity initial capacity
+     * @param log      write-ahead log of this array
+     * @param codec    codec of the elements
+     * @throws IOException if an I/O error occurs or the log is corrupted
+     */
+    public PersistentArray(int capacity, WriteAheadLog log, ValueCodec<E> codec) throws IOException {
+        this(capacity);
+        logCodec = codec;
+        log.replay(this::replay);
+        this.log = log;
+    }
+
     /**
      * Returns the element at the specified position in the specified version of the array.
      *
@@ -45,12 +132,12 @@ public class PersistentArray <E> {
      * @param version version of array to get element.
      * @return the element at the specified position in the specified version of the array.
      */
-    public E get(int index, int version) {
-        if (version > currentVersion)
+    public synchronized E get(int index, int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
-        if (versionsLengths.floorEntry(version).getValue() <= index)
+        if (length(version) <= index)
             throw new ArrayIndexOutOfBoundsException(Exceptions.ARRAY_INDEX_OUT_OF_BOUNDS);
-        return versionedData.get(index).floorEntry(version).getValue();
+        return floorEntry(index, version).getValue();
     }
 
     /**
@@ -60,7 +147,125 @@ public class PersistentArray <E> {
      * @return the element at the specified position in the current version of the array.
      */
     public E get(int index) {
-        return get(index, currentVersion);
+        while (true) {
+            Mirror mirror = this.mirror;
+            if (null == mirror || isPending())
+                return get(index, lastVersion());
+            if (index < 0 || mirror.length <= index)
+                throw new ArrayIndexOutOfBoundsException(Exceptions.ARRAY_INDEX_OUT_OF_BOUNDS);
+            Object element = mirror.elements[index];
+            if (mirror == this.mirror)
+                return (E) element;
+        }
+    }
+
+    /**
+     * Returns the elements of the current version of this array.
+     *
+     * @return a new array with the elements of the current version
+     */
+    public synchronized Object[] toArray() {
+        if (null != mirrorElements && !isPending())
+            return Arrays.copyOf(mirrorElements, mirrorLength);
+        int version = lastVersion();
+        Object[] elements = new Object[length(version)];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = floorEntry(i, version).getValue();
+        }
+        return elements;
+    }
+
+    /**
+     * Keeps a plain array of the elements of the current version, updated by every change,
+     * so {@link #get(int)}, {@link #getLength()} and {@link #toArray()} read it instead of the histories.
+     * Reads of other versions still use the histories. Building the array reads every element once,
+     * and so does every change built on a version other than the current one.
+     */
+    public synchronized void mirrorCurrentVersion() {
+        if (null == mirrorElements) {
+            fillMirror(currentVersion);
+            publishMirror();
+        }
+    }
+
+    /**
+     * Reads the elements at the specified positions in the specified version of this array into the array of values,
+     * in the order of the positions. The version and the length are checked once for the whole batch,
+     * and nothing is allocated per element.
+     *
+     * @param indices indices of the elements to read
+     * @param version version of array to read
+     * @param values  array to fill, at least as long as the array of indices
+     */
+    public synchronized void getAll(int[] indices, int version, E[] values) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        if (values.length < indices.length)
+            throw new IllegalArgumentException(Exceptions.SHORT_OUTPUT_ARRAY);
+        int length = length(version);
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] < 0 || indices[i] >= length)
+                throw new ArrayIndexOutOfBoundsException(Exceptions.ARRAY_INDEX_OUT_OF_BOUNDS);
+            values[i] = floorEntry(indices[i], version).getValue();
+        }
+    }
+
+    /**
+     * Returns the changes of the element at the specified position with versions in the specified range, oldest first.
+     * The changes are read directly from the history of the element, so the cost depends only on their number.
+     * In an array with branches only the changes on the way to the last version of the range are returned.
+     *
+     * @param index       index of the element
+     * @param fromVersion first version of the range
+     * @param toVersion   last version of the range
+     * @return the changes of the element in the range
+     */
+    public synchronized List<VersionedValue<E>> history(int index, int fromVersion, int toVersion) {
+        if (fromVersion < leases.getOldestVersion() || toVersion > lastVersion() || fromVersion > toVersion)
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        if (index < 0)
+            throw new ArrayIndexOutOfBoundsException(Exceptions.ARRAY_INDEX_OUT_OF_BOUNDS);
+        List<VersionedValue<E>> history = new ArrayList<>();
+        addHistory(index, fromVersion, toVersion, history);
+        return history;
+    }
+
+    /**
+     * Returns all changes of the element at the specified position in the readable versions, oldest first.
+     *
+     * @param index index of the element
+     * @return the changes of the element
+     */
+    public List<VersionedValue<E>> history(int index) {
+        return history(index, leases.getOldestVersion(), lastVersion());
+    }
+
+    /**
+     * Adds the changes of the element at the specified position with versions in the specified range to the list:
+     * first the ones read from the array this one was forked from, then the spilled ones if the range reaches them.
+     */
+    private void addHistory(int index, int fromVersion, int toVersion, List<VersionedValue<E>> history) {
+        if (fromVersion > toVersion)
+            return;
+        if (null != forkedFrom) {
+            synchronized (forkedFrom) {
+                forkedFrom.addHistory(index, fromVersion, Math.min(toVersion, forkVersion), history);
+            }
+        }
+        TreeMap<Integer, E> slot = (index < versionedData.size()) ? versionedData.get(index) : null;
+        boolean isSpilledPartRead = null != coldData && index < coldData.size() && null != coldData.get(index)
+                && (null == slot || slot.isEmpty() || fromVersion < slot.firstKey());
+        TreeMap<Integer, E> changes = isSpilledPartRead ? fullHistory(index, fromVersion, toVersion) : slot;
+        if (null == forkedFrom && fromVersion == 0 && index < length(0) && (null == changes || !changes.containsKey(0))) {
+            history.add(new VersionedValue<>(0, baseEntry(index).getValue(), false));
+        }
+        if (null == changes)
+            return;
+        for (Map.Entry<Integer, E> entry : changes.subMap(fromVersion, true, toVersion, true).entrySet()) {
+            if (null == versionTree || versionTree.ancestorAtMost(toVersion, entry.getKey()) == entry.getKey()) {
+                history.add(new VersionedValue<>(entry.getKey(), entry.getValue(), false));
+            }
+        }
     }
 
     /**
@@ -70,25 +275,222 @@ public class PersistentArray <E> {
      * @param obj element to be stored at the specified position
      * @return number of current version of the array
      */
-    public int set(int index, E obj) {
-        int curLen = versionsLengths.floorEntry(currentVersion).getValue();
-        if (curLen <= index)
+    public synchronized int set(int index, E obj) {
+        int curLen = length(currentVersion);
+        if (index < 0 || curLen <= index)
+            throw new ArrayIndexOutOfBoundsException(Exceptions.ARRAY_INDEX_OUT_OF_BOUNDS);
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_SET);
+                out.writeVarInt(index);
+                out.writeNullable(obj, logCodec);
+            });
+        }
+        beginVersion();
+        store(index, obj);
+        recordChange(currentVersion, index);
+        publishMirror();
+        return currentVersion;
+    }
+
+    /**
+     * Replaces the elements at the specified positions in the last version of this array as one new version,
+     * so no version holds only a part of the changes. If a position is repeated, its last value is stored.
+     * Nothing is changed if a position is out of bounds.
+     *
+     * @param indices indices of the elements to replace
+     * @param values  elements to be stored at the positions with the same index in the array of indices
+     * @return number of current version of the array, which is not changed by an empty batch
+     */
+    public synchronized int setAll(int[] indices, E[] values) {
+        if (indices.length != values.length)
+            throw new IllegalArgumentException(Exceptions.BATCH_SIZE_MISMATCH);
+        int curLen = length(currentVersion);
+        for (int index : indices) {
+            if (index < 0 || curLen <= index)
+                throw new ArrayIndexOutOfBoundsException(Exceptions.ARRAY_INDEX_OUT_OF_BOUNDS);
+        }
+        if (indices.length == 0)
+            return currentVersion;
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_SET_ALL);
+                out.writeVarInt(indices.length);
+                for (int i = 0; i < indices.length; i++) {
+                    out.writeVarInt(indices[i]);
+                    out.writeNullable(values[i], logCodec);
+                }
+            });
+        }
+        beginVersion();
+        List<Integer> changed = changedIndexes.computeIfAbsent(currentVersion, v -> new ArrayList<>(indices.length));
+        for (int i = 0; i < indices.length; i++) {
+            store(indices[i], values[i]);
+            changed.add(indices[i]);
+        }
+        publishMirror();
+        return currentVersion;
+    }
+
+    /**
+     * Replaces the elements starting from the specified position in the last version of this array as one new version.
+     * Nothing is changed if the range does not fit into the array.
+     *
+     * @param from   index of the first element to replace
+     * @param values elements to be stored at the consecutive positions
+     * @return number of current version of the array, which is not changed by an empty range
+     */
+    public synchronized int setRange(int from, E[] values) {
+        if (from < 0 || length(currentVersion) - values.length < from)
+            throw new ArrayIndexOutOfBoundsException(Exceptions.ARRAY_INDEX_OUT_OF_BOUNDS);
+        if (values.length == 0)
+            return currentVersion;
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_SET_RANGE);
+                out.writeVarInt(from);
+                out.writeVarInt(values.length);
+                for (E value : values) {
+                    out.writeNullable(value, logCodec);
+                }
+            });
+        }
+        beginVersion();
+        List<Integer> changed = changedIndexes.computeIfAbsent(currentVersion, v -> new ArrayList<>(values.length));
+        for (int i = 0; i < values.length; i++) {
+            store(from + i, values[i]);
+            changed.add(from + i);
+        }
+        publishMirror();
+        return currentVersion;
+    }
+
+    /**
+     * Stores the elements of the specified range as they were in the source version, as one new version.
+     * Only the elements changed since the source version are written.
+     *
+     * @param from          index of the first element of the range
+     * @param to            index after the last element of the range
+     * @param sourceVersion version to copy the elements from
+     * @return number of current version of the array, which is not changed if no element differs
+     */
+    public synchronized int restoreRange(int from, int to, int sourceVersion) {
+        if (sourceVersion < leases.getOldestVersion() || sourceVersion > lastVersion())
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        int curLen = length(currentVersion);
+        if (from < 0 || from > to || to > curLen || to > length(sourceVersion))
             throw new ArrayIndexOutOfBoundsException(Exceptions.ARRAY_INDEX_OUT_OF_BOUNDS);
-        currentVersion++;
-        versionedData.get(index).put(currentVersion, obj);
+        List<Integer> changed = new ArrayList<>();
+        for (int index = from; index < to; index++) {
+            if (isChangedSince(index, sourceVersion)) {
+                changed.add(index);
+            }
+        }
+        restore(changed, sourceVersion, curLen, out -> {
+            out.writeByte(LOG_RESTORE_RANGE);
+            out.writeVarInt(from);
+            out.writeVarInt(to);
+            out.writeVarInt(sourceVersion);
+        });
         return currentVersion;
     }
 
+    /**
+     * Makes a new version equal to the specified one: its length and all its elements.
+     * Only the elements changed since the specified version are visited, so the cost depends on the number of changes
+     * and not on the length of the array. Older versions stay readable, unlike after {@link #rollbackTo(int)}.
+     *
+     * @param version version to revert to
+     * @return number of current version of the array, which is not changed if it already equals the specified one
+     */
+    public synchronized int revertTo(int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        int afterVersion = (null == versionTree) ? Math.min(version, currentVersion)
+                : versionTree.commonAncestor(version, currentVersion);
+        Set<Integer> candidates = new TreeSet<>();
+        collectChanges(afterVersion, Integer.MAX_VALUE, candidates);
+        int length = length(version);
+        List<Integer> changed = new ArrayList<>();
+        for (int index : candidates) {
+            if (index < length && isChangedSince(index, version)) {
+                changed.add(index);
+            }
+        }
+        restore(changed, version, length, out -> {
+            out.writeByte(LOG_REVERT);
+            out.writeVarInt(version);
+        });
+        return currentVersion;
+    }
+
+    /**
+     * Returns true if the element at the specified position in the current version differs from the one of the specified version.
+     * Elements stored by the same change are equal without comparing them.
+     */
+    private boolean isChangedSince(int index, int version) {
+        Map.Entry<Integer, E> source = floorEntry(index, version);
+        Map.Entry<Integer, E> current = floorEntry(index, currentVersion);
+        return null == current || !current.getKey().equals(source.getKey()) && !Objects.equals(current.getValue(), source.getValue());
+    }
+
+    /**
+     * Creates a new version with the elements at the specified positions copied from the source version
+     * and with the specified length, unless it would equal the current version.
+     * The specified record is logged only if the version is created.
+     */
+    private void restore(List<Integer> indexes, int sourceVersion, int length, WriteAheadLog.RecordWriter record) {
+        int curLen = length(currentVersion);
+        if (indexes.isEmpty() && length == curLen)
+            return;
+        if (null != log) {
+            log.append(record);
+        }
+        beginVersion();
+        List<Integer> changed = changedIndexes.computeIfAbsent(currentVersion, v -> new ArrayList<>(indexes.size()));
+        for (int index : indexes) {
+            store(index, floorEntry(index, sourceVersion).getValue());
+            changed.add(index);
+        }
+        if (length != curLen) {
+            if (null != mirrorElements) {
+                Object[] elements = openMirror(length);
+                for (int i = curLen; i < length; i++) {
+                    elements[i] = floorEntry(i, currentVersion).getValue();
+                }
+            }
+            storeLength(length);
+        }
+        publishMirror();
+    }
+
+    /**
+     * Adds the indexes of the elements changed in the versions newer than the first specified one
+     * and not newer than the second one. A fork reads the changes up to its fork version from the array it was forked from.
+     */
+    private void collectChanges(int afterVersion, int upToVersion, Set<Integer> indexes) {
+        if (afterVersion >= upToVersion)
+            return;
+        for (List<Integer> changed : changedIndexes.subMap(afterVersion, false, upToVersion, true).values()) {
+            indexes.addAll(changed);
+        }
+        if (null != forkedFrom) {
+            synchronized (forkedFrom) {
+                forkedFrom.collectChanges(afterVersion, Math.min(upToVersion, forkVersion), indexes);
+            }
+        }
+    }
+
     /**
      * Returns the length of the specified version of this array.
      *
      * @param version version of array
      * @return length of the specified version of this array
      */
-    public int getLength(int version) {
-        if (version > currentVersion)
+    public synchronized int getLength(int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
-        return versionsLengths.floorEntry(version).getValue();
+        return length(version);
     }
 
     /**
@@ -97,7 +499,8 @@ public class PersistentArray <E> {
      * @return length of the current version of this array
      */
     public int getLength() {
-        return getLength(currentVersion);
+        Mirror mirror = this.mirror;
+        return (null == mirror || isPending()) ? getLength(lastVersion()) : mirror.length;
     }
 
     /**
@@ -106,14 +509,19 @@ public class PersistentArray <E> {
      * @param obj object to be added
      * @return current version of this array
      */
-    public int add(E obj) {
+    public synchronized int add(E obj) {
         int curLen = getLength();
-        if (curLen >= versionedData.size()) {
-            versionedData.add(new TreeMap<>());
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_ADD);
+                out.writeNullable(obj, logCodec);
+            });
         }
-        currentVersion++;
-        versionedData.get(curLen).put(currentVersion, obj);
-        versionsLengths.put(currentVersion, curLen + 1);
+        beginVersion();
+        store(curLen, obj);
+        recordChange(currentVersion, curLen);
+        storeLength(curLen + 1);
+        publishMirror();
         return currentVersion;
     }
 
@@ -122,13 +530,775 @@ public class PersistentArray <E> {
      *
      * @return current version of this array
      */
-    public int remove() {
+    public synchronized int remove() {
         int curLen = getLength();
         if (curLen == 0) {
             throw new ArrayIndexOutOfBoundsException(Exceptions.NOTHING_TO_REMOVE);
         }
-        currentVersion++;
-        versionsLengths.put(currentVersion, curLen - 1);
+        if (null != log) {
+            log.append(out -> out.writeByte(LOG_REMOVE));
+        }
+        beginVersion();
+        storeLength(curLen - 1);
+        publishMirror();
+        return currentVersion;
+    }
+
+    /**
+     * Attaches this array to the specified clock: from now on the array is modified only inside transactions of the clock
+     * and its new versions get the numbers of the clock. Every version of the clock is readable,
+     * and the clock is moved forward if the array already has newer versions.
+     *
+     * @param clock clock to attach to
+     * @throws IllegalStateException if the array has a write-ahead log, which cannot hold aborted transactions,
+     *                               or branches, which the clock cannot number, or is a fork
+     */
+    public synchronized void attachTo(VersionClock clock) {
+        if (null != log)
+            throw new IllegalStateException(Exceptions.LOGGED_CLOCK_STRUCTURE);
+        checkLinear();
+        clock.attach(currentVersion);
+        this.clock = clock;
+    }
+
+    /**
+     * Creates the version of the next change and returns the previous current version.
+     * An attached array takes the version of the running transaction, so all its changes in the transaction share it.
+     */
+    private int beginVersion() {
+        if (null != autoSpill) {
+            spillIfDue();
+        }
+        int previous = currentVersion;
+        if (null != versionTree) {
+            currentVersion = versionTree.add(previous);
+        } else if (null == clock) {
+            currentVersion++;
+        } else {
+            currentVersion = clock.pendingVersion(this, () -> truncate(previous));
+        }
+        return previous;
+    }
+
+    /**
+     * Throws if a branch cannot be created: the clock cannot number branches,
+     * and neither a fork nor a spilled history can follow them.
+     */
+    private void checkBranchable() {
+        if (null != clock)
+            throw new IllegalStateException(Exceptions.BRANCHED_HISTORY);
+        if (null != forkedFrom)
+            throw new IllegalStateException(Exceptions.FORKED_HISTORY);
+        if (null != coldData || null != autoSpill)
+            throw new IllegalStateException(Exceptions.SPILLED_VERSIONS);
+    }
+
+    /**
+     * Creates a new version whose parent is the specified one. The version tree is created by the first branch.
+     * The caller checks with {@link #checkBranchable()} that the branch can be created.
+     */
+    private void beginBranch(int baseVersion) {
+        if (null != mirrorElements && baseVersion != currentVersion) {
+            fillMirror(baseVersion);
+        }
+        if (null == versionTree) {
+            if (baseVersion == currentVersion) {
+                currentVersion++;
+                return;
+            }
+            versionTree = new VersionTree(currentVersion);
+        }
+        currentVersion = versionTree.add(baseVersion);
+    }
+
+    /**
+     * Throws if this array has branches or is a fork: the operation treats versions as one line held by this array.
+     */
+    private void checkLinear() {
+        if (null != versionTree)
+            throw new IllegalStateException(Exceptions.BRANCHED_HISTORY);
+        if (null != forkedFrom)
+            throw new IllegalStateException(Exceptions.FORKED_HISTORY);
+    }
+
+    /**
+     * Returns the last change in the history not newer than the specified version on its branch.
+     */
+    private <T> Map.Entry<Integer, T> floorEntry(TreeMap<Integer, T> history, int version) {
+        return (null == versionTree) ? history.floorEntry(version) : versionTree.floorEntry(history, version);
+    }
+
+    /**
+     * Returns the newest version the calling thread may read: the current version, or for an attached array
+     * the version the clock shows to the thread, so changes of a transaction are not read by other threads before its commit.
+     */
+    private int lastVersion() {
+        return (null == clock) ? currentVersion : clock.readableVersion();
+    }
+
+    /**
+     * Returns true if the current version belongs to a transaction the calling thread may not read yet,
+     * so the mirror of the current version cannot be read either.
+     */
+    private boolean isPending() {
+        return null != clock && currentVersion > clock.readableVersion();
+    }
+
+    /**
+     * Discards all versions newer than the specified one, which becomes the current version.
+     * Only the elements changed in the discarded versions are visited, so the cost depends on the number of discarded changes
+     * and not on the length of the array. The numbers of the discarded versions are given to the next changes.
+     * Versions of all branches newer than the specified one are discarded too.
+     *
+     * @param version version to roll back to
+     * @return number of removed changes
+     * @throws IllegalArgumentException if the version is older than the end of the spilled part of the history
+     * @throws IllegalStateException    if a discarded version is leased or the array is attached to a clock,
+     *                                  whose versions are discarded only by aborting a transaction
+     */
+    public synchronized int rollbackTo(int version) {
+        if (version < leases.getOldestVersion() || version > currentVersion)
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        if (version < spilledBeforeVersion)
+            throw new IllegalArgumentException(Exceptions.SPILLED_VERSIONS);
+        if (null != clock)
+            throw new IllegalStateException(Exceptions.CLOCK_ROLLBACK);
+        if (leases.newest(version) > version)
+            throw new IllegalStateException(Exceptions.LEASED_VERSIONS);
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_ROLLBACK);
+                out.writeVarInt(version);
+            });
+        }
+        return truncate(version);
+    }
+
+    /**
+     * Removes all changes newer than the specified version, which becomes the current one.
+     * @return number of removed changes
+     */
+    private synchronized int truncate(int version) {
+        int removed = Histories.truncate(versionsLengths, version);
+        NavigableMap<Integer, List<Integer>> discarded = changedIndexes.tailMap(version, false);
+        for (List<Integer> indexes : discarded.values()) {
+            for (int index : indexes) {
+                removed += Histories.truncate(versionedData.get(index), version);
+            }
+        }
+        if (null != versionTree) {
+            versionTree.truncate(version);
+        }
+        if (null != forkedFrom) {
+            forkVersion = Math.min(forkVersion, version);
+        }
+        if (null != mirrorElements && null != versionTree) {
+            fillMirror(version);
+        } else if (null != mirrorElements) {
+            int length = length(version);
+            Object[] elements = openMirror(length);
+            for (List<Integer> indexes : discarded.values()) {
+                for (int index : indexes) {
+                    if (index < length) {
+                        elements[index] = floorEntry(index, version).getValue();
+                    }
+                }
+            }
+            for (int i = mirrorLength; i < length; i++) {
+                elements[i] = floorEntry(i, version).getValue();
+            }
+            cutMirror(length);
+        }
+        discarded.clear();
+        currentVersion = version;
+        publishMirror();
+        return removed;
+    }
+
+    /**
+     * Stores the element at the specified position in the current version and in its mirror.
+     */
+    private void store(int index, E obj) {
+        slot(index).put(currentVersion, obj);
+        if (null != mirrorElements) {
+            openMirror(index + 1)[index] = obj;
+        }
+    }
+
+    /**
+     * Stores the length of the current version and of its mirror.
+     */
+    private void storeLength(int length) {
+        versionsLengths.put(currentVersion, length);
+        if (null != mirrorElements) {
+            openMirror(length);
+            cutMirror(length);
+        }
+    }
+
+    /**
+     * Builds the mirror from the specified version. It is read without the lock only after it is published.
+     */
+    private void fillMirror(int version) {
+        int length = length(version);
+        Object[] elements = new Object[Math.max(length, INIT_CAPACITY)];
+        for (int i = 0; i < length; i++) {
+            elements[i] = floorEntry(i, version).getValue();
+        }
+        mirrorElements = elements;
+        mirrorLength = length;
+    }
+
+    /**
+     * Hides the mirror from reads without the lock, which wait for the lock until the change publishes it again,
+     * and returns its elements, copied to a larger array if they cannot hold the specified number of elements.
+     */
+    private Object[] openMirror(int length) {
+        mirror = null;
+        if (mirrorElements.length < length) {
+            mirrorElements = Arrays.copyOf(mirrorElements, Math.max(length, mirrorElements.length * 2));
+        }
+        return mirrorElements;
+    }
+
+    /**
+     * Sets the length of the opened mirror. Elements cut off from it are cleared, so they can be collected.
+     */
+    private void cutMirror(int length) {
+        if (length < mirrorLength) {
+            Arrays.fill(mirrorElements, length, mirrorLength, null);
+        }
+        mirrorLength = length;
+    }
+
+    /**
+     * Publishes the mirror changed by the operation, if the array is mirrored, so reads without the lock use it again.
+     */
+    private void publishMirror() {
+        if (null != mirrorElements) {
+            mirror = new Mirror(mirrorElements, mirrorLength);
+        }
+    }
+
+    /**
+     * Remembers that the element at the specified position was changed in the specified version.
+     */
+    private void recordChange(int version, int index) {
+        changedIndexes.computeIfAbsent(version, v -> new ArrayList<>(1)).add(index);
+    }
+
+    /**
+     * Replaces the element at the specified position in the specified version of this array.
+     * The change creates a new version whose parent is the specified one, so versions built on it before stay unchanged
+     * and the array gets a branch. Every version of every branch stays readable.
+     *
+     * @param index       index of the element to replace
+     * @param obj         element to be stored at the specified position
+     * @param baseVersion version to build the new version on
+     * @return number of the new version, which becomes the current one
+     */
+    public synchronized int set(int index, E obj, int baseVersion) {
+        if (index < 0 || getLength(baseVersion) <= index)
+            throw new ArrayIndexOutOfBoundsException(Exceptions.ARRAY_INDEX_OUT_OF_BOUNDS);
+        checkBranchable();
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_SET_AT);
+                out.writeVarInt(baseVersion);
+                out.writeVarInt(index);
+                out.writeNullable(obj, logCodec);
+            });
+        }
+        beginBranch(baseVersion);
+        store(index, obj);
+        recordChange(currentVersion, index);
+        publishMirror();
+        return currentVersion;
+    }
+
+    /**
+     * Adds the element as last in a new version built on the specified version of this array.
+     *
+     * @param obj         object to be added
+     * @param baseVersion version to build the new version on
+     * @return number of the new version, which becomes the current one
+     */
+    public synchronized int add(E obj, int baseVersion) {
+        int curLen = getLength(baseVersion);
+        checkBranchable();
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_ADD_AT);
+                out.writeVarInt(baseVersion);
+                out.writeNullable(obj, logCodec);
+            });
+        }
+        beginBranch(baseVersion);
+        store(curLen, obj);
+        recordChange(currentVersion, curLen);
+        storeLength(curLen + 1);
+        publishMirror();
+        return currentVersion;
+    }
+
+    /**
+     * Removes last element in a new version built on the specified version of this array.
+     *
+     * @param baseVersion version to build the new version on
+     * @return number of the new version, which becomes the current one
+     */
+    public synchronized int remove(int baseVersion) {
+        int curLen = getLength(baseVersion);
+        if (curLen == 0) {
+            throw new ArrayIndexOutOfBoundsException(Exceptions.NOTHING_TO_REMOVE);
+        }
+        checkBranchable();
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_REMOVE_AT);
+                out.writeVarInt(baseVersion);
+            });
+        }
+        beginBranch(baseVersion);
+        storeLength(curLen - 1);
+        publishMirror();
         return currentVersion;
     }
+
+    /**
+     * Returns a new array whose versions up to the specified one are the versions of this array.
+     * The fork shares the history of this array instead of copying it: every element it did not change itself
+     * is read from this array, so the fork is created in constant time and allocates only for its own changes.
+     * Later changes of this array and of the fork do not affect each other.
+     * The fork reads this array at the specified version and older ones, so their history must be kept while the fork is used:
+     * lease the version with {@link #acquire(int)} and do not squash ranges of versions up to it.
+     *
+     * @param version version to fork at
+     * @return the new array, whose current version is the specified one
+     * @throws IllegalStateException if this array has branches
+     */
+    public synchronized PersistentArray<E> forkAt(int version) {
+        if (version < leases.getOldestVersion() || version > currentVersion)
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        if (null != versionTree)
+            throw new IllegalStateException(Exceptions.BRANCHED_HISTORY);
+        PersistentArray<E> fork = new PersistentArray<>(0);
+        fork.versionsLengths.clear();
+        fork.forkedFrom = this;
+        fork.forkVersion = version;
+        fork.currentVersion = version;
+        return fork;
+    }
+
+    /**
+     * Returns the version the specified version was built on.
+     *
+     * @param version version of array
+     * @return the parent version, or -1 for version zero
+     */
+    public int getParentVersion(int version) {
+        if (version < 0 || version > lastVersion())
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        synchronized (this) {
+            return (null == versionTree) ? version - 1 : versionTree.getParent(version);
+        }
+    }
+
+    /**
+     * Repeats the operation of one record of the write-ahead log.
+     */
+    private void replay(SnapshotInput in) throws IOException {
+        switch (in.readByte()) {
+            case LOG_SET:
+                set(in.readVarInt(), in.readNullable(logCodec));
+                break;
+            case LOG_ADD:
+                add(in.readNullable(logCodec));
+                break;
+            case LOG_REMOVE:
+                remove();
+                break;
+            case LOG_SQUASH:
+                squash(in.readVarInt(), in.readVarInt());
+                break;
+            case LOG_SET_AT: {
+                int baseVersion = in.readVarInt();
+                set(in.readVarInt(), in.readNullable(logCodec), baseVersion);
+                break;
+            }
+            case LOG_ADD_AT: {
+                int baseVersion = in.readVarInt();
+                add(in.readNullable(logCodec), baseVersion);
+                break;
+            }
+            case LOG_REMOVE_AT:
+                remove(in.readVarInt());
+                break;
+            case LOG_ROLLBACK:
+                rollbackTo(in.readVarInt());
+                break;
+            case LOG_SET_ALL: {
+                int size = in.readVarInt();
+                int[] indices = new int[size];
+                E[] values = (E[]) new Object[size];
+                for (int i = 0; i < size; i++) {
+                    indices[i] = in.readVarInt();
+                    values[i] = in.readNullable(logCodec);
+                }
+                setAll(indices, values);
+                break;
+            }
+            case LOG_RESTORE_RANGE:
+                restoreRange(in.readVarInt(), in.readVarInt(), in.readVarInt());
+                break;
+            case LOG_REVERT:
+                revertTo(in.readVarInt());
+                break;
+            case LOG_SET_RANGE: {
+                int from = in.readVarInt();
+                E[] values = (E[]) new Object[in.readVarInt()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.readNullable(logCodec);
+                }
+                setRange(from, values);
+                break;
+            }
+            default:
+                throw new IOException(Exceptions.CORRUPTED_LOG);
+        }
+    }
+
+    /**
+     * Writes this array with its whole history to the specified channel in the binary snapshot format.
+     * The array is locked until the snapshot is written, {@link #exportSnapshotAsync} writes one version without blocking changes.
+     *
+     * @param channel channel to write to
+     * @param codec   codec of the elements
+     * @throws IOException           if an I/O error occurs
+     * @throws IllegalStateException if the array has branches, which the format cannot hold, or is a fork
+     */
+    public synchronized void writeSnapshot(WritableByteChannel channel, ValueCodec<E> codec) throws IOException {
+        checkLinear();
+        SnapshotOutput out = new SnapshotOutput(channel);
+        out.writeHeader(SnapshotOutput.ARRAY);
+        out.writeVarInt(currentVersion);
+        out.writeVersionedInts(versionsLengths);
+        int slots = Math.max(versionedData.size(), (null == baseData) ? 0 : baseData.length);
+        out.writeVarInt(slots);
+        for (int i = 0; i < slots; i++) {
+            out.writeVersionedValues(fullHistory(i), codec);
+        }
+        out.flush();
+    }
+
+    /**
+     * Leases the specified version of this array: its history is not reclaimed until the lease is closed.
+     * @param version version to lease
+     * @return lease of the version
+     */
+    public VersionLease acquire(int version) {
+        return leases.acquire(version, lastVersion());
+    }
+
+    /**
+     * Leases the current version of this array.
+     * @return lease of the current version
+     */
+    public VersionLease acquire() {
+        return acquire(lastVersion());
+    }
+
+    /**
+     * Removes the history older than the oldest leased version, or older than the current version if nothing is leased.
+     * Versions before it are no longer readable. The history of an array with branches is never reclaimed.
+     * @return number of removed changes
+     */
+    public synchronized int reclaim() {
+        if (null != versionTree)
+            return 0;
+        int previous = leases.getOldestVersion();
+        int oldest = leases.advance(currentVersion);
+        if (oldest == previous)
+            return 0;
+        int removed = Histories.prune(versionsLengths, oldest);
+        changedIndexes.headMap(oldest, true).clear();
+        for (TreeMap<Integer, E> slot : versionedData) {
+            if (null != slot) {
+                removed += Histories.prune(slot, oldest);
+            }
+        }
+        if (oldest >= spilledBeforeVersion) {
+            coldData = null;
+        }
+        return removed;
+    }
+
+    /**
+     * Folds the specified range of versions into its last version: every element keeps only its last change in the range.
+     * Versions outside the range read as before, versions inside the range read as version fromVersion - 1.
+     *
+     * @param fromVersion first version of the range, newer than the oldest readable version
+     * @param toVersion   last version of the range
+     * @return number of removed changes
+     * @throws IllegalArgumentException if the range begins before the spilled part of the history ends
+     * @throws IllegalStateException    if the array has branches or is a fork
+     */
+    public synchronized int squash(int fromVersion, int toVersion) {
+        if (fromVersion <= leases.getOldestVersion() || toVersion > currentVersion || fromVersion > toVersion)
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        if (fromVersion < spilledBeforeVersion)
+            throw new IllegalArgumentException(Exceptions.SPILLED_VERSIONS);
+        checkLinear();
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_SQUASH);
+                out.writeVarInt(fromVersion);
+                out.writeVarInt(toVersion);
+            });
+        }
+        int removed = Histories.squash(versionsLengths, fromVersion, toVersion);
+        NavigableMap<Integer, List<Integer>> squashed = changedIndexes.subMap(fromVersion, true, toVersion, true);
+        if (!squashed.isEmpty()) {
+            List<Integer> indexes = new ArrayList<>();
+            for (List<Integer> changed : squashed.values()) {
+                indexes.addAll(changed);
+            }
+            squashed.clear();
+            changedIndexes.put(toVersion, indexes);
+        }
+        for (TreeMap<Integer, E> slot : versionedData) {
+            if (null != slot) {
+                removed += Histories.squash(slot, fromVersion, toVersion);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Moves the history of every element older than its value in the specified version to the specified spill.
+     * Spilled values are read back from the spill when an old version is requested.
+     *
+     * @param spill         spill to move the history to
+     * @param codec         codec of the elements
+     * @param beforeVersion version whose values stay in memory with all newer ones
+     * @return number of spilled values
+     * @throws IOException           if an I/O error occurs or the last automatic spill failed
+     * @throws IllegalStateException if the array has branches or is a fork
+     */
+    public synchronized int spillHistory(HistorySpill spill, ValueCodec<E> codec, int beforeVersion) throws IOException {
+        if (null != autoSpillFailure) {
+            IOException failure = autoSpillFailure;
+            autoSpillFailure = null;
+            throw failure;
+        }
+        if (beforeVersion < leases.getOldestVersion() || beforeVersion > currentVersion)
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        checkLinear();
+        if (null == coldData) {
+            coldData = new ArrayList<>();
+        }
+        spilledBeforeVersion = Math.max(spilledBeforeVersion, beforeVersion);
+        HistorySpill.PageWriter<E> page = spill.new PageWriter<>(codec);
+        int spilled = 0;
+        for (int i = 0; i < versionedData.size(); i++) {
+            TreeMap<Integer, E> slot = versionedData.get(i);
+            Integer visibleVersion = (null == slot) ? null : slot.floorKey(beforeVersion);
+            if (null == visibleVersion)
+                continue;
+            NavigableMap<Integer, E> cold = slot.headMap(visibleVersion, false);
+            if (cold.isEmpty())
+                continue;
+            while (coldData.size() <= i) {
+                coldData.add(null);
+            }
+            if (null == coldData.get(i)) {
+                coldData.set(i, spill.new ColdHistory<>(codec));
+            }
+            spilled += cold.size();
+            page.add(coldData.get(i), cold);
+        }
+        page.flush();
+        return spilled;
+    }
+
+    /**
+     * Moves the history to the specified spill automatically while the array is changed: whenever the current version
+     * gets twice the specified number of versions ahead of the end of the spilled part, the values older than the last
+     * that many versions are spilled as by {@link #spillHistory}, so between one and two times that many versions
+     * stay in memory. A failed automatic spill leaves the history in memory, stops the automatic spilling
+     * and is thrown by the next call of {@link #spillHistory}.
+     *
+     * @param spill    spill to move the history to
+     * @param codec    codec of the elements
+     * @param versions number of the newest versions kept in memory
+     * @throws IllegalArgumentException if the number of versions is not positive
+     * @throws IllegalStateException    if the array has branches or is a fork
+     */
+    public synchronized void spillHistoryEvery(HistorySpill spill, ValueCodec<E> codec, int versions) {
+        if (versions <= 0)
+            throw new IllegalArgumentException(Exceptions.NON_POSITIVE_INTERVAL);
+        checkLinear();
+        autoSpill = spill;
+        autoSpillCodec = codec;
+        autoSpillVersions = versions;
+    }
+
+    /**
+     * Spills the history if the current version got far enough ahead of the spilled part.
+     */
+    private void spillIfDue() {
+        int beforeVersion = Math.max(currentVersion - autoSpillVersions, leases.getOldestVersion());
+        if (beforeVersion - spilledBeforeVersion < autoSpillVersions)
+            return;
+        try {
+            spillHistory(autoSpill, autoSpillCodec, beforeVersion);
+        } catch (IOException e) {
+            autoSpillFailure = e;
+            autoSpill = null;
+        }
+    }
+
+    /**
+     * Returns the last change of the element at the specified position not newer than the specified version,
+     * reading it from the spill if it was spilled.
+     */
+    private Map.Entry<Integer, E> floorEntry(int index, int version) {
+        TreeMap<Integer, E> slot = (index < versionedData.size()) ? versionedData.get(index) : null;
+        Map.Entry<Integer, E> entry = (null == slot) ? null : floorEntry(slot, version);
+        if (null == entry && null != coldData && index < coldData.size() && null != coldData.get(index)) {
+            entry = coldData.get(index).floorEntry(version);
+        }
+        if (null == entry && null != forkedFrom) {
+            synchronized (forkedFrom) {
+                entry = forkedFrom.floorEntry(index, Math.min(version, forkVersion));
+            }
+        }
+        if (null == entry && null == forkedFrom) {
+            entry = baseEntry(index);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the value of version 0 of the element at the specified position, which has no history there:
+     * the element given to the constructor, or null.
+     */
+    private Map.Entry<Integer, E> baseEntry(int index) {
+        E value = (null != baseData && index < baseData.length) ? (E) baseData[index] : null;
+        return new AbstractMap.SimpleImmutableEntry<>(0, value);
+    }
+
+    /**
+     * Returns the length of the specified version, reading the array this one was forked from if it was not changed since.
+     */
+    private int length(int version) {
+        Map.Entry<Integer, Integer> entry = floorEntry(versionsLengths, version);
+        if (null != entry)
+            return entry.getValue();
+        synchronized (forkedFrom) {
+            return forkedFrom.length(Math.min(version, forkVersion));
+        }
+    }
+
+    /**
+     * Returns the history of the element at the specified position, creating it if this array has none:
+     * a fork has histories only for the elements it changed. The list of histories is padded with nulls
+     * up to the position, which is linear in the distance from its end but done once per position.
+     */
+    private TreeMap<Integer, E> slot(int index) {
+        if (versionedData.size() <= index) {
+            versionedData.addAll(Collections.nCopies(index + 1 - versionedData.size(), null));
+        }
+        if (null == versionedData.get(index)) {
+            versionedData.set(index, new TreeMap<>());
+        }
+        return versionedData.get(index);
+    }
+
+    /**
+     * Returns the whole history of the element at the specified position, including its spilled part
+     * and its value of version 0 if it has no history there.
+     */
+    private TreeMap<Integer, E> fullHistory(int index) {
+        return fullHistory(index, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the history of the element at the specified position, reading only the spilled parts
+     * which may hold versions in the specified range. The result may contain entries outside of the range.
+     */
+    private TreeMap<Integer, E> fullHistory(int index, int fromVersion, int toVersion) {
+        TreeMap<Integer, E> slot = (index < versionedData.size()) ? versionedData.get(index) : null;
+        boolean isSpilled = null != coldData && index < coldData.size() && null != coldData.get(index);
+        boolean hasBase = null != baseData && index < baseData.length;
+        if (!isSpilled && !hasBase && null != slot)
+            return slot;
+        TreeMap<Integer, E> history = isSpilled ? coldData.get(index).entries(fromVersion, toVersion) : new TreeMap<>();
+        if (null != slot) {
+            history.putAll(slot);
+        }
+        if (hasBase && !history.containsKey(0)) {
+            history.put(0, (E) baseData[index]);
+        }
+        return history;
+    }
+
+    /**
+     * Writes the specified version of this array to the specified channel in a background thread.
+     * The image has the binary snapshot format with this version as its only version zero.
+     * The array may be modified meanwhile: the exporter holds the lock of the array only while it reads one element.
+     *
+     * @param version version to write
+     * @param channel channel to write to
+     * @param codec   codec of the elements
+     * @return future completed when the image is written
+     */
+    public CompletableFuture<Void> exportSnapshotAsync(int version, WritableByteChannel channel, ValueCodec<E> codec) {
+        int length;
+        synchronized (this) {
+            if (version < leases.getOldestVersion() || version > lastVersion())
+                throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+            length = length(version);
+        }
+        return SnapshotOutput.exportAsync(channel, out -> {
+            out.writeHeader(SnapshotOutput.ARRAY);
+            out.writeVarInt(0);
+            out.writeVersionedInt(length);
+            out.writeVarInt(length);
+            for (int i = 0; i < length; i++) {
+                E obj;
+                synchronized (this) {
+                    obj = floorEntry(i, version).getValue();
+                }
+                out.writeVersionedValue(obj, codec);
+            }
+        });
+    }
+
+    /**
+     * Reads an array with its whole history written by {@link #writeSnapshot(WritableByteChannel, ValueCodec)}.
+     *
+     * @param channel channel to read from
+     * @param codec   codec of the elements
+     * @return the array with the same versions as the written one
+     * @throws IOException if an I/O error occurs or the snapshot is corrupted
+     */
+    public static <E> PersistentArray<E> readSnapshot(ReadableByteChannel channel, ValueCodec<E> codec) throws IOException {
+        SnapshotInput in = new SnapshotInput(channel);
+        in.readHeader(SnapshotOutput.ARRAY);
+        PersistentArray<E> array = new PersistentArray<>(0);
+        array.currentVersion = in.readVarInt();
+        array.versionsLengths = in.readVersionedInts();
+        int slots = in.readCount();
+        // not sized by the count: a corrupted count of a stream is detected only when the stream ends
+        array.versionedData = new ArrayList<>();
+        for (int i = 0; i < slots; i++) {
+            TreeMap<Integer, E> slot = in.readVersionedValues(codec);
+            array.versionedData.add(slot.isEmpty() ? null : slot);
+            for (int version : slot.tailMap(0, false).keySet()) {
+                array.recordChange(version, i);
+            }
+        }
+        return array;
+    }
 }
\ No newline at end of file
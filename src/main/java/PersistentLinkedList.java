@@ -1,15 +1,43 @@
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.UnaryOperator;
 
-import static java.lang.Math.max;
-import static java.lang.Math.min;
-
 public class PersistentLinkedList<E> implements List {
-    private int currentVersion = 0;
+    private volatile int currentVersion = 0;
     private TreeMap<Integer, Integer> versionsLengths;
     private TreeMap<Integer, PersistentListNode<E>> versionedHeads;
     private TreeMap<Integer, PersistentListNode<E>> versionedTails;
 
+    private static final int LOG_ADD = 0;
+    private static final int LOG_REMOVE_OBJECT = 1;
+    private static final int LOG_ADD_ALL = 2;
+    private static final int LOG_RETAIN_ALL = 3;
+    private static final int LOG_REMOVE_ALL = 4;
+    private static final int LOG_REPLACE_ALL = 5;
+    private static final int LOG_CLEAR = 6;
+    private static final int LOG_SET = 7;
+    private static final int LOG_ADD_AT = 8;
+    private static final int LOG_REMOVE_AT = 9;
+    private static final int LOG_ADD_FIRST = 10;
+    private static final int LOG_ADD_LAST = 11;
+    private static final int LOG_REMOVE_FIRST = 12;
+    private static final int LOG_REMOVE_LAST = 13;
+    private static final int LOG_SPLIT = 14;
+    private static final int LOG_ITERATOR_BEGIN = 15;
+    private static final int LOG_ITERATOR_SET = 16;
+    private static final int LOG_ITERATOR_ADD = 17;
+    private static final int LOG_ITERATOR_REMOVE = 18;
+    private static final int LOG_SQUASH = 19;
+    private static final int LOG_ROLLBACK = 20;
+    private WriteAheadLog log = null;
+    private ValueCodec<E> logCodec = null;
+    private ListIterator replayIterator = null;
+    private final VersionLeases leases = new VersionLeases();
+    private VersionClock clock = null;
+
     /**
      * Constructs an empty persistent list.
      */
@@ -29,20 +57,376 @@ public class PersistentLinkedList<E> implements List {
         versionedHeads = new TreeMap<>();
         versionedTails = new TreeMap<>();
         versionsLengths = new TreeMap<>();
-        versionsLengths.put(0, c.size());
+        versionsLengths.put(0, 0);
 
         for (E obj : c) {
             add(obj, 0);
         }
     }
 
+    /**
+     * Constructs an empty persistent list which appends every modification to the specified write-ahead log.
+     * If the log is not empty, it is replayed first, so the list gets exactly the versions it had before.
+     * Operations with functions or collections are logged with the elements they used.
+     *
+     * @param log write-ahead log of this list
+     * @param codec codec of the elements
+     * @throws IOException if an I/O error occurs or the log is corrupted
+     */
+    public PersistentLinkedList(WriteAheadLog log, ValueCodec<E> codec) throws IOException {
+        this();
+        logCodec = codec;
+        log.replay(this::replay);
+        replayIterator = null;
+        this.log = log;
+    }
+
+    /**
+     * List iterator over one version of the list. Modifications are written to a single new version
+     * which is created by the first modification, so a whole editing session costs one version.
+     * The cursor starts before the element with the index the iterator is created at, so the first call to next returns it,
+     * as {@link List#listIterator(int)} specifies.
+     */
+    private class VersionedListIterator implements ListIterator {
+        private int version;
+        private final boolean isLastVersion;
+        private boolean isModified = false;
+        private int size;
+        private int nextIndex;
+        private PersistentListNode<E> nextElement;
+        private PersistentListNode<E> lastReturned = null;
+        private int lastReturnedIndex = -1;
+
+        VersionedListIterator(int version, int index) {
+            this(version, index, getNode(index, version));
+        }
+
+        VersionedListIterator(int version, int index, PersistentListNode<E> nextElement) {
+            this.version = version;
+            // the newest version the thread may read, which its next change is built on
+            isLastVersion = version == lastVersion();
+            size = size(version);
+            nextIndex = index;
+            this.nextElement = nextElement;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextIndex < size;
+        }
+
+        @Override
+        public Object next() {
+            if (!hasNext())
+                throw new NoSuchElementException(Exceptions.NO_SUCH_ELEMENT);
+            synchronized (PersistentLinkedList.this) {
+                lastReturned = nextElement;
+                lastReturnedIndex = nextIndex;
+                nextElement = nextElement.getNext(version);
+                nextIndex++;
+                return lastReturned.getObject(version);
+            }
+        }
+
+        @Override
+        public boolean hasPrevious() {
+            return nextIndex > 0;
+        }
+
+        @Override
+        public Object previous() {
+            if (!hasPrevious())
+                throw new NoSuchElementException(Exceptions.NO_SUCH_ELEMENT);
+            synchronized (PersistentLinkedList.this) {
+                nextElement = (null == nextElement) ? getTail(version) : nextElement.getPrev(version);
+                lastReturned = nextElement;
+                nextIndex--;
+                lastReturnedIndex = nextIndex;
+                return lastReturned.getObject(version);
+            }
+        }
+
+        @Override
+        public int nextIndex() {
+            return nextIndex;
+        }
+
+        @Override
+        public int previousIndex() {
+            return nextIndex - 1;
+        }
+
+        @Override
+        public void remove() {
+            if (null == lastReturned)
+                throw new IllegalStateException(Exceptions.NO_ELEMENT_TO_MODIFY);
+            synchronized (PersistentLinkedList.this) {
+                beginModification();
+                logOperation(LOG_ITERATOR_REMOVE, lastReturnedIndex, null);
+
+                if (nextElement == lastReturned) {
+                    nextElement = lastReturned.getNext(version);
+                } else {
+                    nextIndex--;
+                }
+                unlink(lastReturned, version);
+                size--;
+                lastReturned = null;
+            }
+        }
+
+        @Override
+        public void set(Object o) {
+            if (null == lastReturned)
+                throw new IllegalStateException(Exceptions.NO_ELEMENT_TO_MODIFY);
+            synchronized (PersistentLinkedList.this) {
+                beginModification();
+                logOperation(LOG_ITERATOR_SET, lastReturnedIndex, o);
+                lastReturned.setObject(version, (E) o);
+            }
+        }
+
+        @Override
+        public void add(Object o) {
+            synchronized (PersistentLinkedList.this) {
+                beginModification();
+                logOperation(LOG_ITERATOR_ADD, nextIndex, o);
+                linkBefore(o, nextElement, version);
+                size++;
+                nextIndex++;
+                lastReturned = null;
+            }
+        }
+
+        /**
+         * Creates the version for this iterator's modifications on the first call
+         * and checks that the list was not modified by anyone else since then.
+         */
+        private void beginModification() {
+            if (!isLastVersion)
+                throw new UnsupportedOperationException(Exceptions.OLD_VERSION_IS_READ_ONLY);
+            if (version != lastVersion())
+                throw new ConcurrentModificationException();
+            if (!isModified) {
+                logOperation(LOG_ITERATOR_BEGIN, 0, null);
+                beginVersion();
+                version = currentVersion;
+                isModified = true;
+            }
+        }
+    }
+
+    /**
+     * Read-only view of a range of one version of the list. The first node of the range is looked up
+     * on the first access, so creating a view is O(1) and reading it never copies elements.
+     */
+    public class VersionedSubList extends AbstractList<E> {
+        private final int version;
+        private final int fromIndex;
+        private final int size;
+        private PersistentListNode<E> first = null;
+
+        private VersionedSubList(int fromIndex, int toIndex, int version) {
+            this.version = version;
+            this.fromIndex = fromIndex;
+            size = toIndex - fromIndex;
+        }
+
+        private PersistentListNode<E> getFirst() {
+            if (null == first) {
+                first = PersistentLinkedList.this.getNode(fromIndex, version);
+            }
+            return first;
+        }
+
+        /**
+         * Returns the node at the specified position of the range, read under the lock of the list.
+         */
+        private PersistentListNode<E> getNode(int index) {
+            synchronized (PersistentLinkedList.this) {
+                PersistentListNode<E> current = getFirst();
+                for (int i = 0; i < index; i++) {
+                    current = current.getNext(version);
+                }
+                return current;
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public E get(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException(Exceptions.LIST_INDEX_OUT_OF_BOUNDS);
+            synchronized (PersistentLinkedList.this) {
+                return getNode(index).getObject(version);
+            }
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return listIterator(0);
+        }
+
+        @Override
+        public ListIterator<E> listIterator(int index) {
+            if (index < 0 || index > size)
+                throw new IndexOutOfBoundsException(Exceptions.LIST_INDEX_OUT_OF_BOUNDS);
+            ListIterator listIterator = new VersionedListIterator(version, fromIndex + index, getNode(index));
+            return new ListIterator<E>() {
+                @Override
+                public boolean hasNext() {
+                    return listIterator.nextIndex() < fromIndex + size;
+                }
+
+                @Override
+                public E next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException(Exceptions.NO_SUCH_ELEMENT);
+                    return (E) listIterator.next();
+                }
+
+                @Override
+                public boolean hasPrevious() {
+                    return listIterator.nextIndex() > fromIndex;
+                }
+
+                @Override
+                public E previous() {
+                    if (!hasPrevious())
+                        throw new NoSuchElementException(Exceptions.NO_SUCH_ELEMENT);
+                    return (E) listIterator.previous();
+                }
+
+                @Override
+                public int nextIndex() {
+                    return listIterator.nextIndex() - fromIndex;
+                }
+
+                @Override
+                public int previousIndex() {
+                    return listIterator.previousIndex() - fromIndex;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void set(E o) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void add(E o) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        /**
+         * Returns a new persistent list whose version 0 contains the elements of this view.
+         * Nodes are not shared with the source list because their history is keyed by the source list's versions.
+         * @return a new persistent list with the elements of this view
+         */
+        public PersistentLinkedList<E> materializeAsNewList() {
+            return new PersistentLinkedList<>(this);
+        }
+    }
+
+    /**
+     * Returns the first node of the specified version of this list or null if this version is empty.
+     */
+    private PersistentListNode<E> getHead(int version) {
+        Map.Entry<Integer, PersistentListNode<E>> entry = versionedHeads.floorEntry(version);
+        return (null == entry) ? null : entry.getValue();
+    }
+
+    /**
+     * Returns the last node of the specified version of this list or null if this version is empty.
+     */
+    private PersistentListNode<E> getTail(int version) {
+        Map.Entry<Integer, PersistentListNode<E>> entry = versionedTails.floorEntry(version);
+        return (null == entry) ? null : entry.getValue();
+    }
+
+    /**
+     * Returns the node at the specified position in the specified version of this list, or null if the index equals the size.
+     * The list is walked from the head or from the tail, whichever is closer to the index.
+     */
+    private PersistentListNode<E> getNode(int index, int version) {
+        int size = size(version);
+        if (index < size / 2) {
+            PersistentListNode<E> current = getHead(version);
+            for (int i = 0; i < index; i++) {
+                current = current.getNext(version);
+            }
+            return current;
+        }
+        if (index == size) {
+            return null;
+        }
+        PersistentListNode<E> current = getTail(version);
+        for (int i = size - 1; i > index; i--) {
+            current = current.getPrev(version);
+        }
+        return current;
+    }
+
+    /**
+     * Inserts the object before the specified node in the specified version of this list.
+     * If the node is null, the object is inserted as the last element.
+     * @return the inserted node
+     */
+    private PersistentListNode<E> linkBefore(Object o, PersistentListNode<E> next, int version) {
+        PersistentListNode<E> prev = (null == next) ? getTail(version) : next.getPrev(version);
+        PersistentListNode<E> newEl = new PersistentListNode<>((E) o, version, prev, next);
+        if (null != prev) {
+            prev.setNext(version, newEl);
+        } else {
+            versionedHeads.put(version, newEl);
+        }
+        if (null != next) {
+            next.setPrev(version, newEl);
+        } else {
+            versionedTails.put(version, newEl);
+        }
+        versionsLengths.put(version, size(version) + 1);
+        return newEl;
+    }
+
+    /**
+     * Removes the specified node from the specified version of this list.
+     * @return the element stored in the removed node
+     */
+    private E unlink(PersistentListNode<E> node, int version) {
+        PersistentListNode<E> prev = node.getPrev(version);
+        PersistentListNode<E> next = node.getNext(version);
+        if (null != prev) {
+            prev.setNext(version, next);
+        } else {
+            versionedHeads.put(version, next);
+        }
+        if (null != next) {
+            next.setPrev(version, prev);
+        } else {
+            versionedTails.put(version, prev);
+        }
+        versionsLengths.put(version, size(version) - 1);
+        return node.getObject(version);
+    }
+
     /**
      * Returns the number of elements in the specified version of this list.
      * @param version version of this list
      * @return number of elements in the specified version of this list.
      */
-    public int size(int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized int size(int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
         return versionsLengths.floorEntry(version).getValue();
     }
@@ -53,7 +437,7 @@ public class PersistentLinkedList<E> implements List {
      */
     @Override
     public int size() {
-        return size(currentVersion);
+        return size(lastVersion());
     }
 
     /**
@@ -61,8 +445,8 @@ public class PersistentLinkedList<E> implements List {
      * @param version version of this list
      * @return true if the specified version of this list contains no elements, false otherwise
      */
-    public boolean isEmpty(int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized boolean isEmpty(int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
         return size(version) == 0;
     }
@@ -73,7 +457,7 @@ public class PersistentLinkedList<E> implements List {
      */
     @Override
     public boolean isEmpty() {
-        return isEmpty(currentVersion);
+        return isEmpty(lastVersion());
     }
 
     /**
@@ -81,8 +465,8 @@ public class PersistentLinkedList<E> implements List {
      * @param o object for checking
      * @return true if current version of this list contains the specified element, false otherwise
      */
-    public boolean contains(Object o, int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized boolean contains(Object o, int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
         if (isEmpty(version))
             return false;
@@ -107,7 +491,7 @@ public class PersistentLinkedList<E> implements List {
      */
     @Override
     public boolean contains(Object o) {
-        return contains(o, currentVersion);
+        return contains(o, lastVersion());
     }
 
     /**
@@ -115,7 +499,7 @@ public class PersistentLinkedList<E> implements List {
      * @return an iterator over the elements in the specified version of this list in proper sequence.
      */
     public Iterator iterator(int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
         return new Iterator() {
             ListIterator listIterator = versionedListIterator(version);
@@ -138,7 +522,7 @@ public class PersistentLinkedList<E> implements List {
      */
     @Override
     public Iterator iterator() {
-        return iterator(currentVersion);
+        return iterator(lastVersion());
     }
 
     /**
@@ -147,8 +531,8 @@ public class PersistentLinkedList<E> implements List {
      *This method acts as bridge between array-based and collection-based APIs.
      * @return an array containing all of the elements in the specified version of this list in proper sequence
      */
-    public Object[] toArray(int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized Object[] toArray(int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
         Object[] array = new Object[size(version)];
         PersistentListNode<E> current = versionedHeads.floorEntry(version).getValue();
@@ -167,7 +551,7 @@ public class PersistentLinkedList<E> implements List {
      */
     @Override
     public Object[] toArray() {
-        return toArray(currentVersion);
+        return toArray(lastVersion());
     }
 
     /**
@@ -176,21 +560,9 @@ public class PersistentLinkedList<E> implements List {
      * @return true if this collection changed as a result of the call
      */
     private boolean add(Object o, int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
-        if (versionedHeads.size() == 0 || versionedHeads.floorEntry(version).getValue() == null) {
-            PersistentListNode<E> current = new PersistentListNode<>((E) o, version, null, null);
-            versionedHeads.put(version, current);
-            versionedTails.put(version, current);
-            versionsLengths.put(version, 1);
-        } else {
-            PersistentListNode<E> prev = versionedTails.floorEntry(version).getValue();
-            PersistentListNode<E> current = new PersistentListNode<>((E) o, version, prev, null);
-            prev.setNext(version, current);
-
-            versionedTails.put(version, current);
-            versionsLengths.put(version, size(version) + 1);
-        }
+        linkBefore(o, null, version);
         return true;
     }
 
@@ -200,9 +572,11 @@ public class PersistentLinkedList<E> implements List {
      * @return true if this collection changed as a result of the call
      */
     @Override
-    public boolean add(Object o) {
-        currentVersion++;
-        return add(o, currentVersion);
+    public synchronized boolean add(Object o) {
+        logOperation(LOG_ADD, 0, o);
+        beginVersion();
+        add(o, currentVersion);
+        return true;
     }
 
     /**
@@ -213,26 +587,14 @@ public class PersistentLinkedList<E> implements List {
      * @return true if this list contained the specified element (or equivalently, if this list changed as a result of the call).
      */
     private boolean remove(Object o, int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
         if (isEmpty(version))
             return false;
         PersistentListNode<E> current = versionedHeads.floorEntry(currentVersion).getValue();
         for (int i = 0; i < size(version); i++) {
-            if (current.getObject(version).equals(o)) {
-                PersistentListNode<E> prevEl = current.getPrev(version);
-                PersistentListNode<E> nextEl = current.getNext(version);
-                if (prevEl != null) {
-                    prevEl.setNext(version, nextEl);
-                } else {
-                    versionedHeads.put(version, nextEl);
-                }
-                if (nextEl != null) {
-                    nextEl.setPrev(version, prevEl);
-                } else {
-                    versionedTails.put(version, prevEl);
-                }
-                versionsLengths.put(version, size(version) - 1);
+            if (Objects.equals(current.getObject(version), o)) {
+                unlink(current, version);
                 return true;
             }
             current = current.getNext(version);
@@ -248,9 +610,11 @@ public class PersistentLinkedList<E> implements List {
      * @return true if this list contained the specified element (or equivalently, if this list changed as a result of the call).
      */
     @Override
-    public boolean remove(Object o) {
-        currentVersion++;
-        return remove(o, currentVersion);
+    public synchronized boolean remove(Object o) {
+        logOperation(LOG_REMOVE_OBJECT, 0, o);
+        beginVersion();
+        boolean isChanged = remove(o, currentVersion);
+        return isChanged;
     }
 
     /**
@@ -264,29 +628,16 @@ public class PersistentLinkedList<E> implements List {
      * @return true if this list changed as a result of the call
      */
     @Override
-    public boolean addAll(int index, Collection c) {
+    public synchronized boolean addAll(int index, Collection c) {
         if (index < 0 || index > size())
             throw new IndexOutOfBoundsException(Exceptions.LIST_INDEX_OUT_OF_BOUNDS);
         if (c.isEmpty())
             return false;
-        currentVersion++;
+        logCollection(LOG_ADD_ALL, index, c);
+        beginVersion();
 
-        PersistentListNode<E> current = null;
-        PersistentListNode<E> prev = null;
-        if (!(versionedHeads.size() == 0 || versionedHeads.floorEntry(currentVersion).getValue() == null)) {
-            current = versionedHeads.floorEntry(currentVersion).getValue();
-
-            if (index == size()) {
-                prev = versionedTails.floorEntry(currentVersion).getValue();
-                current = null;
-            } else {
-                for (int i = 0; i < index; i++) {
-                    current = current.getNext(currentVersion);
-                } // after that current is element needed to shift
-
-                prev = current.getPrev(currentVersion);
-            }
-        }
+        PersistentListNode<E> current = getNode(index, currentVersion); // element needed to shift
+        PersistentListNode<E> prev = (null == current) ? getTail(currentVersion) : current.getPrev(currentVersion);
         PersistentListNode<E> newEl = null;
         for (Object o : c) {
             newEl = new PersistentListNode<>((E)o, currentVersion, prev, current);
@@ -316,10 +667,48 @@ public class PersistentLinkedList<E> implements List {
      * @return true if this list changed as a result of the call
      */
     @Override
-    public boolean addAll(Collection c) {
+    public synchronized boolean addAll(Collection c) {
         return addAll(size(), c);
     }
 
+    /**
+     * Appends all of the elements of the specified version of other list to the end of this list as one new version.
+     * The elements are linked after the tail of this list, so the cost depends only on the size of the other list.
+     * Nodes of the other list are not shared because their history is keyed by the other list's versions.
+     * @param other list whose elements are to be appended (may be this list)
+     * @param otherVersion version of other list
+     * @return true if this list changed as a result of the call
+     */
+    public boolean concat(PersistentLinkedList<? extends E> other, int otherVersion) {
+        return addAll(other.subList(0, other.size(otherVersion), otherVersion));
+    }
+
+    /**
+     * Splits this list at the specified position.
+     * The new version of this list keeps the elements before the index, the elements starting from the index
+     * are returned as a read-only view of the previous version which shares its nodes with this list.
+     * @param index index of the first element of the second part
+     * @return a view of the elements of the previous version starting from the specified position
+     */
+    public synchronized VersionedSubList splitAt(int index) {
+        int size = size();
+        if (index < 0 || index > size)
+            throw new IndexOutOfBoundsException(Exceptions.LIST_INDEX_OUT_OF_BOUNDS);
+        VersionedSubList tail = new VersionedSubList(index, size, currentVersion);
+        PersistentListNode<E> last = (index == 0) ? null : getNode(index - 1, currentVersion);
+
+        logOperation(LOG_SPLIT, index, null);
+        beginVersion();
+        if (null != last) {
+            last.setNext(currentVersion, null);
+        } else {
+            versionedHeads.put(currentVersion, null);
+        }
+        versionedTails.put(currentVersion, last);
+        versionsLengths.put(currentVersion, index);
+        return tail;
+    }
+
     /**
      * Retains only the elements in this list that are contained in the specified collection.
      * In other words, removes from this list all of its elements that are not contained in the specified collection.
@@ -327,12 +716,13 @@ public class PersistentLinkedList<E> implements List {
      * @return true if this list changed as a result of the call
      */
     @Override
-    public boolean retainAll(Collection c) {
-        if (c.isEmpty() || isEmpty())
+    public synchronized boolean retainAll(Collection c) {
+        if (c.isEmpty() || isEmpty() || !containsAny(c, false))
             return false;
+        logCollection(LOG_RETAIN_ALL, 0, c);
         PersistentListNode<E> current = versionedHeads.floorEntry(currentVersion).getValue();
         boolean isChanged = false;
-        currentVersion++;
+        int previous = beginVersion();
         for (int i = 0; i < size(); i++) {
             if (!c.contains(current.getObject(currentVersion))) {
                 isChanged = isChanged || remove(current.getObject(currentVersion), currentVersion);
@@ -340,7 +730,7 @@ public class PersistentLinkedList<E> implements List {
             }
         }
         if (!isChanged) {
-            currentVersion--; }
+            currentVersion = previous; }
         return isChanged;
     }
 
@@ -350,27 +740,44 @@ public class PersistentLinkedList<E> implements List {
      * @return true if this list changed as a result of the call
      */
     @Override
-    public boolean removeAll(Collection c) {
+    public synchronized boolean removeAll(Collection c) {
+        if (!containsAny(c, true))
+            return false;
+        logCollection(LOG_REMOVE_ALL, 0, c);
         boolean isChanged = false;
-        currentVersion++;
+        int previous = beginVersion();
         for (Object o : c) {
             while (remove(o, currentVersion)) {
                 isChanged = true;
             }
         }
         if (!isChanged) {
-            currentVersion--; }
+            currentVersion = previous; }
         return isChanged;
     }
 
+    /**
+     * Returns true if the current version has an element whose containment in the specified collection
+     * is the specified one, so a bulk removal changes the list and its record is worth logging.
+     */
+    private boolean containsAny(Collection c, boolean isContained) {
+        PersistentListNode<E> current = getHead(currentVersion);
+        for (int i = 0; i < size(); i++) {
+            if (c.contains(current.getObject(currentVersion)) == isContained)
+                return true;
+            current = current.getNext(currentVersion);
+        }
+        return false;
+    }
+
     /**
      * Returns true if the specified version of this list contains all of the elements of the specified collection.
      * @param c collection to be checked for containment in the specified version of this list
      * @param version specified version of this list
      * @return true if the specified version of this list contains all of the elements of the specified collection
      */
-    public boolean containsAll(Collection c, int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized boolean containsAll(Collection c, int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
         for (Object o : c) {
             if (!contains(o, version))
@@ -386,7 +793,7 @@ public class PersistentLinkedList<E> implements List {
      */
     @Override
     public boolean containsAll(Collection c) {
-        return containsAll(c, currentVersion);
+        return containsAll(c, lastVersion());
     }
 
     @Override
@@ -400,13 +807,18 @@ public class PersistentLinkedList<E> implements List {
      * @param operator the operator to apply to each element
      */
     @Override
-    public void replaceAll(UnaryOperator operator) {
+    public synchronized void replaceAll(UnaryOperator operator) {
         PersistentListNode currElement = versionedHeads.floorEntry(currentVersion).getValue();
-        currentVersion++;
+        List<Object> results = new ArrayList<>();
         for (int i = 0; i < size(); i++) {
-            set(i, operator.apply(currElement.getObject(currentVersion)), currentVersion);
+            results.add(operator.apply(currElement.getObject(currentVersion)));
             currElement = currElement.getNext(currentVersion);
         }
+        logCollection(LOG_REPLACE_ALL, 0, results);
+        beginVersion();
+        for (int i = 0; i < results.size(); i++) {
+            set(i, results.get(i), currentVersion);
+        }
     }
 
     @Override
@@ -419,8 +831,9 @@ public class PersistentLinkedList<E> implements List {
      * The list will be empty after this call returns.
      */
     @Override
-    public void clear() {
-        currentVersion++;
+    public synchronized void clear() {
+        logOperation(LOG_CLEAR, 0, null);
+        beginVersion();
         versionsLengths.put(currentVersion, 0);
         versionedHeads.put(currentVersion, null);
         versionedTails.put(currentVersion, null);
@@ -432,19 +845,13 @@ public class PersistentLinkedList<E> implements List {
      * @param version specified version of this list
      * @return the element at the specified position in the specified version of this list
      */
-    public Object get(int index, int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized Object get(int index, int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
-        if (index < 0 || index >= size())
+        if (index < 0 || index >= size(version))
             throw new IndexOutOfBoundsException(Exceptions.LIST_INDEX_OUT_OF_BOUNDS);
 
-        PersistentListNode<E> current = versionedHeads.floorEntry(version).getValue();
-        for (int i = 0; i < size(); i++) {
-            if (i == index)
-                return current.getObject(version);
-            current = current.getNext(version);
-        }
-        return null;
+        return getNode(index, version).getObject(version);
     }
 
     /**
@@ -454,17 +861,14 @@ public class PersistentLinkedList<E> implements List {
      */
     @Override
     public Object get(int index) {
-        return get(index, currentVersion);
+        return get(index, lastVersion());
     }
 
     private Object set(int index, Object element, int version) {
         if (index < 0 || index >= size(version))
             throw new IndexOutOfBoundsException(Exceptions.LIST_INDEX_OUT_OF_BOUNDS);
 
-        PersistentListNode<E> current = versionedHeads.floorEntry(version).getValue();
-        for (int i = 0; i < index; i++) {
-            current = current.getNext(version);
-        }
+        PersistentListNode<E> current = getNode(index, version);
         Object prevObj = current.getObject(version);
         current.setObject(version, (E) element);
 
@@ -478,9 +882,13 @@ public class PersistentLinkedList<E> implements List {
      * @return the element previously at the specified position
      */
     @Override
-    public Object set(int index, Object element) {
-        currentVersion++;
-        return set(index, element, currentVersion);
+    public synchronized Object set(int index, Object element) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException(Exceptions.LIST_INDEX_OUT_OF_BOUNDS);
+        logOperation(LOG_SET, index, element);
+        beginVersion();
+        Object prevObj = set(index, element, currentVersion);
+        return prevObj;
     }
 
     /**
@@ -491,30 +899,12 @@ public class PersistentLinkedList<E> implements List {
      * @param element element to be inserted
      */
     private void add(int index, Object element, int version) {
-        if (version < 0 || version > currentVersion)
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
         if (index < 0 || index > size(version))
             throw new IndexOutOfBoundsException(Exceptions.LIST_INDEX_OUT_OF_BOUNDS);
 
-        if (index == size(version)) {
-            add(element, version);
-            return;
-        }
-
-        PersistentListNode<E> current = versionedHeads.floorEntry(version).getValue();
-        for (int i = 0; i < index; i++) {
-            current = current.getNext(version);
-        } // after that current is element needed to shift
-
-        PersistentListNode<E> prev = current.getPrev(version);
-        PersistentListNode<E> newEl = new PersistentListNode<>((E)element, version, prev, current);
-        if (null != prev) {
-            prev.setNext(version, newEl);
-        } else {
-            versionedHeads.put(version, newEl);
-        }
-        current.setPrev(version, newEl);
-        versionsLengths.put(version, size(version) + 1);
+        linkBefore(element, getNode(index, version), version);
     }
 
     /**
@@ -524,10 +914,11 @@ public class PersistentLinkedList<E> implements List {
      * @param element element to be inserted
      */
     @Override
-    public void add(int index, Object element) {
+    public synchronized void add(int index, Object element) {
         if (index < 0 || index > size())
             throw new IndexOutOfBoundsException(Exceptions.LIST_INDEX_OUT_OF_BOUNDS);
-        currentVersion++;
+        logOperation(LOG_ADD_AT, index, element);
+        beginVersion();
         add(index, element, currentVersion);
     }
 
@@ -539,31 +930,107 @@ public class PersistentLinkedList<E> implements List {
      * @return the element previously at the specified position
      */
     @Override
-    public Object remove(int index) {
+    public synchronized Object remove(int index) {
         if (index < 0 || index >= size())
             throw new IndexOutOfBoundsException(Exceptions.LIST_INDEX_OUT_OF_BOUNDS);
 
-        PersistentListNode<E> current = versionedHeads.floorEntry(currentVersion).getValue();
-        for (int i = 0; i < index; i++) {
-            current = current.getNext(currentVersion);
-        }
+        PersistentListNode<E> current = getNode(index, currentVersion);
+        logOperation(LOG_REMOVE_AT, index, null);
+        beginVersion();
+        E removed = unlink(current, currentVersion);
+        return removed;
+    }
 
-        PersistentListNode<E> prevEl = current.getPrev(currentVersion);
-        PersistentListNode<E> nextEl = current.getNext(currentVersion);
-        currentVersion++;
-        if (prevEl != null) {
-            prevEl.setNext(currentVersion, nextEl);
-        } else {
-            versionedHeads.put(currentVersion, nextEl);
-        }
-        if (nextEl != null) {
-            nextEl.setPrev(currentVersion, prevEl);
-        } else {
-            versionedTails.put(currentVersion, prevEl);
-        }
-        versionsLengths.put(currentVersion, size(currentVersion) - 1);
+    /**
+     * Inserts the specified element at the beginning of this list.
+     * @param o element to be inserted
+     */
+    public synchronized void addFirst(Object o) {
+        logOperation(LOG_ADD_FIRST, 0, o);
+        beginVersion();
+        linkBefore(o, getHead(currentVersion), currentVersion);
+    }
+
+    /**
+     * Inserts the specified element at the end of this list.
+     * @param o element to be inserted
+     */
+    public synchronized void addLast(Object o) {
+        logOperation(LOG_ADD_LAST, 0, o);
+        beginVersion();
+        linkBefore(o, null, currentVersion);
+    }
+
+    /**
+     * Removes and returns the first element of this list.
+     * @return the first element of the current version of this list
+     * @throws NoSuchElementException if the current version of this list is empty
+     */
+    public synchronized Object removeFirst() {
+        if (isEmpty())
+            throw new NoSuchElementException(Exceptions.NO_SUCH_ELEMENT);
+        PersistentListNode<E> head = getHead(currentVersion);
+        logOperation(LOG_REMOVE_FIRST, 0, null);
+        beginVersion();
+        E removed = unlink(head, currentVersion);
+        return removed;
+    }
+
+    /**
+     * Removes and returns the last element of this list.
+     * @return the last element of the current version of this list
+     * @throws NoSuchElementException if the current version of this list is empty
+     */
+    public synchronized Object removeLast() {
+        if (isEmpty())
+            throw new NoSuchElementException(Exceptions.NO_SUCH_ELEMENT);
+        PersistentListNode<E> tail = getTail(currentVersion);
+        logOperation(LOG_REMOVE_LAST, 0, null);
+        beginVersion();
+        E removed = unlink(tail, currentVersion);
+        return removed;
+    }
+
+    /**
+     * Returns the first element of the specified version of this list, or null if this version is empty.
+     * @param version version of this list
+     * @return the first element of the specified version of this list, or null if this version is empty
+     */
+    public synchronized Object peekFirst(int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        if (isEmpty(version))
+            return null;
+        return getHead(version).getObject(version);
+    }
 
-        return null;
+    /**
+     * Returns the first element of the current version of this list, or null if this list is empty.
+     * @return the first element of the current version of this list, or null if this list is empty
+     */
+    public Object peekFirst() {
+        return peekFirst(lastVersion());
+    }
+
+    /**
+     * Returns the last element of the specified version of this list, or null if this version is empty.
+     * @param version version of this list
+     * @return the last element of the specified version of this list, or null if this version is empty
+     */
+    public synchronized Object peekLast(int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        if (isEmpty(version))
+            return null;
+        return getTail(version).getObject(version);
+    }
+
+    /**
+     * Returns the last element of the current version of this list, or null if this list is empty.
+     * @return the last element of the current version of this list, or null if this list is empty
+     */
+    public Object peekLast() {
+        return peekLast(lastVersion());
     }
 
     /**
@@ -572,8 +1039,8 @@ public class PersistentLinkedList<E> implements List {
      * @param o element to search for
      * @return the index of the first occurrence of the specified element in this list, or -1 if this list does not contain the element
      */
-    public int indexOf(Object o, int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized int indexOf(Object o, int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
 
         int result = -1;
@@ -600,7 +1067,7 @@ public class PersistentLinkedList<E> implements List {
      */
     @Override
     public int indexOf(Object o) {
-        return indexOf(o, currentVersion);
+        return indexOf(o, lastVersion());
     }
 
     /**
@@ -608,21 +1075,17 @@ public class PersistentLinkedList<E> implements List {
      * @param o element to search for
      * @ the index of the last occurrence of the specified element in the specified version of this list, or -1 if the specified version of this list does not contain the element
      */
-    public int lastIndexOf(Object o, int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized int lastIndexOf(Object o, int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
-        int result = -1;
-        if (isEmpty(version)) {
-            return result;
-        }
-        PersistentListNode<E> current = versionedHeads.floorEntry(version).getValue();
-        for (int ind = 0; ind < size(version); ind++) {
-            if (current.getObject(version).equals(o)) {
-                result = ind;
+        PersistentListNode<E> current = getTail(version);
+        for (int ind = size(version) - 1; ind >= 0; ind--) {
+            if (Objects.equals(o, current.getObject(version))) {
+                return ind;
             }
-            current = current.getNext(version);
+            current = current.getPrev(version);
         }
-        return result;
+        return -1;
     }
 
     /**
@@ -632,93 +1095,24 @@ public class PersistentLinkedList<E> implements List {
      */
     @Override
     public int lastIndexOf(Object o) {
-        return lastIndexOf(o, currentVersion);
+        return lastIndexOf(o, lastVersion());
     }
 
     /**
      * Returns a list iterator over the elements in the specified version of this list (in proper sequence), starting at the specified position in the list.
      * The specified index indicates the first element that would be returned by an initial call to next.
      * An initial call to previous would return the element with the specified index minus one.
+     * If the specified version is the current one, the iterator also supports set, add and remove at its position.
+     * All modifications made through one iterator are committed as a single new version of this list.
      * @param index index of the first element to be returned from the list iterator (by a call to next)
      * @return a list iterator over the elements in the specified version of this list (in proper sequence), starting at the specified position in the list
      */
-    public ListIterator versionedListIterator(int version, int index) {
-        if (version < 0 || version > currentVersion)
+    public synchronized ListIterator versionedListIterator(int version, int index) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
-        int size = size(version);
-        if (index < 0 || index >= size)
+        if (index < 0 || index > size(version))
             throw new IndexOutOfBoundsException(Exceptions.LIST_INDEX_OUT_OF_BOUNDS);
-        return new ListIterator() {
-            int currIndex = index - 1;
-            int _version = version;
-            PersistentListNode currElement = versionedHeads.get(_version);
-
-            {
-                for (int i = 0; i < index; i++) {
-                    currElement = currElement.getNext(_version);
-                }
-            }
-
-
-            @Override
-            public boolean hasNext() {
-                if (currIndex < 0) return currElement != null;
-                return currElement.getNext(_version) != null;
-            }
-
-            @Override
-            public Object next() {
-                if (hasNext()) {
-                    if (currIndex >= 0)
-                        currElement = currElement.getNext(_version);
-                    currIndex++;
-                    return currElement.getObject(_version);
-                } else
-                    throw new NoSuchElementException(Exceptions.NO_SUCH_ELEMENT);
-            }
-
-            @Override
-            public boolean hasPrevious() {
-                if (currIndex >= size) return currElement != null;
-                return currElement.getPrev(_version) != null;
-            }
-
-            @Override
-            public Object previous() {
-                if (hasPrevious()) {
-                    if (currIndex < size)
-                        currElement = currElement.getPrev(_version);
-                    currIndex--;
-                    return currElement.getObject(_version);
-                } else
-                    throw new NoSuchElementException(Exceptions.NO_SUCH_ELEMENT);
-            }
-
-            @Override
-            public int nextIndex() {
-                return min(currIndex + 1, size);
-            }
-
-            @Override
-            public int previousIndex() {
-                return max(currIndex - 1, -1);
-            }
-
-            @Override
-            public void remove() {
-                throw new UnsupportedOperationException();
-            }
-
-            @Override
-            public void set(Object o) {
-                throw new UnsupportedOperationException();
-            }
-
-            @Override
-            public void add(Object o) {
-                throw new UnsupportedOperationException();
-            }
-        };
+        return new VersionedListIterator(version, index);
     }
 
     /**
@@ -735,7 +1129,7 @@ public class PersistentLinkedList<E> implements List {
      */
     @Override
     public ListIterator listIterator() {
-        return versionedListIterator(currentVersion, 0);
+        return versionedListIterator(lastVersion(), 0);
     }
 
     /**
@@ -747,49 +1141,435 @@ public class PersistentLinkedList<E> implements List {
      */
     @Override
     public ListIterator listIterator(int index) {
-        return versionedListIterator(currentVersion, index);
+        return versionedListIterator(lastVersion(), index);
     }
 
     /**
-     * Returns a view of the portion of the specified version of this list between the specified fromIndex, inclusive, and toIndex, exclusive.
+     * Returns a read-only view of the portion of the specified version of this list between the specified fromIndex, inclusive, and toIndex, exclusive.
      * (If fromIndex and toIndex are equal, the returned list is empty.)
+     * The view is created in constant time and reads the nodes of this list without copying them.
      * @param fromIndex low endpoint (inclusive) of the subList
      * @param toIndex high endpoint (exclusive) of the subList
      * @return a view of the specified range within the specified version of this list
      */
-    public List subList(int fromIndex, int toIndex, int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized VersionedSubList subList(int fromIndex, int toIndex, int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
         int size = size(version);
-        if (fromIndex < 0 || toIndex >= size || fromIndex > toIndex) {
+        if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
             throw new IndexOutOfBoundsException(Exceptions.LIST_INDEX_OUT_OF_BOUNDS);
         }
-
-        List<E> result = new ArrayList<E>();
-        PersistentListNode<E> current = versionedHeads.floorEntry(version).getValue();
-        for (int i = 0; i < toIndex; i++) {
-            if (i >= fromIndex && i < toIndex) {
-                result.add(current.getObject(version));
-            }
-            current = current.getNext(version);
-        }
-        return result;
+        return new VersionedSubList(fromIndex, toIndex, version);
     }
 
     /**
-     * Returns a view of the portion of the current version of this list between the specified fromIndex, inclusive, and toIndex, exclusive.
+     * Returns a read-only view of the portion of the current version of this list between the specified fromIndex, inclusive, and toIndex, exclusive.
      * (If fromIndex and toIndex are equal, the returned list is empty.)
      * @param fromIndex low endpoint (inclusive) of the subList
      * @param toIndex high endpoint (exclusive) of the subList
      * @return a view of the specified range within the current version of this list
      */
     @Override
-    public List subList(int fromIndex, int toIndex) {
-        return subList(fromIndex, toIndex, currentVersion);
+    public VersionedSubList subList(int fromIndex, int toIndex) {
+        return subList(fromIndex, toIndex, lastVersion());
     }
 
     @Override
     public Spliterator spliterator() {
         throw new UnsupportedOperationException();
     }
+
+    /**
+     * Leases the specified version of this list: its history is not reclaimed until the lease is closed.
+     * @param version version to lease
+     * @return lease of the version
+     */
+    public VersionLease acquire(int version) {
+        return leases.acquire(version, lastVersion());
+    }
+
+    /**
+     * Leases the current version of this list.
+     * @return lease of the current version
+     */
+    public VersionLease acquire() {
+        return acquire(lastVersion());
+    }
+
+    /**
+     * Removes the history older than the oldest leased version, or older than the current version if nothing is leased.
+     * Versions before it are no longer readable.
+     * Nodes unlinked before it become unreachable.
+     * @return number of removed changes
+     */
+    public synchronized int reclaim() {
+        int previous = leases.getOldestVersion();
+        int oldest = leases.advance(currentVersion);
+        if (oldest == previous)
+            return 0;
+        List<PersistentListNode<E>> nodes = getAllNodes();
+        int removed = Histories.prune(versionsLengths, oldest)
+                + Histories.prune(versionedHeads, oldest)
+                + Histories.prune(versionedTails, oldest);
+        for (PersistentListNode<E> node : nodes) {
+            removed += node.prune(oldest);
+        }
+        return removed;
+    }
+
+    /**
+     * Folds the specified range of versions into its last version: every node keeps only its last change in the range,
+     * nodes linked and unlinked inside the range become unreachable.
+     * Versions outside the range read as before, versions inside the range read as version fromVersion - 1.
+     * @param fromVersion first version of the range, newer than the oldest readable version
+     * @param toVersion last version of the range
+     * @return number of removed changes
+     */
+    public synchronized int squash(int fromVersion, int toVersion) {
+        if (fromVersion <= leases.getOldestVersion() || toVersion > currentVersion || fromVersion > toVersion)
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_SQUASH);
+                out.writeVarInt(fromVersion);
+                out.writeVarInt(toVersion);
+            });
+        }
+        List<PersistentListNode<E>> nodes = getAllNodes();
+        int removed = Histories.squash(versionsLengths, fromVersion, toVersion)
+                + Histories.squash(versionedHeads, fromVersion, toVersion)
+                + Histories.squash(versionedTails, fromVersion, toVersion);
+        for (PersistentListNode<E> node : nodes) {
+            removed += node.squash(fromVersion, toVersion);
+        }
+        return removed;
+    }
+
+    /**
+     * Appends an operation with an index and an element to the write-ahead log, if this list has one.
+     * Only the arguments the operation uses are written.
+     */
+    private void logOperation(int operation, int index, Object o) {
+        if (null == log)
+            return;
+        log.append(out -> {
+            out.writeByte(operation);
+            if (operation == LOG_SET || operation == LOG_ADD_AT || operation == LOG_REMOVE_AT || operation == LOG_SPLIT
+                    || operation == LOG_ITERATOR_SET || operation == LOG_ITERATOR_ADD || operation == LOG_ITERATOR_REMOVE) {
+                out.writeVarInt(index);
+            }
+            if (operation == LOG_ADD || operation == LOG_REMOVE_OBJECT || operation == LOG_SET || operation == LOG_ADD_AT
+                    || operation == LOG_ADD_FIRST || operation == LOG_ADD_LAST
+                    || operation == LOG_ITERATOR_SET || operation == LOG_ITERATOR_ADD) {
+                out.writeNullable((E) o, logCodec);
+            }
+        });
+    }
+
+    /**
+     * Appends an operation with an index and elements of a collection to the write-ahead log, if this list has one.
+     */
+    private void logCollection(int operation, int index, Collection c) {
+        if (null == log)
+            return;
+        log.append(out -> {
+            out.writeByte(operation);
+            out.writeVarInt(index);
+            out.writeVarInt(c.size());
+            for (Object o : c) {
+                out.writeNullable((E) o, logCodec);
+            }
+        });
+    }
+
+    /**
+     * Attaches this list to the specified clock: from now on the list is modified only inside transactions of the clock
+     * and its new versions get the numbers of the clock. Every version of the clock is readable,
+     * and the clock is moved forward if the list already has newer versions.
+     * @param clock clock to attach to
+     * @throws IllegalStateException if the list has a write-ahead log, which cannot hold aborted transactions
+     */
+    public synchronized void attachTo(VersionClock clock) {
+        if (null != log)
+            throw new IllegalStateException(Exceptions.LOGGED_CLOCK_STRUCTURE);
+        clock.attach(currentVersion);
+        this.clock = clock;
+    }
+
+    /**
+     * Creates the version of the next change and returns the previous current version.
+     * An attached list takes the version of the running transaction, so all its changes in the transaction share it.
+     */
+    private int beginVersion() {
+        int previous = currentVersion;
+        if (null == clock) {
+            currentVersion++;
+        } else {
+            currentVersion = clock.pendingVersion(this, () -> truncate(previous));
+        }
+        return previous;
+    }
+
+    /**
+     * Returns the newest version the calling thread may read: the current version, or for an attached list
+     * the version the clock shows to the thread, so changes of a transaction are not read by other threads before its commit.
+     */
+    private int lastVersion() {
+        return (null == clock) ? currentVersion : clock.readableVersion();
+    }
+
+    /**
+     * Discards all versions newer than the specified one, which becomes the current version.
+     * The numbers of the discarded versions are given to the next changes.
+     * Like {@link #squash(int, int)}, it visits every node reachable from any kept version.
+     * @param version version to roll back to
+     * @return number of removed changes
+     * @throws IllegalStateException if a discarded version is leased or the list is attached to a clock,
+     *                               whose versions are discarded only by aborting a transaction
+     */
+    public synchronized int rollbackTo(int version) {
+        if (version < leases.getOldestVersion() || version > currentVersion)
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        if (null != clock)
+            throw new IllegalStateException(Exceptions.CLOCK_ROLLBACK);
+        if (leases.newest(version) > version)
+            throw new IllegalStateException(Exceptions.LEASED_VERSIONS);
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_ROLLBACK);
+                out.writeVarInt(version);
+            });
+        }
+        return truncate(version);
+    }
+
+    /**
+     * Removes all changes newer than the specified version, which becomes the current one.
+     * Nodes created by the removed changes become unreachable.
+     * @return number of removed changes
+     */
+    private synchronized int truncate(int version) {
+        List<PersistentListNode<E>> nodes = getAllNodes();
+        int removed = Histories.truncate(versionsLengths, version)
+                + Histories.truncate(versionedHeads, version)
+                + Histories.truncate(versionedTails, version);
+        for (PersistentListNode<E> node : nodes) {
+            removed += node.truncate(version);
+        }
+        currentVersion = version;
+        return removed;
+    }
+
+    /**
+     * Repeats the operation of one record of the write-ahead log.
+     * Iterator modifications are repeated through one iterator per session, so they again share a single version.
+     */
+    private void replay(SnapshotInput in) throws IOException {
+        int operation = in.readByte();
+        if (operation == LOG_ADD_ALL || operation == LOG_RETAIN_ALL || operation == LOG_REMOVE_ALL || operation == LOG_REPLACE_ALL) {
+            int index = in.readVarInt();
+            int size = in.readVarInt();
+            List<E> c = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                c.add(in.readNullable(logCodec));
+            }
+            if (operation == LOG_ADD_ALL) {
+                addAll(index, c);
+            } else if (operation == LOG_RETAIN_ALL) {
+                retainAll(c);
+            } else if (operation == LOG_REMOVE_ALL) {
+                removeAll(c);
+            } else {
+                Iterator<E> result = c.iterator();
+                replaceAll(o -> result.next());
+            }
+            return;
+        }
+
+        switch (operation) {
+            case LOG_ADD:
+                add(in.readNullable(logCodec));
+                break;
+            case LOG_REMOVE_OBJECT:
+                remove(in.readNullable(logCodec));
+                break;
+            case LOG_CLEAR:
+                clear();
+                break;
+            case LOG_SET:
+                set(in.readVarInt(), in.readNullable(logCodec));
+                break;
+            case LOG_ADD_AT:
+                add(in.readVarInt(), in.readNullable(logCodec));
+                break;
+            case LOG_REMOVE_AT:
+                remove(in.readVarInt());
+                break;
+            case LOG_ADD_FIRST:
+                addFirst(in.readNullable(logCodec));
+                break;
+            case LOG_ADD_LAST:
+                addLast(in.readNullable(logCodec));
+                break;
+            case LOG_REMOVE_FIRST:
+                removeFirst();
+                break;
+            case LOG_REMOVE_LAST:
+                removeLast();
+                break;
+            case LOG_SQUASH:
+                squash(in.readVarInt(), in.readVarInt());
+                break;
+            case LOG_ROLLBACK:
+                rollbackTo(in.readVarInt());
+                break;
+            case LOG_SPLIT:
+                splitAt(in.readVarInt());
+                break;
+            case LOG_ITERATOR_BEGIN:
+                replayIterator = listIterator();
+                break;
+            case LOG_ITERATOR_SET:
+                moveReplayIterator(in.readVarInt());
+                replayIterator.next();
+                replayIterator.set(in.readNullable(logCodec));
+                break;
+            case LOG_ITERATOR_ADD:
+                moveReplayIterator(in.readVarInt());
+                replayIterator.add(in.readNullable(logCodec));
+                break;
+            case LOG_ITERATOR_REMOVE:
+                moveReplayIterator(in.readVarInt());
+                replayIterator.next();
+                replayIterator.remove();
+                break;
+            default:
+                throw new IOException(Exceptions.CORRUPTED_LOG);
+        }
+    }
+
+    private void moveReplayIterator(int index) throws IOException {
+        if (null == replayIterator)
+            throw new IOException(Exceptions.CORRUPTED_LOG);
+        while (replayIterator.nextIndex() < index) {
+            replayIterator.next();
+        }
+        while (replayIterator.nextIndex() > index) {
+            replayIterator.previous();
+        }
+    }
+
+    /**
+     * Returns all nodes of all versions of this list.
+     */
+    private List<PersistentListNode<E>> getAllNodes() {
+        Map<PersistentListNode<E>, Boolean> visited = new IdentityHashMap<>();
+        ArrayDeque<PersistentListNode<E>> queue = new ArrayDeque<>();
+        List<PersistentListNode<E>> nodes = new ArrayList<>();
+        for (PersistentListNode<E> node : versionedHeads.values()) {
+            if (null != node && null == visited.put(node, true)) {
+                queue.add(node);
+            }
+        }
+        while (!queue.isEmpty()) {
+            PersistentListNode<E> node = queue.poll();
+            nodes.add(node);
+            for (PersistentListNode<E> linked : node.getLinkedNodes()) {
+                if (null != linked && null == visited.put(linked, true)) {
+                    queue.add(linked);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Writes this list with its whole history to the specified channel in the binary snapshot format.
+     * The list is locked until the snapshot is written, {@link #exportSnapshotAsync} writes one version without blocking changes.
+     * @param channel channel to write to
+     * @param codec codec of the elements
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void writeSnapshot(WritableByteChannel channel, ValueCodec<E> codec) throws IOException {
+        List<PersistentListNode<E>> nodes = getAllNodes();
+        Map<PersistentListNode<E>, Integer> ids = new IdentityHashMap<>();
+        for (PersistentListNode<E> node : nodes) {
+            ids.put(node, ids.size() + 1);
+        }
+
+        SnapshotOutput out = new SnapshotOutput(channel);
+        out.writeHeader(SnapshotOutput.LIST);
+        out.writeVarInt(currentVersion);
+        out.writeVersionedInts(versionsLengths);
+        out.writeVarInt(nodes.size());
+        for (PersistentListNode<E> node : nodes) {
+            node.writeHistory(out, codec, ids);
+        }
+        PersistentListNode.writeLinks(out, versionedHeads, ids);
+        PersistentListNode.writeLinks(out, versionedTails, ids);
+        out.flush();
+    }
+
+    /**
+     * Writes the specified version of this list to the specified channel in a background thread.
+     * The image has the binary snapshot format with this version as its only version zero.
+     * The list may be modified meanwhile: the exporter holds the lock of the list only while it steps to the next node.
+     * @param version version to write
+     * @param channel channel to write to
+     * @param codec codec of the elements
+     * @return future completed when the image is written
+     */
+    public CompletableFuture<Void> exportSnapshotAsync(int version, WritableByteChannel channel, ValueCodec<E> codec) {
+        int size;
+        PersistentListNode<E> head;
+        synchronized (this) {
+            size = size(version);
+            head = getHead(version);
+        }
+        return SnapshotOutput.exportAsync(channel, out -> {
+            out.writeHeader(SnapshotOutput.LIST);
+            out.writeVarInt(0);
+            out.writeVersionedInt(size);
+            out.writeVarInt(size);
+            PersistentListNode<E> current = head;
+            for (int id = 1; id <= size; id++) {
+                E obj;
+                synchronized (this) {
+                    obj = current.getObject(version);
+                    current = current.getNext(version);
+                }
+                out.writeVersionedValue(obj, codec);
+                PersistentListNode.writeLink(out, id - 1);
+                PersistentListNode.writeLink(out, id == size ? 0 : id + 1);
+            }
+            PersistentListNode.writeLink(out, size == 0 ? 0 : 1);
+            PersistentListNode.writeLink(out, size);
+        });
+    }
+
+    /**
+     * Reads a list with its whole history written by {@link #writeSnapshot(WritableByteChannel, ValueCodec)}.
+     * @param channel channel to read from
+     * @param codec codec of the elements
+     * @return the list with the same versions as the written one
+     * @throws IOException if an I/O error occurs or the snapshot is corrupted
+     */
+    public static <E> PersistentLinkedList<E> readSnapshot(ReadableByteChannel channel, ValueCodec<E> codec) throws IOException {
+        SnapshotInput in = new SnapshotInput(channel);
+        in.readHeader(SnapshotOutput.LIST);
+        PersistentLinkedList<E> list = new PersistentLinkedList<>();
+        list.currentVersion = in.readVarInt();
+        list.versionsLengths = in.readVersionedInts();
+        int size = in.readCount();
+        List<PersistentListNode<E>> nodes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            nodes.add(new PersistentListNode<>());
+        }
+        for (PersistentListNode<E> node : nodes) {
+            node.readHistory(in, codec, nodes);
+        }
+        list.versionedHeads = PersistentListNode.readLinks(in, nodes);
+        list.versionedTails = PersistentListNode.readLinks(in, nodes);
+        return list;
+    }
 }
\ No newline at end of file
@@ -1,3 +1,7 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 
 public class PersistentListNode<E> {
@@ -7,15 +11,18 @@ public class PersistentListNode<E> {
     private TreeMap<Integer, PersistentListNode<E>> versionedNext;
 
     public PersistentListNode(E object, int version, PersistentListNode<E> prev, PersistentListNode<E> next) {
-        versionedData = new TreeMap<>();
-        versionedPrev = new TreeMap<>();
-        versionedNext = new TreeMap<>();
-
+        this();
         versionedData.put(version, object);
         versionedPrev.put(version, prev);
         versionedNext.put(version, next);
     }
 
+    PersistentListNode() {
+        versionedData = new TreeMap<>();
+        versionedPrev = new TreeMap<>();
+        versionedNext = new TreeMap<>();
+    }
+
     public PersistentListNode<E> getNext(int version) {
         return versionedNext.floorEntry(version).getValue();
     }
@@ -37,4 +44,96 @@ public class PersistentListNode<E> {
     public void setObject(int version, E obj) {
         versionedData.put(version, obj);
     }
+
+    /**
+     * Folds the history of this node in the specified range of versions into its last version.
+     * @return number of removed entries
+     */
+    int squash(int fromVersion, int toVersion) {
+        return Histories.squash(versionedData, fromVersion, toVersion)
+                + Histories.squash(versionedPrev, fromVersion, toVersion)
+                + Histories.squash(versionedNext, fromVersion, toVersion);
+    }
+
+    /**
+     * Removes the history of this node older than its state in the specified version.
+     * @return number of removed entries
+     */
+    int prune(int version) {
+        return Histories.prune(versionedData, version)
+                + Histories.prune(versionedPrev, version)
+                + Histories.prune(versionedNext, version);
+    }
+
+    /**
+     * Removes the history of this node newer than the specified version.
+     * @return number of removed entries
+     */
+    int truncate(int version) {
+        return Histories.truncate(versionedData, version)
+                + Histories.truncate(versionedPrev, version)
+                + Histories.truncate(versionedNext, version);
+    }
+
+    /**
+     * Returns all nodes this node has ever pointed to.
+     */
+    Iterable<PersistentListNode<E>> getLinkedNodes() {
+        List<PersistentListNode<E>> nodes = new ArrayList<>(versionedPrev.values());
+        nodes.addAll(versionedNext.values());
+        return nodes;
+    }
+
+    /**
+     * Writes the history of this node, links are written as ids of the nodes (0 for null).
+     */
+    void writeHistory(SnapshotOutput out, ValueCodec<E> codec, Map<PersistentListNode<E>, Integer> ids) throws IOException {
+        out.writeVersionedValues(versionedData, codec);
+        writeLinks(out, versionedPrev, ids);
+        writeLinks(out, versionedNext, ids);
+    }
+
+    /**
+     * Reads the history written by {@link #writeHistory(SnapshotOutput, ValueCodec, Map)} into this node.
+     * Node with id i is the element i - 1 of the specified list.
+     */
+    void readHistory(SnapshotInput in, ValueCodec<E> codec, List<PersistentListNode<E>> nodes) throws IOException {
+        versionedData = in.readVersionedValues(codec);
+        versionedPrev = readLinks(in, nodes);
+        versionedNext = readLinks(in, nodes);
+    }
+
+    static <E> void writeLinks(SnapshotOutput out, TreeMap<Integer, PersistentListNode<E>> links,
+                               Map<PersistentListNode<E>, Integer> ids) throws IOException {
+        out.writeVarInt(links.size());
+        int prevVersion = 0;
+        for (Map.Entry<Integer, PersistentListNode<E>> entry : links.entrySet()) {
+            out.writeVarInt(entry.getKey() - prevVersion);
+            out.writeVarInt(null == entry.getValue() ? 0 : ids.get(entry.getValue()));
+            prevVersion = entry.getKey();
+        }
+    }
+
+    /**
+     * Writes links of a single version zero to the node with the specified id, in the format of {@link #writeLinks}.
+     */
+    static void writeLink(SnapshotOutput out, int id) throws IOException {
+        out.writeVarInt(1);
+        out.writeVarInt(0);
+        out.writeVarInt(id);
+    }
+
+    static <E> TreeMap<Integer, PersistentListNode<E>> readLinks(SnapshotInput in, List<PersistentListNode<E>> nodes) throws IOException {
+        TreeMap<Integer, PersistentListNode<E>> links = new TreeMap<>();
+        int size = in.readCount();
+        int version = 0;
+        for (int i = 0; i < size; i++) {
+            version += in.readVarInt();
+            int id = in.readVarInt();
+            if (id < 0 || id > nodes.size())
+                throw new IOException(Exceptions.CORRUPTED_SNAPSHOT);
+            links.put(version, id == 0 ? null : nodes.get(id - 1));
+        }
+        return links;
+    }
 }
@@ -1,7 +1,15 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.stream.Stream;
 
 
 public class PersistentMap<K, V> implements Map {
@@ -33,10 +41,139 @@ public class PersistentMap<K, V> implements Map {
         }
     }
 
-    private int currentVersion = 0;
+    /**
+     * Sorted map over parallel lists of keys and values, used only to build a TreeMap by the TreeMap(SortedMap) constructor,
+     * which links the tree bottom-up in linear time instead of inserting the keys one by one.
+     */
+    private static class SortedEntries<K, T> extends AbstractMap<K, T> implements SortedMap<K, T> {
+        private final List<K> keys;
+        private final List<T> values;
+
+        SortedEntries(List<K> keys, List<T> values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        public Set<Entry<K, T>> entrySet() {
+            return new AbstractSet<Entry<K, T>>() {
+                @Override
+                public Iterator<Entry<K, T>> iterator() {
+                    return new Iterator<Entry<K, T>>() {
+                        private int index = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return index < keys.size();
+                        }
+
+                        @Override
+                        public Entry<K, T> next() {
+                            if (!hasNext())
+                                throw new NoSuchElementException(Exceptions.NO_SUCH_ELEMENT);
+                            Entry<K, T> next = new SimpleImmutableEntry<>(keys.get(index), values.get(index));
+                            index++;
+                            return next;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return keys.size();
+                }
+            };
+        }
+
+        @Override
+        public Comparator<? super K> comparator() {
+            return null;
+        }
+
+        @Override
+        public SortedMap<K, T> subMap(K fromKey, K toKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedMap<K, T> headMap(K toKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedMap<K, T> tailMap(K fromKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public K firstKey() {
+            return keys.get(0);
+        }
+
+        @Override
+        public K lastKey() {
+            return keys.get(keys.size() - 1);
+        }
+    }
+
+    /**
+     * Chooses the merged value of a key changed differently in both merged versions.
+     * @param <K> type of keys
+     * @param <V> type of values
+     */
+    @FunctionalInterface
+    public interface ConflictResolver<K, V> {
+        /**
+         * @param key key changed in both versions
+         * @param base value in the base version, or null if the key is absent
+         * @param first value in the first version, or null if the key is absent
+         * @param second value in the second version, or null if the key is absent
+         * @return merged value, or null to remove the key
+         */
+        V resolve(K key, V base, V first, V second);
+    }
+
+    private volatile int currentVersion = 0;
     private TreeMap<Integer, Integer> versionsLengths;
     private TreeMap<K, PersistentMapNode<V>> versionedData;
 
+    private static final int LOG_PUT = 0;
+    private static final int LOG_REMOVE = 1;
+    private static final int LOG_PUT_ALL = 2;
+    private static final int LOG_CLEAR = 3;
+    private static final int LOG_REPLACE_ALL = 4;
+    private static final int LOG_PUT_IF_ABSENT = 5;
+    private static final int LOG_REMOVE_VALUE = 6;
+    private static final int LOG_REPLACE_VALUE = 7;
+    private static final int LOG_REPLACE = 8;
+    private static final int LOG_COMPUTE_IF_ABSENT = 9;
+    private static final int LOG_COMPUTE_IF_PRESENT = 10;
+    private static final int LOG_COMPUTE = 11;
+    private static final int LOG_MERGE = 12;
+    private static final int LOG_PUT_ALL_SORTED = 13;
+    private static final int LOG_SQUASH = 14;
+    private static final int LOG_PUT_AT = 15;
+    private static final int LOG_REMOVE_AT = 16;
+    private static final int LOG_MERGE_VERSIONS = 17;
+    private static final int LOG_ROLLBACK = 18;
+    private WriteAheadLog log = null;
+    private ValueCodec<K> logKeyCodec = null;
+    private ValueCodec<V> logValueCodec = null;
+    private int spilledBeforeVersion = 0;
+    // spill the history is moved to automatically every autoSpillVersions versions, if any
+    private HistorySpill autoSpill = null;
+    private ValueCodec<V> autoSpillCodec = null;
+    private int autoSpillVersions = 0;
+    private IOException autoSpillFailure = null;
+    private final VersionLeases leases = new VersionLeases();
+    private VersionClock clock = null;
+    private VersionTree versionTree = null;
+    // map this one was forked from, read under its lock since it may be changed meanwhile
+    private PersistentMap<K, V> forkedFrom = null;
+    private int forkVersion = 0;
+    // version -> keys changed in it, so merges visit only changed keys
+    private TreeMap<Integer, List<K>> changedKeys = new TreeMap<>();
+
     /**
      * Constructs an empty persistent map.
      */
@@ -46,15 +183,60 @@ public class PersistentMap<K, V> implements Map {
         versionsLengths.put(0, 0);
     }
 
+    /**
+     * Constructs a persistent map whose version 0 contains the specified entries.
+     * The keys must be in strictly ascending order, the key directory is then built in linear time.
+     * @param sortedEntries entries in ascending order of keys
+     * @throws IllegalArgumentException if the keys are not in ascending order
+     */
+    public PersistentMap(Iterator<? extends Map.Entry<K, V>> sortedEntries) {
+        this();
+        putAllSorted(checkSorted(sortedEntries), -1, 0);
+    }
+
+    /**
+     * Constructs a persistent map whose version 0 contains the entries of the specified stream.
+     * @param sortedEntries stream of entries in ascending order of keys
+     * @throws IllegalArgumentException if the keys are not in ascending order
+     */
+    public PersistentMap(Stream<? extends Map.Entry<K, V>> sortedEntries) {
+        this(sortedEntries.iterator());
+    }
+
+    /**
+     * Constructs a persistent map which appends every modification to the specified write-ahead log.
+     * If the log is not empty, it is replayed first, so the map gets exactly the versions it had before.
+     * Operations with functions are logged with the values they computed.
+     * @param log write-ahead log of this map
+     * @param keyCodec codec of the keys
+     * @param valueCodec codec of the values
+     * @throws IOException if an I/O error occurs or the log is corrupted
+     */
+    public PersistentMap(WriteAheadLog log, ValueCodec<K> keyCodec, ValueCodec<V> valueCodec) throws IOException {
+        this();
+        logKeyCodec = keyCodec;
+        logValueCodec = valueCodec;
+        log.replay(this::replay);
+        this.log = log;
+    }
+
+    /**
+     * Returns the number of the current version of this map.
+     * @return number of the current version of this map
+     */
+    public int getCurrentVersion() {
+        return currentVersion;
+    }
+
     /**
      * Returns the number of elements in the specified version of this map.
      * @param version version of this map
      * @return number of elements in the specified version of this map.
      */
-    public int size(int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized int size(int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
-        return versionsLengths.floorEntry(version).getValue();
+        return length(version);
     }
 
     /**
@@ -63,7 +245,7 @@ public class PersistentMap<K, V> implements Map {
      */
     @Override
     public int size() {
-        return size(currentVersion);
+        return size(lastVersion());
     }
 
     /**
@@ -71,8 +253,8 @@ public class PersistentMap<K, V> implements Map {
      * @param version version of this map
      * @return true if the specified version of this map contains no elements, false otherwise
      */
-    public boolean isEmpty(int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized boolean isEmpty(int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
         return size(version) == 0;
     }
@@ -83,7 +265,7 @@ public class PersistentMap<K, V> implements Map {
      */
     @Override
     public boolean isEmpty() {
-        return isEmpty(currentVersion);
+        return isEmpty(lastVersion());
     }
 
     /**
@@ -94,13 +276,13 @@ public class PersistentMap<K, V> implements Map {
      * @param version version of this map
      * @return true if this version of map contains a mapping for the specified key
      */
-    public boolean containsKey(Object key, int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized boolean containsKey(Object key, int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
 
-        if (versionedData.containsKey(key)) {
-            PersistentMapNode node = versionedData.get(key);
-            if (!node.isRemoved(version)) {
+        PersistentMapNode node = node(key);
+        if (null != node) {
+            if (!node.isRemoved(version, versionTree)) {
                 return true;
             }
         }
@@ -116,7 +298,7 @@ public class PersistentMap<K, V> implements Map {
      */
     @Override
     public boolean containsKey(Object key) {
-        return containsKey(key, currentVersion);
+        return containsKey(key, lastVersion());
     }
 
     /**
@@ -127,16 +309,17 @@ public class PersistentMap<K, V> implements Map {
      * @param version version of this map
      * @return if this version of map maps one or more keys to the specified value
      */
-    public boolean containsValue(Object value, int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized boolean containsValue(Object value, int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
-        for (PersistentMapNode<V> node: versionedData.values()) {
-            if (!node.isRemoved(version)) {
+        for (Map.Entry<K, PersistentMapNode<V>> entry : nodes()) {
+            PersistentMapNode<V> node = entry.getValue();
+            if (!node.isRemoved(version, versionTree)) {
                 if (null == value) {
-                    if (node.getObject(version) == null)
+                    if (node.getObject(version, versionTree) == null)
                         return true;
                 } else {
-                    if (value.equals(node.getObject(version)))
+                    if (value.equals(node.getObject(version, versionTree)))
                         return true;
                 }
             }
@@ -153,7 +336,7 @@ public class PersistentMap<K, V> implements Map {
      */
     @Override
     public boolean containsValue(Object value) {
-        return containsValue(value, currentVersion);
+        return containsValue(value, lastVersion());
     }
 
     /**
@@ -164,16 +347,10 @@ public class PersistentMap<K, V> implements Map {
      * @param version version of this map
      * @return the value to which the specified key is mapped, or null if this version of map contains no mapping for the key
      */
-    public Object get(Object key, int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized Object get(Object key, int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
-        if (!versionedData.containsKey(key))
-            return null;
-        PersistentMapNode node = versionedData.get(key);
-        if (!node.isRemoved(version)) {
-            return node.getObject(version);
-        }
-        return null;
+        return valueOrNull(key, version, versionTree);
     }
 
     /**
@@ -185,7 +362,55 @@ public class PersistentMap<K, V> implements Map {
      */
     @Override
     public Object get(Object key) {
-        return get(key, currentVersion);
+        return get(key, lastVersion());
+    }
+
+    /**
+     * Reads the values of the specified keys in the specified version of this map into the array, in the order of the keys.
+     * The version is checked once for the whole batch, and every key is looked up once, with no allocation per key.
+     * A key without a mapping in the version gets null.
+     * @param keys keys whose values are to be read
+     * @param version version of this map
+     * @param values array to fill, at least as long as the number of keys
+     */
+    public synchronized void getAll(Collection<?> keys, int version, V[] values) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        if (values.length < keys.size())
+            throw new IllegalArgumentException(Exceptions.SHORT_OUTPUT_ARRAY);
+        int i = 0;
+        for (Object key : keys) {
+            values[i++] = valueOrNull(key, version, versionTree);
+        }
+    }
+
+    /**
+     * Returns the changes of the specified key with versions in the specified range, oldest first.
+     * The changes are read directly from the history of the key, so the cost depends only on their number.
+     * In a map with branches only the changes on the way to the last version of the range are returned.
+     * @param key key whose history is to be returned
+     * @param fromVersion first version of the range
+     * @param toVersion last version of the range
+     * @return the changes of the key in the range
+     */
+    public synchronized List<VersionedValue<V>> history(Object key, int fromVersion, int toVersion) {
+        if (fromVersion < leases.getOldestVersion() || toVersion > lastVersion() || fromVersion > toVersion)
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        List<VersionedValue<V>> history = new ArrayList<>();
+        PersistentMapNode<V> node = node(key);
+        if (null != node) {
+            node.addHistory(fromVersion, toVersion, versionTree, history);
+        }
+        return history;
+    }
+
+    /**
+     * Returns all changes of the specified key in the readable versions, oldest first.
+     * @param key key whose history is to be returned
+     * @return the changes of the key
+     */
+    public List<VersionedValue<V>> history(Object key) {
+        return history(key, leases.getOldestVersion(), lastVersion());
     }
 
     /**
@@ -197,71 +422,182 @@ public class PersistentMap<K, V> implements Map {
      * @return the previous value associated with key, or null if there was no mapping for key.
      */
     @Override
-    public Object put(Object key, Object value) {
+    public synchronized Object put(Object key, Object value) {
+        PersistentMapNode node = ownNode(key);
+        logOperation(LOG_PUT, key, value, null);
         Object oldValue = null;
-        PersistentMapNode node = versionedData.get(key);
-        currentVersion++;
+        int previous = beginVersion();
         if (null == node) {
             versionedData.put((K)key, new PersistentMapNode<V>((V)value, currentVersion));
-            int currSize = versionsLengths.floorEntry(currentVersion).getValue();
+            int currSize = length(currentVersion);
             versionsLengths.put(currentVersion, currSize + 1);
         } else {
-            oldValue = node.getObject(currentVersion - 1);
+            oldValue = node.getObject(previous, versionTree);
             node.setObject(currentVersion, value);
         }
+        recordChange(currentVersion, key);
         return oldValue;
     }
 
     @Override
-    public Object remove(Object key) {
+    public synchronized Object remove(Object key) {
+        PersistentMapNode node = ownNode(key);
+        logOperation(LOG_REMOVE, key, null, null);
         Object oldValue = null;
-        PersistentMapNode node = versionedData.get(key);
-        currentVersion++;
-        if (null != node) {
-            oldValue = node.getObject(currentVersion - 1);
+        int previous = beginVersion();
+        if (null != node && !node.isRemoved(previous, versionTree)) {
+            oldValue = node.getObject(previous, versionTree);
             node.removeObject(currentVersion);
-            int currSize = versionsLengths.floorEntry(currentVersion).getValue();
+            recordChange(currentVersion, key);
+            int currSize = length(currentVersion);
             versionsLengths.put(currentVersion, currSize - 1);
         }
         return oldValue;
     }
 
     @Override
-    public void putAll(Map m) {
-        currentVersion++;
+    public synchronized void putAll(Map m) {
+        for (Object entry : m.entrySet()) {
+            checkKey(((Map.Entry<?, ?>) entry).getKey());
+        }
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_PUT_ALL);
+                out.writeVarInt(m.size());
+                for (Object entry : m.entrySet()) {
+                    logKeyCodec.write(((Map.Entry<K, V>) entry).getKey(), out);
+                    out.writeNullable(((Map.Entry<K, V>) entry).getValue(), logValueCodec);
+                }
+            });
+        }
+        beginVersion();
         for (Object entry : m.entrySet()) {
             K key = ((Map.Entry<K, V>) entry).getKey();
             V value = ((Map.Entry<K, V>) entry).getValue();
 
-            PersistentMapNode node = versionedData.get(key);
+            PersistentMapNode node = ownNode(key);
             if (null == node) {
                 versionedData.put(key, new PersistentMapNode<V>(value, currentVersion));
             } else {
                 node.setObject(currentVersion, value);
             }
+            recordChange(currentVersion, key);
+        }
+    }
+
+    /**
+     * Copies all of the specified mappings to a new version of this map.
+     * The keys must be in strictly ascending order: the new entries are merged with the existing keys
+     * and the key directory is rebuilt in time linear in the number of all keys.
+     * @param sortedEntries entries in ascending order of keys
+     * @throws IllegalArgumentException if the keys are not in ascending order
+     */
+    public synchronized void putAllSorted(Iterator<? extends Map.Entry<K, V>> sortedEntries) {
+        List<Map.Entry<K, V>> entries = checkSorted(sortedEntries);
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_PUT_ALL_SORTED);
+                out.writeVarInt(entries.size());
+                for (Map.Entry<K, V> entry : entries) {
+                    logKeyCodec.write(entry.getKey(), out);
+                    out.writeNullable(entry.getValue(), logValueCodec);
+                }
+            });
+        }
+        int previous = beginVersion();
+        putAllSorted(entries, previous, currentVersion);
+    }
+
+    /**
+     * Reads the entries and checks that their keys are in strictly ascending order,
+     * before anything is changed, so unsorted entries leave this map as it was.
+     */
+    private List<Map.Entry<K, V>> checkSorted(Iterator<? extends Map.Entry<K, V>> sortedEntries) {
+        List<Map.Entry<K, V>> entries = new ArrayList<>();
+        K prevKey = null;
+        while (sortedEntries.hasNext()) {
+            Map.Entry<K, V> entry = sortedEntries.next();
+            K key = entry.getKey();
+            if (null == prevKey) {
+                checkKey(key);
+            } else if (((Comparable<? super K>) prevKey).compareTo(key) >= 0) {
+                throw new IllegalArgumentException(Exceptions.UNSORTED_KEYS);
+            }
+            prevKey = key;
+            entries.add(entry);
         }
+        return entries;
+    }
+
+    /**
+     * Puts the sorted entries in the specified version by merging them with the existing keys
+     * and building a new key directory from the merged sorted lists.
+     * The previous version, or -1 for an empty map, is the state the entries are merged with.
+     */
+    private void putAllSorted(List<Map.Entry<K, V>> sortedEntries, int previousVersion, int version) {
+        ownAllNodes();
+        List<K> keys = new ArrayList<>(versionedData.size());
+        List<PersistentMapNode<V>> nodes = new ArrayList<>(versionedData.size());
+        Iterator<Map.Entry<K, PersistentMapNode<V>>> existing = versionedData.entrySet().iterator();
+        Map.Entry<K, PersistentMapNode<V>> current = existing.hasNext() ? existing.next() : null;
+        int size = (previousVersion < 0) ? 0 : length(previousVersion);
+        for (Map.Entry<K, V> entry : sortedEntries) {
+            K key = entry.getKey();
+            while (null != current && ((Comparable<? super K>) current.getKey()).compareTo(key) < 0) {
+                keys.add(current.getKey());
+                nodes.add(current.getValue());
+                current = existing.hasNext() ? existing.next() : null;
+            }
+            if (null != current && ((Comparable<? super K>) current.getKey()).compareTo(key) == 0) {
+                if (current.getValue().isRemoved(previousVersion, versionTree)) {
+                    size++;
+                }
+                current.getValue().setObject(version, entry.getValue());
+                recordChange(version, key);
+                keys.add(key);
+                nodes.add(current.getValue());
+                current = existing.hasNext() ? existing.next() : null;
+            } else {
+                keys.add(key);
+                nodes.add(new PersistentMapNode<>(entry.getValue(), version));
+                recordChange(version, key);
+                size++;
+            }
+        }
+        while (null != current) {
+            keys.add(current.getKey());
+            nodes.add(current.getValue());
+            current = existing.hasNext() ? existing.next() : null;
+        }
+
+        versionedData = new TreeMap<>(new SortedEntries<>(keys, nodes));
+        versionsLengths.put(version, size);
     }
 
     @Override
-    public void clear() {
-        currentVersion++;
+    public synchronized void clear() {
+        if (null != log) {
+            log.append(out -> out.writeByte(LOG_CLEAR));
+        }
+        int previous = beginVersion();
+        ownAllNodes();
         for (Map.Entry<K, PersistentMapNode<V>> entry : versionedData.entrySet()) {
-            if (!entry.getValue().isRemoved(currentVersion - 1)) {
+            if (!entry.getValue().isRemoved(previous, versionTree)) {
                 entry.getValue().removeObject(currentVersion);
+                recordChange(currentVersion, entry.getKey());
             }
         }
         versionsLengths.put(currentVersion, 0);
     }
 
-    public Set keySet(int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized Set keySet(int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
-        Set<K> keys = versionedData.keySet();
-        Set<K> resultKeys = new HashSet<>(versionedData.keySet());
+        Set<K> resultKeys = new HashSet<>();
 
-        for (K key : keys) {
-            if (versionedData.get(key).isRemoved(version)) {
-                resultKeys.remove(key);
+        for (Map.Entry<K, PersistentMapNode<V>> entry : nodes()) {
+            if (!entry.getValue().isRemoved(version, versionTree)) {
+                resultKeys.add(entry.getKey());
             }
         }
         return resultKeys;
@@ -269,17 +605,17 @@ public class PersistentMap<K, V> implements Map {
 
     @Override
     public Set keySet() {
-        return keySet(currentVersion);
+        return keySet(lastVersion());
     }
 
-    public Collection values(int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized Collection values(int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
 
         LinkedList<V> result = new LinkedList<V>();
-        for (Map.Entry<K, PersistentMapNode<V>> entry : versionedData.entrySet()) {
-            if (!entry.getValue().isRemoved(version)) {
-                result.add(entry.getValue().getObject(version));
+        for (Map.Entry<K, PersistentMapNode<V>> entry : nodes()) {
+            if (!entry.getValue().isRemoved(version, versionTree)) {
+                result.add(entry.getValue().getObject(version, versionTree));
             }
         }
         return result;
@@ -287,17 +623,17 @@ public class PersistentMap<K, V> implements Map {
 
     @Override
     public Collection values() {
-        return values(currentVersion);
+        return values(lastVersion());
     }
 
-    public Set<Entry> entrySet(int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized Set<Entry> entrySet(int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
         Set<Entry> result = new HashSet<>();
 
-        for (Map.Entry<K, PersistentMapNode<V>> entry : versionedData.entrySet()) {
-            if (!entry.getValue().isRemoved(version)) {
-                result.add(new PersistentMapEntry<>(entry.getKey(), entry.getValue().getObject(version)));
+        for (Map.Entry<K, PersistentMapNode<V>> entry : nodes()) {
+            if (!entry.getValue().isRemoved(version, versionTree)) {
+                result.add(new PersistentMapEntry<>(entry.getKey(), entry.getValue().getObject(version, versionTree)));
             }
         }
         return result;
@@ -305,68 +641,101 @@ public class PersistentMap<K, V> implements Map {
 
     @Override
     public Set<Entry> entrySet() {
-        return entrySet(currentVersion);
+        return entrySet(lastVersion());
     }
 
-    public Object getOrDefault(Object key, Object defaultValue, int version) {
-        if (version < 0 || version > currentVersion)
+    public synchronized Object getOrDefault(Object key, Object defaultValue, int version) {
+        if (version < leases.getOldestVersion() || version > lastVersion())
             throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
 
-        if (versionedData.get(key) != null && !versionedData.get(key).isRemoved(version)) {
-            return versionedData.get(key).getObject(version);
+        PersistentMapNode node = node(key);
+        if (null != node && !node.isRemoved(version, versionTree)) {
+            return node.getObject(version, versionTree);
         }
         return defaultValue;
     }
 
     @Override
     public Object getOrDefault(Object key, Object defaultValue) {
-        return getOrDefault(key, defaultValue, currentVersion);
+        return getOrDefault(key, defaultValue, lastVersion());
     }
 
     @Override
     public void forEach(BiConsumer action) {
-        for (Map.Entry<K, PersistentMapNode<V>> entry : versionedData.entrySet()) {
-            if (!entry.getValue().isRemoved(currentVersion)) {
-                action.accept(entry.getKey(), entry.getValue().getObject(currentVersion));
+        List<K> keys = new ArrayList<>();
+        List<V> values = new ArrayList<>();
+        synchronized (this) {
+            int version = lastVersion();
+            for (Map.Entry<K, PersistentMapNode<V>> entry : nodes()) {
+                if (!entry.getValue().isRemoved(version, versionTree)) {
+                    keys.add(entry.getKey());
+                    values.add(entry.getValue().getObject(version, versionTree));
+                }
             }
         }
+        // the action runs without the lock, so it may change this map
+        for (int i = 0; i < keys.size(); i++) {
+            action.accept(keys.get(i), values.get(i));
+        }
     }
 
     @Override
-    public void replaceAll(BiFunction function) {
+    public synchronized void replaceAll(BiFunction function) {
+        ownAllNodes();
+        List<Map.Entry<K, PersistentMapNode<V>>> present = new ArrayList<>();
+        List<V> results = new ArrayList<>();
         for (Map.Entry<K, PersistentMapNode<V>> entry : versionedData.entrySet()) {
-            if (!entry.getValue().isRemoved(currentVersion)) {
-                entry.getValue().setObject(currentVersion + 1, (V)function.apply(entry.getKey(), entry.getValue().getObject(currentVersion)));
+            if (!entry.getValue().isRemoved(currentVersion, versionTree)) {
+                present.add(entry);
+                results.add((V)function.apply(entry.getKey(), entry.getValue().getObject(currentVersion, versionTree)));
             }
         }
-        currentVersion++;
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_REPLACE_ALL);
+                out.writeVarInt(results.size());
+                for (V value : results) {
+                    out.writeNullable(value, logValueCodec);
+                }
+            });
+        }
+        beginVersion();
+        for (int i = 0; i < present.size(); i++) {
+            present.get(i).getValue().setObject(currentVersion, results.get(i));
+            recordChange(currentVersion, present.get(i).getKey());
+        }
     }
 
     @Override
-    public Object putIfAbsent(Object key, Object value) {
+    public synchronized Object putIfAbsent(Object key, Object value) {
+        PersistentMapNode node = ownNode(key);
+        logOperation(LOG_PUT_IF_ABSENT, key, value, null);
         Object oldValue = null;
-        PersistentMapNode node = versionedData.get(key);
-        currentVersion++;
+        int previous = beginVersion();
         if (null == node) {
             versionedData.put((K)key, new PersistentMapNode<V>((V)value, currentVersion));
+            recordChange(currentVersion, key);
         } else {
-            oldValue = node.getObject(currentVersion - 1);
+            oldValue = node.getObject(previous, versionTree);
             if (null == oldValue) {
                 node.setObject(currentVersion, value);
+                recordChange(currentVersion, key);
             }
         }
         return oldValue;
     }
 
     @Override
-    public boolean remove(Object key, Object value)
+    public synchronized boolean remove(Object key, Object value)
     {
-        PersistentMapNode node = versionedData.get(key);
+        PersistentMapNode node = ownNode(key);
         int curSize = size();
 
-        if (null != node && node.getObject(currentVersion).equals(value) && !node.isRemoved(currentVersion)) {
-            currentVersion++;
+        if (null != node && node.getObject(currentVersion, versionTree).equals(value) && !node.isRemoved(currentVersion, versionTree)) {
+            logOperation(LOG_REMOVE_VALUE, key, value, null);
+            beginVersion();
             node.removeObject(currentVersion);
+            recordChange(currentVersion, key);
             versionsLengths.put(currentVersion, curSize - 1);
             return true;
         }
@@ -374,88 +743,103 @@ public class PersistentMap<K, V> implements Map {
     }
 
     @Override
-    public boolean replace(Object key, Object oldValue, Object newValue) {
-        PersistentMapNode node = versionedData.get(key);
+    public synchronized boolean replace(Object key, Object oldValue, Object newValue) {
+        PersistentMapNode node = ownNode(key);
 
-        if (null != node && null != node.getObject(currentVersion) &&
-                !node.isRemoved(currentVersion) && node.getObject(currentVersion).equals(oldValue)) {
-            currentVersion++;
+        if (null != node && null != node.getObject(currentVersion, versionTree) &&
+                !node.isRemoved(currentVersion, versionTree) && node.getObject(currentVersion, versionTree).equals(oldValue)) {
+            logOperation(LOG_REPLACE_VALUE, key, oldValue, newValue);
+            beginVersion();
             node.setObject(currentVersion, newValue);
+            recordChange(currentVersion, key);
             return true;
         }
         return false;
     }
 
     @Override
-    public Object replace(Object key, Object value) {
+    public synchronized Object replace(Object key, Object value) {
         Object oldValue = null;
-        PersistentMapNode node = versionedData.get(key);
+        PersistentMapNode node = ownNode(key);
 
-        if (null != node && !node.isRemoved(currentVersion)) {
-            oldValue = node.getObject(currentVersion);
-            currentVersion++;
+        if (null != node && !node.isRemoved(currentVersion, versionTree)) {
+            oldValue = node.getObject(currentVersion, versionTree);
+            logOperation(LOG_REPLACE, key, value, null);
+            beginVersion();
             node.setObject(currentVersion, value);
+            recordChange(currentVersion, key);
         }
         return oldValue;
     }
 
     @Override
-    public Object computeIfAbsent(Object key, Function mappingFunction) {
-        PersistentMapNode node = versionedData.get(key);
+    public synchronized Object computeIfAbsent(Object key, Function mappingFunction) {
+        PersistentMapNode node = ownNode(key);
 
-        if (null != node && !node.isRemoved(currentVersion) && node.getObject(currentVersion) != null) {
-            return node.getObject(currentVersion);
+        if (null != node && !node.isRemoved(currentVersion, versionTree) && node.getObject(currentVersion, versionTree) != null) {
+            return node.getObject(currentVersion, versionTree);
         }
 
         Object value = mappingFunction.apply(key);
         if (null != value) {
-            currentVersion++;
+            logOperation(LOG_COMPUTE_IF_ABSENT, key, value, null);
+            beginVersion();
             if (null == node) {
                 versionedData.put((K)key, new PersistentMapNode<V>((V)value, currentVersion));
             } else {
                 node.setObject(currentVersion, value);
             }
+            recordChange(currentVersion, key);
         }
 
         return value;
     }
 
     @Override
-    public Object computeIfPresent(Object key, BiFunction remappingFunction) {
-        PersistentMapNode node = versionedData.get(key);
+    public synchronized Object computeIfPresent(Object key, BiFunction remappingFunction) {
+        PersistentMapNode node = ownNode(key);
 
-        if (null == node || node.isRemoved(currentVersion) || node.getObject(currentVersion) == null) {
+        if (null == node || node.isRemoved(currentVersion, versionTree) || node.getObject(currentVersion, versionTree) == null) {
             return null;
         }
 
-        Object oldValue = node.getObject(currentVersion);
+        Object oldValue = node.getObject(currentVersion, versionTree);
         Object value = remappingFunction.apply(key, oldValue);
-        currentVersion++;
+        logOperation(LOG_COMPUTE_IF_PRESENT, key, value, null);
+        beginVersion();
         if (null != value) {
             node.setObject(currentVersion, value);
         } else {
             node.removeObject(currentVersion);
         }
+        recordChange(currentVersion, key);
 
         return value;
     }
 
     @Override
-    public Object compute(Object key, BiFunction remappingFunction) {
-        PersistentMapNode node = versionedData.get(key);
+    public synchronized Object compute(Object key, BiFunction remappingFunction) {
+        PersistentMapNode node = ownNode(key);
 
         Object oldValue = null;
-        if (null != node && !node.isRemoved(currentVersion)) {
-            oldValue = node.getObject(currentVersion);
+        if (null != node && !node.isRemoved(currentVersion, versionTree)) {
+            oldValue = node.getObject(currentVersion, versionTree);
         }
 
         Object value = remappingFunction.apply(key, oldValue);
-        currentVersion++;
+        logOperation(LOG_COMPUTE, key, value, null);
+        beginVersion();
         if (null != value) {
-            node.setObject(currentVersion, value);
+            if (null == node) {
+                versionedData.put((K)key, new PersistentMapNode<V>((V)value, currentVersion));
+            } else {
+                node.setObject(currentVersion, value);
+            }
+            recordChange(currentVersion, key);
         } else {
             if (null != oldValue) {
                 node.removeObject(currentVersion);
+                recordChange(currentVersion, key);
             }
         }
 
@@ -463,24 +847,1008 @@ public class PersistentMap<K, V> implements Map {
     }
 
     @Override
-    public Object merge(Object key, Object value, BiFunction remappingFunction) {
-        PersistentMapNode node = versionedData.get(key);
-        if (null == node || node.isRemoved(currentVersion) || node.getObject(currentVersion) == null) {
-            currentVersion++;
-            node.setObject(currentVersion, value);
+    public synchronized Object merge(Object key, Object value, BiFunction remappingFunction) {
+        PersistentMapNode node = ownNode(key);
+        if (null == node || node.isRemoved(currentVersion, versionTree) || node.getObject(currentVersion, versionTree) == null) {
+            logOperation(LOG_MERGE, key, value, value);
+            beginVersion();
+            if (null == node) {
+                versionedData.put((K)key, new PersistentMapNode<V>((V)value, currentVersion));
+            } else {
+                node.setObject(currentVersion, value);
+            }
+            recordChange(currentVersion, key);
             return value;
         }
 
-        Object oldValue = node.getObject(currentVersion);
+        Object oldValue = node.getObject(currentVersion, versionTree);
         Object newValue = remappingFunction.apply(key, oldValue);
-        currentVersion++;
+        logOperation(LOG_MERGE, key, value, newValue);
+        beginVersion();
 
         if (null != newValue) {
             node.setObject(currentVersion, newValue);
         } else {
             node.removeObject(currentVersion);
         }
+        recordChange(currentVersion, key);
 
         return newValue;
     }
+
+    /**
+     * Appends an operation with a key and up to two values to the write-ahead log, if this map has one.
+     */
+    private void logOperation(int operation, Object key, Object value, Object secondValue) {
+        if (null == log)
+            return;
+        log.append(out -> {
+            out.writeByte(operation);
+            logKeyCodec.write((K) key, out);
+            if (operation != LOG_REMOVE) {
+                out.writeNullable((V) value, logValueCodec);
+            }
+            if (operation == LOG_REPLACE_VALUE || operation == LOG_MERGE) {
+                out.writeNullable((V) secondValue, logValueCodec);
+            }
+        });
+    }
+
+    /**
+     * Associates the specified value with the specified key in a new version built on the specified version of this map.
+     * The new version's parent is the specified one, so versions built on it before stay unchanged
+     * and the map gets a branch. Every version of every branch stays readable.
+     * @param key key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @param baseVersion version to build the new version on
+     * @return number of the new version, which becomes the current one
+     */
+    public synchronized int putAt(Object key, Object value, int baseVersion) {
+        int size = size(baseVersion);
+        PersistentMapNode node = node(key);
+        boolean isAbsent = null == node || node.isRemoved(baseVersion, versionTree);
+        checkBranchable();
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_PUT_AT);
+                out.writeVarInt(baseVersion);
+                logKeyCodec.write((K) key, out);
+                out.writeNullable((V) value, logValueCodec);
+            });
+        }
+        beginBranch(baseVersion);
+        if (null == node) {
+            versionedData.put((K)key, new PersistentMapNode<V>((V)value, currentVersion));
+        } else {
+            node.setObject(currentVersion, value);
+        }
+        recordChange(currentVersion, key);
+        if (isAbsent) {
+            versionsLengths.put(currentVersion, size + 1);
+        }
+        return currentVersion;
+    }
+
+    /**
+     * Removes the mapping for the key in a new version built on the specified version of this map.
+     * @param key key whose mapping is to be removed
+     * @param baseVersion version to build the new version on
+     * @return number of the new version, which becomes the current one
+     */
+    public synchronized int removeAt(Object key, int baseVersion) {
+        int size = size(baseVersion);
+        PersistentMapNode node = node(key);
+        boolean isPresent = null != node && !node.isRemoved(baseVersion, versionTree);
+        checkBranchable();
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_REMOVE_AT);
+                out.writeVarInt(baseVersion);
+                logKeyCodec.write((K) key, out);
+            });
+        }
+        beginBranch(baseVersion);
+        if (isPresent) {
+            node.removeObject(currentVersion);
+            recordChange(currentVersion, key);
+            versionsLengths.put(currentVersion, size - 1);
+        }
+        return currentVersion;
+    }
+
+    /**
+     * Merges two versions evolved from a common base version into a new version built on the first one.
+     * Only the keys changed on the way from the base to either version are visited, so the cost depends on the number
+     * of changes and not on the size of the map. A key changed in one version only gets its value from that version,
+     * a key changed differently in both versions gets the value chosen by the resolver.
+     * A null value is treated as an absent key.
+     * @param baseVersion common base version
+     * @param firstVersion first version, the parent of the merged version
+     * @param secondVersion second version
+     * @param resolver chooses the values of keys changed differently in both versions
+     * @return number of the merged version, which becomes the current one
+     * @throws IllegalArgumentException if the base version is not an ancestor of both versions
+     * @throws IllegalStateException if the first version is not the current one and this map cannot get a branch
+     */
+    public synchronized int merge(int baseVersion, int firstVersion, int secondVersion, ConflictResolver<K, V> resolver) {
+        for (int version : new int[]{baseVersion, firstVersion, secondVersion}) {
+            if (version < leases.getOldestVersion() || version > currentVersion)
+                throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        }
+        if (!isAncestor(baseVersion, firstVersion) || !isAncestor(baseVersion, secondVersion))
+            throw new IllegalArgumentException(Exceptions.NOT_AN_ANCESTOR);
+        Set<K> keys = new LinkedHashSet<>();
+        collectChanges(baseVersion, firstVersion, keys);
+        collectChanges(baseVersion, secondVersion, keys);
+
+        Map<K, V> merged = new LinkedHashMap<>();
+        Map<K, V> resolved = new LinkedHashMap<>();
+        for (K key : keys) {
+            V base = (V) get(key, baseVersion);
+            V first = (V) get(key, firstVersion);
+            V second = (V) get(key, secondVersion);
+            if (Objects.equals(first, second) || Objects.equals(second, base))
+                continue;
+            if (Objects.equals(first, base)) {
+                merged.put(key, second);
+            } else {
+                V value = resolver.resolve(key, base, first, second);
+                resolved.put(key, value);
+                if (!Objects.equals(value, first)) {
+                    merged.put(key, value);
+                }
+            }
+        }
+
+        if (firstVersion != currentVersion) {
+            checkBranchable();
+        }
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_MERGE_VERSIONS);
+                out.writeVarInt(baseVersion);
+                out.writeVarInt(firstVersion);
+                out.writeVarInt(secondVersion);
+                out.writeVarInt(resolved.size());
+                for (Map.Entry<K, V> entry : resolved.entrySet()) {
+                    logKeyCodec.write(entry.getKey(), out);
+                    out.writeNullable(entry.getValue(), logValueCodec);
+                }
+            });
+        }
+        if (firstVersion == currentVersion) {
+            beginVersion();
+        } else {
+            beginBranch(firstVersion);
+        }
+        int size = length(firstVersion);
+        for (Map.Entry<K, V> entry : merged.entrySet()) {
+            K key = entry.getKey();
+            PersistentMapNode<V> node = ownNode(key);
+            boolean isPresent = null != node && !node.isRemoved(firstVersion, versionTree);
+            if (null != entry.getValue()) {
+                if (null == node) {
+                    versionedData.put(key, new PersistentMapNode<>(entry.getValue(), currentVersion));
+                } else {
+                    node.setObject(currentVersion, entry.getValue());
+                }
+                size += isPresent ? 0 : 1;
+            } else if (isPresent) {
+                node.removeObject(currentVersion);
+                size--;
+            }
+            recordChange(currentVersion, key);
+        }
+        versionsLengths.put(currentVersion, size);
+        return currentVersion;
+    }
+
+    /**
+     * Returns a new map whose versions up to the specified one are the versions of this map.
+     * The fork shares the history of this map instead of copying it: every key it did not change itself
+     * is read from this map, so the fork is created in constant time and allocates only for its own changes.
+     * Later changes of this map and of the fork do not affect each other.
+     * The fork reads this map at the specified version and older ones, so their history must be kept while the fork is used:
+     * lease the version with {@link #acquire(int)} and do not squash ranges of versions up to it.
+     * @param version version to fork at
+     * @return the new map, whose current version is the specified one
+     * @throws IllegalStateException if this map has branches
+     */
+    public synchronized PersistentMap<K, V> forkAt(int version) {
+        if (version < leases.getOldestVersion() || version > currentVersion)
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        if (null != versionTree)
+            throw new IllegalStateException(Exceptions.BRANCHED_HISTORY);
+        PersistentMap<K, V> fork = new PersistentMap<>();
+        fork.versionsLengths.clear();
+        fork.forkedFrom = this;
+        fork.forkVersion = version;
+        fork.currentVersion = version;
+        return fork;
+    }
+
+    /**
+     * Returns the version the specified version was built on.
+     * @param version version of this map
+     * @return the parent version, or -1 for version zero
+     */
+    public int getParentVersion(int version) {
+        if (version < 0 || version > lastVersion())
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        synchronized (this) {
+            return (null == versionTree) ? version - 1 : versionTree.getParent(version);
+        }
+    }
+
+    /**
+     * Attaches this map to the specified clock: from now on the map is modified only inside transactions of the clock
+     * and its new versions get the numbers of the clock. Every version of the clock is readable,
+     * and the clock is moved forward if the map already has newer versions.
+     * @param clock clock to attach to
+     * @throws IllegalStateException if the map has a write-ahead log, which cannot hold aborted transactions,
+     * or branches, which the clock cannot number, or is a fork
+     */
+    public synchronized void attachTo(VersionClock clock) {
+        if (null != log)
+            throw new IllegalStateException(Exceptions.LOGGED_CLOCK_STRUCTURE);
+        checkLinear();
+        clock.attach(currentVersion);
+        this.clock = clock;
+    }
+
+    /**
+     * Creates the version of the next change and returns the previous current version.
+     * An attached map takes the version of the running transaction, so all its changes in the transaction share it.
+     */
+    private int beginVersion() {
+        if (null != autoSpill) {
+            spillIfDue();
+        }
+        int previous = currentVersion;
+        if (null != versionTree) {
+            currentVersion = versionTree.add(previous);
+        } else if (null == clock) {
+            currentVersion++;
+        } else {
+            currentVersion = clock.pendingVersion(this, () -> truncate(previous));
+        }
+        return previous;
+    }
+
+    /**
+     * Throws if a branch cannot be created: the clock cannot number branches,
+     * and neither a fork nor a spilled history can follow them.
+     */
+    private void checkBranchable() {
+        if (null != clock)
+            throw new IllegalStateException(Exceptions.BRANCHED_HISTORY);
+        if (null != forkedFrom)
+            throw new IllegalStateException(Exceptions.FORKED_HISTORY);
+        if (spilledBeforeVersion > 0 || null != autoSpill)
+            throw new IllegalStateException(Exceptions.SPILLED_VERSIONS);
+    }
+
+    /**
+     * Creates a new version whose parent is the specified one. The version tree is created by the first branch.
+     * The caller checks with {@link #checkBranchable()} that the branch can be created.
+     */
+    private void beginBranch(int baseVersion) {
+        if (null == versionTree) {
+            if (baseVersion == currentVersion) {
+                currentVersion++;
+                return;
+            }
+            versionTree = new VersionTree(currentVersion);
+        }
+        currentVersion = versionTree.add(baseVersion);
+    }
+
+    /**
+     * Throws if this map has branches or is a fork: the operation treats versions as one line held by this map.
+     */
+    private void checkLinear() {
+        if (null != versionTree)
+            throw new IllegalStateException(Exceptions.BRANCHED_HISTORY);
+        if (null != forkedFrom)
+            throw new IllegalStateException(Exceptions.FORKED_HISTORY);
+    }
+
+    /**
+     * Remembers that the specified key was changed in the specified version.
+     */
+    private void recordChange(int version, Object key) {
+        changedKeys.computeIfAbsent(version, v -> new ArrayList<>(1)).add((K) key);
+    }
+
+    /**
+     * Remembers the versions of the history of the specified key newer than the specified version.
+     */
+    private void recordHistory(K key, PersistentMapNode<V> node, int afterVersion) {
+        for (int version : node.versionsAfter(afterVersion)) {
+            recordChange(version, key);
+        }
+    }
+
+    /**
+     * Adds the keys changed on the way from the base version to the specified one.
+     * A fork reads the changes up to its fork version from the map it was forked from.
+     */
+    private void collectChanges(int baseVersion, int version, Set<K> keys) {
+        if (null != versionTree) {
+            for (int v = version; v > baseVersion; v = versionTree.getParent(v)) {
+                keys.addAll(changedKeys.getOrDefault(v, Collections.emptyList()));
+            }
+            return;
+        }
+        for (List<K> changed : changedKeys.subMap(baseVersion, false, version, true).values()) {
+            keys.addAll(changed);
+        }
+        if (null != forkedFrom && baseVersion < forkVersion) {
+            synchronized (forkedFrom) {
+                forkedFrom.collectChanges(baseVersion, Math.min(version, forkVersion), keys);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the first version is the second one or one of the versions it was built on.
+     */
+    private boolean isAncestor(int ancestor, int version) {
+        if (null == versionTree)
+            return ancestor <= version;
+        return versionTree.ancestorAtMost(version, ancestor) == ancestor;
+    }
+
+    /**
+     * Returns the node of the specified key, or null if there is none.
+     * A fork returns a node of the map it was forked from for a key it did not change: the node reads its history
+     * up to the fork version and is not added to the fork.
+     */
+    private PersistentMapNode<V> node(Object key) {
+        PersistentMapNode<V> node = versionedData.get(key);
+        if (null != node || null == forkedFrom)
+            return node;
+        PersistentMapNode<V> shared;
+        synchronized (forkedFrom) {
+            shared = forkedFrom.node(key);
+        }
+        return (null == shared) ? null : new PersistentMapNode<>(shared, forkVersion, forkedFrom);
+    }
+
+    /**
+     * Returns the value of the specified key in the specified version, or null if there is none.
+     * A fork reads a key it did not change directly from the node of the map it was forked from,
+     * at the fork version at most, without creating a node for it.
+     */
+    private V valueOrNull(Object key, int version, VersionTree tree) {
+        PersistentMapNode<V> node = versionedData.get(key);
+        if (null != node)
+            return node.getObjectOrNull(version, tree);
+        if (null == forkedFrom)
+            return null;
+        synchronized (forkedFrom) {
+            return forkedFrom.valueOrNull(key, Math.min(version, forkVersion), null);
+        }
+    }
+
+    /**
+     * Checks that the specified key can be stored in this map before its change is logged:
+     * looking it up throws for a null key and for a key which cannot be compared with the keys of the map.
+     */
+    private void checkKey(Object key) {
+        versionedData.get(key);
+        if (null != forkedFrom) {
+            synchronized (forkedFrom) {
+                forkedFrom.checkKey(key);
+            }
+        }
+    }
+
+    /**
+     * Returns the node of the specified key to be changed, or null if there is none.
+     * A node read from the map this fork was forked from is added to the fork, so its changes stay in the fork.
+     */
+    private PersistentMapNode<V> ownNode(Object key) {
+        PersistentMapNode<V> node = node(key);
+        if (null != node && null != forkedFrom && !versionedData.containsKey(key)) {
+            versionedData.put((K) key, node);
+        }
+        return node;
+    }
+
+    /**
+     * Adds the nodes of all keys of the map this fork was forked from to the fork, before an operation changing every key.
+     */
+    private void ownAllNodes() {
+        if (null == forkedFrom)
+            return;
+        List<Map.Entry<K, PersistentMapNode<V>>> shared = new ArrayList<>();
+        for (Map.Entry<K, PersistentMapNode<V>> entry : nodes()) {
+            if (!versionedData.containsKey(entry.getKey())) {
+                shared.add(entry);
+            }
+        }
+        for (Map.Entry<K, PersistentMapNode<V>> entry : shared) {
+            versionedData.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns the node with the least key greater than the specified one (or the first node at all, if the key is null),
+     * looking at the keys of the map this fork was forked from too.
+     */
+    private Map.Entry<K, PersistentMapNode<V>> higherNode(K key) {
+        Map.Entry<K, PersistentMapNode<V>> own = (null == key) ? versionedData.firstEntry() : versionedData.higherEntry(key);
+        if (null == forkedFrom)
+            return own;
+        Map.Entry<K, PersistentMapNode<V>> shared;
+        synchronized (forkedFrom) {
+            shared = forkedFrom.higherNode(key);
+        }
+        if (null == shared || (null != own && ((Comparable<? super K>) own.getKey()).compareTo(shared.getKey()) <= 0))
+            return own;
+        return new AbstractMap.SimpleImmutableEntry<>(shared.getKey(), new PersistentMapNode<>(shared.getValue(), forkVersion, forkedFrom));
+    }
+
+    /**
+     * Returns the nodes of all keys in ascending order, including the keys a fork reads from the map it was forked from.
+     */
+    private Iterable<Map.Entry<K, PersistentMapNode<V>>> nodes() {
+        if (null == forkedFrom)
+            return versionedData.entrySet();
+        return () -> new Iterator<Map.Entry<K, PersistentMapNode<V>>>() {
+            private Map.Entry<K, PersistentMapNode<V>> next = higherNode(null);
+
+            @Override
+            public boolean hasNext() {
+                return null != next;
+            }
+
+            @Override
+            public Map.Entry<K, PersistentMapNode<V>> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException(Exceptions.NO_SUCH_ELEMENT);
+                Map.Entry<K, PersistentMapNode<V>> current = next;
+                next = higherNode(current.getKey());
+                return current;
+            }
+        };
+    }
+
+    /**
+     * Returns the size of the specified version, reading the map this one was forked from if it was not changed since.
+     */
+    private int length(int version) {
+        Map.Entry<Integer, Integer> entry = floorEntry(versionsLengths, version);
+        if (null != entry)
+            return entry.getValue();
+        synchronized (forkedFrom) {
+            return forkedFrom.length(Math.min(version, forkVersion));
+        }
+    }
+
+    /**
+     * Returns the last change in the history not newer than the specified version on its branch.
+     */
+    private <T> Map.Entry<Integer, T> floorEntry(TreeMap<Integer, T> history, int version) {
+        return (null == versionTree) ? history.floorEntry(version) : versionTree.floorEntry(history, version);
+    }
+
+    /**
+     * Returns the newest version the calling thread may read: the current version, or for an attached map
+     * the version the clock shows to the thread, so changes of a transaction are not read by other threads before its commit.
+     */
+    private int lastVersion() {
+        return (null == clock) ? currentVersion : clock.readableVersion();
+    }
+
+    /**
+     * Discards all versions newer than the specified one, which becomes the current version.
+     * Only the keys changed in the discarded versions are visited, so the cost depends on the number of discarded changes
+     * and not on the size of the map. The numbers of the discarded versions are given to the next changes.
+     * Versions of all branches newer than the specified one are discarded too.
+     * @param version version to roll back to
+     * @return number of removed changes
+     * @throws IllegalArgumentException if the version is older than the end of the spilled part of the history
+     * @throws IllegalStateException if a discarded version is leased or the map is attached to a clock,
+     *                               whose versions are discarded only by aborting a transaction
+     */
+    public synchronized int rollbackTo(int version) {
+        if (version < leases.getOldestVersion() || version > currentVersion)
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        if (version < spilledBeforeVersion)
+            throw new IllegalArgumentException(Exceptions.SPILLED_VERSIONS);
+        if (null != clock)
+            throw new IllegalStateException(Exceptions.CLOCK_ROLLBACK);
+        if (leases.newest(version) > version)
+            throw new IllegalStateException(Exceptions.LEASED_VERSIONS);
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_ROLLBACK);
+                out.writeVarInt(version);
+            });
+        }
+        return truncate(version);
+    }
+
+    /**
+     * Removes all changes newer than the specified version, which becomes the current one.
+     * Keys created by the removed changes are removed too.
+     * @return number of removed changes
+     */
+    private synchronized int truncate(int version) {
+        int removed = Histories.truncate(versionsLengths, version);
+        NavigableMap<Integer, List<K>> discarded = changedKeys.tailMap(version, false);
+        for (List<K> keys : discarded.values()) {
+            for (K key : keys) {
+                PersistentMapNode<V> node = versionedData.get(key);
+                if (null == node)
+                    continue;
+                removed += node.truncate(version);
+                if (!node.hasHistory()) {
+                    versionedData.remove(key);
+                }
+            }
+        }
+        discarded.clear();
+        if (null != versionTree) {
+            versionTree.truncate(version);
+        }
+        if (null != forkedFrom) {
+            forkVersion = Math.min(forkVersion, version);
+        }
+        currentVersion = version;
+        return removed;
+    }
+
+    /**
+     * Repeats the operation of one record of the write-ahead log.
+     * Functions are replaced by constant ones returning the logged results.
+     */
+    private void replay(SnapshotInput in) throws IOException {
+        int operation = in.readByte();
+        switch (operation) {
+            case LOG_CLEAR:
+                clear();
+                return;
+            case LOG_SQUASH:
+                squash(in.readVarInt(), in.readVarInt());
+                return;
+            case LOG_ROLLBACK:
+                rollbackTo(in.readVarInt());
+                return;
+            case LOG_PUT_AT: {
+                int baseVersion = in.readVarInt();
+                putAt(logKeyCodec.read(in), in.readNullable(logValueCodec), baseVersion);
+                return;
+            }
+            case LOG_MERGE_VERSIONS: {
+                int baseVersion = in.readVarInt();
+                int firstVersion = in.readVarInt();
+                int secondVersion = in.readVarInt();
+                int size = in.readVarInt();
+                Map<K, V> resolved = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    resolved.put(logKeyCodec.read(in), in.readNullable(logValueCodec));
+                }
+                merge(baseVersion, firstVersion, secondVersion, (key, base, first, second) -> resolved.get(key));
+                return;
+            }
+            case LOG_REMOVE_AT: {
+                int baseVersion = in.readVarInt();
+                removeAt(logKeyCodec.read(in), baseVersion);
+                return;
+            }
+            case LOG_PUT_ALL: {
+                int size = in.readVarInt();
+                Map<K, V> m = new LinkedHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    m.put(logKeyCodec.read(in), in.readNullable(logValueCodec));
+                }
+                putAll(m);
+                return;
+            }
+            case LOG_PUT_ALL_SORTED: {
+                int size = in.readVarInt();
+                List<Map.Entry<K, V>> entries = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(logKeyCodec.read(in), in.readNullable(logValueCodec)));
+                }
+                putAllSorted(entries.iterator());
+                return;
+            }
+            case LOG_REPLACE_ALL: {
+                int size = in.readVarInt();
+                List<V> results = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    results.add(in.readNullable(logValueCodec));
+                }
+                Iterator<V> result = results.iterator();
+                replaceAll((k, v) -> result.next());
+                return;
+            }
+        }
+
+        K key = logKeyCodec.read(in);
+        V value = (operation == LOG_REMOVE) ? null : in.readNullable(logValueCodec);
+        switch (operation) {
+            case LOG_PUT:
+                put(key, value);
+                break;
+            case LOG_REMOVE:
+                remove(key);
+                break;
+            case LOG_PUT_IF_ABSENT:
+                putIfAbsent(key, value);
+                break;
+            case LOG_REMOVE_VALUE:
+                remove(key, value);
+                break;
+            case LOG_REPLACE_VALUE:
+                replace(key, value, in.readNullable(logValueCodec));
+                break;
+            case LOG_REPLACE:
+                replace(key, value);
+                break;
+            case LOG_COMPUTE_IF_ABSENT:
+                computeIfAbsent(key, k -> value);
+                break;
+            case LOG_COMPUTE_IF_PRESENT:
+                computeIfPresent(key, (k, v) -> value);
+                break;
+            case LOG_COMPUTE:
+                compute(key, (k, v) -> value);
+                break;
+            case LOG_MERGE: {
+                V result = in.readNullable(logValueCodec);
+                merge(key, value, (k, v) -> result);
+                break;
+            }
+            default:
+                throw new IOException(Exceptions.CORRUPTED_LOG);
+        }
+    }
+
+    /**
+     * Writes this map with its whole history to the specified channel in the binary snapshot format.
+     * The map is locked until the snapshot is written, {@link #exportSnapshotAsync} writes one version without blocking changes.
+     * @param channel channel to write to
+     * @param keyCodec codec of the keys
+     * @param valueCodec codec of the values
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalStateException if the map has branches, which the format cannot hold, or is a fork
+     */
+    public synchronized void writeSnapshot(WritableByteChannel channel, ValueCodec<K> keyCodec, ValueCodec<V> valueCodec) throws IOException {
+        checkLinear();
+        SnapshotOutput out = new SnapshotOutput(channel);
+        out.writeHeader(SnapshotOutput.MAP);
+        out.writeVarInt(currentVersion);
+        out.writeVersionedInts(versionsLengths);
+        out.writeVarInt(versionedData.size());
+        for (Map.Entry<K, PersistentMapNode<V>> entry : versionedData.entrySet()) {
+            keyCodec.write(entry.getKey(), out);
+            entry.getValue().writeHistory(out, valueCodec);
+        }
+        out.flush();
+    }
+
+    /**
+     * Leases the specified version of this map: its history is not reclaimed until the lease is closed.
+     * @param version version to lease
+     * @return lease of the version
+     */
+    public VersionLease acquire(int version) {
+        return leases.acquire(version, lastVersion());
+    }
+
+    /**
+     * Leases the current version of this map.
+     * @return lease of the current version
+     */
+    public VersionLease acquire() {
+        return acquire(lastVersion());
+    }
+
+    /**
+     * Removes the history older than the oldest leased version, or older than the current version if nothing is leased.
+     * Versions before it are no longer readable.
+     * Keys removed before it are dropped completely. The history of a map with branches is never reclaimed.
+     * @return number of removed changes
+     */
+    public synchronized int reclaim() {
+        if (null != versionTree)
+            return 0;
+        int previous = leases.getOldestVersion();
+        int oldest = leases.advance(currentVersion);
+        if (oldest == previous)
+            return 0;
+        int removed = Histories.prune(versionsLengths, oldest);
+        changedKeys.headMap(oldest, true).clear();
+        Iterator<PersistentMapNode<V>> nodes = versionedData.values().iterator();
+        while (nodes.hasNext()) {
+            PersistentMapNode<V> node = nodes.next();
+            removed += node.prune(oldest, oldest >= spilledBeforeVersion);
+            if (node.isRemovedSince(oldest)) {
+                nodes.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Folds the specified range of versions into its last version: every key keeps only its last change in the range.
+     * Versions outside the range read as before, versions inside the range read as version fromVersion - 1.
+     * @param fromVersion first version of the range, newer than the oldest readable version
+     * @param toVersion last version of the range
+     * @return number of removed changes
+     * @throws IllegalArgumentException if the range begins before the spilled part of the history ends
+     * @throws IllegalStateException if the map has branches or is a fork
+     */
+    public synchronized int squash(int fromVersion, int toVersion) {
+        if (fromVersion <= leases.getOldestVersion() || toVersion > currentVersion || fromVersion > toVersion)
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        if (fromVersion < spilledBeforeVersion)
+            throw new IllegalArgumentException(Exceptions.SPILLED_VERSIONS);
+        checkLinear();
+        if (null != log) {
+            log.append(out -> {
+                out.writeByte(LOG_SQUASH);
+                out.writeVarInt(fromVersion);
+                out.writeVarInt(toVersion);
+            });
+        }
+        int removed = Histories.squash(versionsLengths, fromVersion, toVersion);
+        NavigableMap<Integer, List<K>> squashed = changedKeys.subMap(fromVersion, true, toVersion, true);
+        if (!squashed.isEmpty()) {
+            List<K> keys = new ArrayList<>();
+            for (List<K> changed : squashed.values()) {
+                keys.addAll(changed);
+            }
+            squashed.clear();
+            changedKeys.put(toVersion, keys);
+        }
+        for (PersistentMapNode<V> node : versionedData.values()) {
+            removed += node.squash(fromVersion, toVersion);
+        }
+        return removed;
+    }
+
+    /**
+     * Moves the history of every key older than its state in the specified version to the specified spill.
+     * Spilled values are read back from the spill when an old version is requested.
+     * @param spill spill to move the history to
+     * @param valueCodec codec of the values
+     * @param beforeVersion version whose values stay in memory with all newer ones
+     * @return number of spilled values
+     * @throws IOException if an I/O error occurs or the last automatic spill failed
+     * @throws IllegalStateException if the map has branches or is a fork
+     */
+    public synchronized int spillHistory(HistorySpill spill, ValueCodec<V> valueCodec, int beforeVersion) throws IOException {
+        if (null != autoSpillFailure) {
+            IOException failure = autoSpillFailure;
+            autoSpillFailure = null;
+            throw failure;
+        }
+        if (beforeVersion < leases.getOldestVersion() || beforeVersion > currentVersion)
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        checkLinear();
+        spilledBeforeVersion = Math.max(spilledBeforeVersion, beforeVersion);
+        return PersistentMapNode.spill(versionedData.values(), spill, valueCodec, beforeVersion);
+    }
+
+    /**
+     * Moves the history to the specified spill automatically while the map is changed: whenever the current version
+     * gets twice the specified number of versions ahead of the end of the spilled part, the values older than the last
+     * that many versions are spilled as by {@link #spillHistory}, so between one and two times that many versions
+     * stay in memory. A failed automatic spill leaves the history in memory, stops the automatic spilling
+     * and is thrown by the next call of {@link #spillHistory}.
+     * @param spill spill to move the history to
+     * @param valueCodec codec of the values
+     * @param versions number of the newest versions kept in memory
+     * @throws IllegalArgumentException if the number of versions is not positive
+     * @throws IllegalStateException if the map has branches or is a fork
+     */
+    public synchronized void spillHistoryEvery(HistorySpill spill, ValueCodec<V> valueCodec, int versions) {
+        if (versions <= 0)
+            throw new IllegalArgumentException(Exceptions.NON_POSITIVE_INTERVAL);
+        checkLinear();
+        autoSpill = spill;
+        autoSpillCodec = valueCodec;
+        autoSpillVersions = versions;
+    }
+
+    /**
+     * Spills the history if the current version got far enough ahead of the spilled part.
+     */
+    private void spillIfDue() {
+        int beforeVersion = Math.max(currentVersion - autoSpillVersions, leases.getOldestVersion());
+        if (beforeVersion - spilledBeforeVersion < autoSpillVersions)
+            return;
+        try {
+            spillHistory(autoSpill, autoSpillCodec, beforeVersion);
+        } catch (IOException e) {
+            autoSpillFailure = e;
+            autoSpill = null;
+        }
+    }
+
+    /**
+     * Writes the specified version of this map to the specified channel in a background thread.
+     * The image has the binary snapshot format with this version as its only version zero.
+     * The map may be modified meanwhile: the exporter holds the lock of the map only while it reads one key.
+     * Keys added later have no values in this version, so they are skipped.
+     * @param version version to write
+     * @param channel channel to write to
+     * @param keyCodec codec of the keys
+     * @param valueCodec codec of the values
+     * @return future completed when the image is written
+     */
+    public CompletableFuture<Void> exportSnapshotAsync(int version, WritableByteChannel channel, ValueCodec<K> keyCodec,
+                                                       ValueCodec<V> valueCodec) {
+        synchronized (this) {
+            if (version < leases.getOldestVersion() || version > lastVersion())
+                throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        }
+        return SnapshotOutput.exportAsync(channel, out -> {
+            int size = 0;
+            for (Map.Entry<K, V> entry = nextEntry(null, version); null != entry; entry = nextEntry(entry.getKey(), version)) {
+                size++;
+            }
+            out.writeHeader(SnapshotOutput.MAP);
+            out.writeVarInt(0);
+            out.writeVersionedInt(size);
+            out.writeVarInt(size);
+            for (Map.Entry<K, V> entry = nextEntry(null, version); null != entry; entry = nextEntry(entry.getKey(), version)) {
+                keyCodec.write(entry.getKey(), out);
+                PersistentMapNode<V> node = new PersistentMapNode<>(entry.getValue(), 0);
+                node.writeHistory(out, valueCodec);
+            }
+        });
+    }
+
+    /**
+     * Returns the first mapping of the specified version with a key greater than the specified one (or the first mapping at all,
+     * if the key is null), holding the lock of this map only for the lookup.
+     */
+    private synchronized Map.Entry<K, V> nextEntry(K key, int version) {
+        Map.Entry<K, PersistentMapNode<V>> entry = higherNode(key);
+        while (null != entry && entry.getValue().isRemoved(version, versionTree)) {
+            entry = higherNode(entry.getKey());
+        }
+        return (null == entry) ? null : new PersistentMapEntry<>(entry.getKey(), entry.getValue().getObject(version, versionTree));
+    }
+
+    /**
+     * Reads a map with its whole history written by {@link #writeSnapshot(WritableByteChannel, ValueCodec, ValueCodec)}.
+     * @param channel channel to read from
+     * @param keyCodec codec of the keys
+     * @param valueCodec codec of the values
+     * @return the map with the same versions as the written one
+     * @throws IOException if an I/O error occurs or the snapshot is corrupted
+     */
+    public static <K, V> PersistentMap<K, V> readSnapshot(ReadableByteChannel channel, ValueCodec<K> keyCodec,
+                                                          ValueCodec<V> valueCodec) throws IOException {
+        return readSnapshot(new SnapshotInput(channel), keyCodec, valueCodec);
+    }
+
+    /**
+     * Reads a map with its whole history written by {@link #writeSnapshot(WritableByteChannel, ValueCodec, ValueCodec)}
+     * or {@link #exportSnapshotAsync(int, WritableByteChannel, ValueCodec, ValueCodec)} to the specified file.
+     * Files smaller than 2 GB are memory-mapped and decoded without copying into intermediate buffers.
+     * @param path file to read
+     * @param keyCodec codec of the keys
+     * @param valueCodec codec of the values
+     * @return the map with the same versions as the written one
+     * @throws IOException if an I/O error occurs or the snapshot is corrupted
+     */
+    public static <K, V> PersistentMap<K, V> readSnapshot(Path path, ValueCodec<K> keyCodec,
+                                                          ValueCodec<V> valueCodec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                return readSnapshot(channel, keyCodec, valueCodec);
+            SnapshotInput in = new SnapshotInput(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            return readSnapshot(in, keyCodec, valueCodec);
+        }
+    }
+
+    /**
+     * Reads a snapshot. The keys of a snapshot are sorted, so the key directory is built bottom-up.
+     */
+    private static <K, V> PersistentMap<K, V> readSnapshot(SnapshotInput in, ValueCodec<K> keyCodec,
+                                                           ValueCodec<V> valueCodec) throws IOException {
+        in.readHeader(SnapshotOutput.MAP);
+        PersistentMap<K, V> map = new PersistentMap<>();
+        map.currentVersion = in.readVarInt();
+        map.versionsLengths = in.readVersionedInts();
+        int size = in.readCount();
+        // not sized by the count: a corrupted count of a stream is detected only when the stream ends
+        List<K> keys = new ArrayList<>();
+        List<PersistentMapNode<V>> nodes = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            K key = keyCodec.read(in);
+            if (i > 0 && ((Comparable<? super K>) keys.get(i - 1)).compareTo(key) >= 0)
+                throw new IOException(Exceptions.CORRUPTED_SNAPSHOT);
+            PersistentMapNode<V> node = new PersistentMapNode<>();
+            node.readHistory(in, valueCodec);
+            map.recordHistory(key, node, 0);
+            keys.add(key);
+            nodes.add(node);
+        }
+        map.versionedData = new TreeMap<>(new SortedEntries<>(keys, nodes));
+        return map;
+    }
+
+    /**
+     * Writes the versions of this map newer than the first specified version and not newer than the second one.
+     * Only the keys changed in these versions are written. The map is locked while it is written,
+     * so the checkpoint holds exactly the specified range even if other threads change the map.
+     * @throws IllegalArgumentException if the last version was discarded
+     */
+    synchronized void writeCheckpoint(WritableByteChannel channel, int afterVersion, int lastVersion,
+                                      ValueCodec<K> keyCodec, ValueCodec<V> valueCodec) throws IOException {
+        checkLinear();
+        if (lastVersion > currentVersion)
+            throw new IllegalArgumentException(Exceptions.BROKEN_CHECKPOINT_CHAIN);
+        SnapshotOutput out = new SnapshotOutput(channel);
+        out.writeHeader(SnapshotOutput.MAP_CHECKPOINT);
+        out.writeSignedVarInt(afterVersion);
+        out.writeVarInt(lastVersion);
+        out.writeVersionedInts(versionsLengths, afterVersion, lastVersion);
+        List<Map.Entry<K, PersistentMapNode<V>>> changed = new ArrayList<>();
+        if (afterVersion >= leases.getOldestVersion()) {
+            Set<K> keys = new LinkedHashSet<>();
+            for (List<K> versionKeys : changedKeys.subMap(afterVersion, false, lastVersion, true).values()) {
+                keys.addAll(versionKeys);
+            }
+            for (K key : keys) {
+                changed.add(new AbstractMap.SimpleImmutableEntry<>(key, versionedData.get(key)));
+            }
+        } else {
+            // changes up to the oldest readable version are no longer listed by version
+            for (Map.Entry<K, PersistentMapNode<V>> entry : versionedData.entrySet()) {
+                if (entry.getValue().isChangedBetween(afterVersion, lastVersion)) {
+                    changed.add(entry);
+                }
+            }
+        }
+        out.writeVarInt(changed.size());
+        for (Map.Entry<K, PersistentMapNode<V>> entry : changed) {
+            keyCodec.write(entry.getKey(), out);
+            entry.getValue().writeHistory(out, valueCodec, afterVersion, lastVersion);
+        }
+        out.flush();
+    }
+
+    /**
+     * Appends the versions written by {@link #writeCheckpoint(WritableByteChannel, int, int, ValueCodec, ValueCodec)}
+     * to this map, skipping versions newer than the specified last version.
+     * The checkpoint must start right after the current version of this map.
+     * @return the last version of the checkpoint
+     */
+    int readCheckpoint(ReadableByteChannel channel, int lastVersion, ValueCodec<K> keyCodec,
+                       ValueCodec<V> valueCodec) throws IOException {
+        SnapshotInput in = new SnapshotInput(channel);
+        in.readHeader(SnapshotOutput.MAP_CHECKPOINT);
+        int afterVersion = in.readSignedVarInt();
+        int checkpointVersion = in.readVarInt();
+        if (afterVersion >= 0 && afterVersion != currentVersion)
+            throw new IOException(Exceptions.BROKEN_CHECKPOINT_CHAIN);
+        currentVersion = Math.min(checkpointVersion, lastVersion);
+        versionsLengths.putAll(in.readVersionedInts(afterVersion).headMap(lastVersion, true));
+        int keys = in.readCount();
+        for (int i = 0; i < keys; i++) {
+            K key = keyCodec.read(in);
+            PersistentMapNode<V> node = versionedData.get(key);
+            if (null == node) {
+                node = new PersistentMapNode<>();
+            }
+            node.readHistory(in, valueCodec, afterVersion, lastVersion);
+            recordHistory(key, node, afterVersion);
+            if (node.hasHistory()) {
+                versionedData.put(key, node);
+            }
+        }
+        return checkpointVersion;
+    }
 }
@@ -1,7 +1,12 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
 import java.util.TreeMap;
 
 public class PersistentMapNode<E> {
-    private class InnerNode<E> {
+    private static class InnerNode<E> {
         private boolean isRemoved;
         private E object;
 
@@ -30,6 +35,12 @@ public class PersistentMapNode<E> {
     }
 
     private TreeMap<Integer, InnerNode<E>> versionedData;
+    private HistorySpill.ColdHistory<InnerNode<E>> cold = null;
+    // node of the map a fork was forked from, read up to the fork version where this node has no history
+    private PersistentMapNode<E> shared = null;
+    private int sharedVersion = 0;
+    // lock of the map owning the shared node, held while the shared node is read
+    private Object sharedLock = null;
 
     PersistentMapNode() {
         versionedData = new TreeMap<>();
@@ -40,7 +51,23 @@ public class PersistentMapNode<E> {
         setObject(version, object);
     }
 
-    public E getObject(int version) { return versionedData.floorEntry(version).getValue().getObject(); }
+    /**
+     * Creates a node of a fork which reads the specified node up to the specified version until it is changed.
+     * The specified node is read under the specified lock of the map owning it.
+     */
+    PersistentMapNode(PersistentMapNode<E> shared, int sharedVersion, Object sharedLock) {
+        versionedData = new TreeMap<>();
+        this.shared = shared;
+        this.sharedVersion = sharedVersion;
+        this.sharedLock = sharedLock;
+    }
+
+    public E getObject(int version) { return floorEntry(version).getValue().getObject(); }
+
+    /**
+     * Returns the value of this node in the specified version, looked up on its branch if the version tree is not null.
+     */
+    E getObject(int version, VersionTree tree) { return floorEntry(version, tree).getValue().getObject(); }
 
     public void setObject(int version, E obj) {
         versionedData.put(version, new InnerNode<>(obj));
@@ -51,6 +78,218 @@ public class PersistentMapNode<E> {
     }
 
     public boolean isRemoved(int version) {
-        return versionedData.floorEntry(version) == null || versionedData.floorEntry(version).getValue().isRemoved();
+        Map.Entry<Integer, InnerNode<E>> entry = floorEntry(version);
+        return entry == null || entry.getValue().isRemoved();
+    }
+
+    boolean isRemoved(int version, VersionTree tree) {
+        Map.Entry<Integer, InnerNode<E>> entry = floorEntry(version, tree);
+        return entry == null || entry.getValue().isRemoved();
+    }
+
+    /**
+     * Returns the value of this node in the specified version, or null if it is removed there, with one lookup.
+     */
+    E getObjectOrNull(int version, VersionTree tree) {
+        Map.Entry<Integer, InnerNode<E>> entry = floorEntry(version, tree);
+        return (entry == null || entry.getValue().isRemoved()) ? null : entry.getValue().getObject();
+    }
+
+    /**
+     * Moves the history of every specified node older than its state in the specified version to the specified spill.
+     * The spilled parts of the nodes are packed into shared pages.
+     * @return number of spilled entries
+     */
+    static <E> int spill(Iterable<PersistentMapNode<E>> nodes, HistorySpill spill, ValueCodec<E> codec,
+                         int beforeVersion) throws IOException {
+        ValueCodec<InnerNode<E>> innerCodec = new ValueCodec<InnerNode<E>>() {
+            @Override
+            public void write(InnerNode<E> node, SnapshotOutput out) throws IOException {
+                out.writeByte(node.isRemoved() ? 1 : 0);
+                out.writeNullable(node.getObject(), codec);
+            }
+
+            @Override
+            public InnerNode<E> read(SnapshotInput in) throws IOException {
+                boolean removed = in.readByte() != 0;
+                return new InnerNode<>(in.readNullable(codec), removed);
+            }
+        };
+        HistorySpill.PageWriter<InnerNode<E>> page = spill.new PageWriter<>(innerCodec);
+        int spilled = 0;
+        for (PersistentMapNode<E> node : nodes) {
+            Integer visibleVersion = node.versionedData.floorKey(beforeVersion);
+            if (null == visibleVersion)
+                continue;
+            NavigableMap<Integer, InnerNode<E>> coldEntries = node.versionedData.headMap(visibleVersion, false);
+            if (coldEntries.isEmpty())
+                continue;
+            if (null == node.cold) {
+                node.cold = spill.new ColdHistory<>(innerCodec);
+            }
+            spilled += coldEntries.size();
+            page.add(node.cold, coldEntries);
+        }
+        page.flush();
+        return spilled;
+    }
+
+    /**
+     * Folds the history of this node in the specified range of versions into its last version.
+     * @return number of removed entries
+     */
+    int squash(int fromVersion, int toVersion) {
+        return Histories.squash(versionedData, fromVersion, toVersion);
+    }
+
+    /**
+     * Removes the history of this node older than its state in the specified version.
+     * @return number of removed entries
+     */
+    int prune(int version, boolean dropSpilled) {
+        if (dropSpilled) {
+            cold = null;
+        }
+        return Histories.prune(versionedData, version);
+    }
+
+    /**
+     * Removes the history of this node newer than the specified version.
+     * @return number of removed entries
+     */
+    int truncate(int version) {
+        return Histories.truncate(versionedData, version);
+    }
+
+    /**
+     * Returns true if the whole history of this node is a removal not newer than the specified version.
+     */
+    boolean isRemovedSince(int version) {
+        return null == cold && null == shared && versionedData.size() == 1 && versionedData.firstKey() <= version
+                && versionedData.firstEntry().getValue().isRemoved();
+    }
+
+    private Map.Entry<Integer, InnerNode<E>> floorEntry(int version) {
+        return floorEntry(version, null);
+    }
+
+    /**
+     * Returns the last change not newer than the specified version, on its branch if the tree is not null.
+     * A node with branches is never spilled, so the spilled part is read as one line.
+     */
+    private Map.Entry<Integer, InnerNode<E>> floorEntry(int version, VersionTree tree) {
+        Map.Entry<Integer, InnerNode<E>> entry = (null == tree) ? versionedData.floorEntry(version) : tree.floorEntry(versionedData, version);
+        if (null == entry && null != cold) {
+            entry = cold.floorEntry(version);
+        }
+        if (null == entry && null != shared) {
+            synchronized (sharedLock) {
+                entry = shared.floorEntry(Math.min(version, sharedVersion), null);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Adds the changes of this node with versions in the specified range to the list, oldest first.
+     * The spilled part is read only if the range reaches it. If the tree is not null, only the changes
+     * of the last version of the range and of its ancestors are added.
+     */
+    void addHistory(int fromVersion, int toVersion, VersionTree tree, List<VersionedValue<E>> history) {
+        if (fromVersion > toVersion)
+            return;
+        if (null != shared) {
+            synchronized (sharedLock) {
+                shared.addHistory(fromVersion, Math.min(toVersion, sharedVersion), null, history);
+            }
+        }
+        boolean isSpilledPartRead = null != cold && (versionedData.isEmpty() || fromVersion < versionedData.firstKey());
+        TreeMap<Integer, InnerNode<E>> changes = isSpilledPartRead ? fullHistory(fromVersion, toVersion) : versionedData;
+        for (Map.Entry<Integer, InnerNode<E>> entry : changes.subMap(fromVersion, true, toVersion, true).entrySet()) {
+            if (null == tree || tree.ancestorAtMost(toVersion, entry.getKey()) == entry.getKey()) {
+                history.add(new VersionedValue<>(entry.getKey(), entry.getValue().getObject(), entry.getValue().isRemoved()));
+            }
+        }
+    }
+
+    /**
+     * Returns the history of this node, reading only the spilled parts which may hold versions in the specified range.
+     * The result may contain entries outside of the range.
+     */
+    private TreeMap<Integer, InnerNode<E>> fullHistory(int fromVersion, int toVersion) {
+        if (null == cold)
+            return versionedData;
+        TreeMap<Integer, InnerNode<E>> history = cold.entries(fromVersion, toVersion);
+        history.putAll(versionedData);
+        return history;
+    }
+
+    /**
+     * Writes the history of this node as its size followed by entries.
+     * Each entry is the version delta with removed and null flags in the lowest bits, followed by the value if it is not null.
+     */
+    void writeHistory(SnapshotOutput out, ValueCodec<E> codec) throws IOException {
+        writeHistory(out, codec, -1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes the part of the history of this node newer than the first specified version and not newer than the second one.
+     */
+    void writeHistory(SnapshotOutput out, ValueCodec<E> codec, int afterVersion, int lastVersion) throws IOException {
+        NavigableMap<Integer, InnerNode<E>> tail = fullHistory(afterVersion, lastVersion).subMap(afterVersion, false, lastVersion, true);
+        out.writeVarInt(tail.size());
+        int prevVersion = Math.max(afterVersion, 0);
+        for (Map.Entry<Integer, InnerNode<E>> entry : tail.entrySet()) {
+            E object = entry.getValue().getObject();
+            int flags = (entry.getValue().isRemoved() ? 2 : 0) | (null == object ? 1 : 0);
+            out.writeVarLong(((long) (entry.getKey() - prevVersion) << 2) | flags);
+            if (null != object) {
+                codec.write(object, out);
+            }
+            prevVersion = entry.getKey();
+        }
+    }
+
+    /**
+     * Reads the history written by {@link #writeHistory(SnapshotOutput, ValueCodec)} into this node.
+     */
+    void readHistory(SnapshotInput in, ValueCodec<E> codec) throws IOException {
+        readHistory(in, codec, -1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads the part of the history written by {@link #writeHistory(SnapshotOutput, ValueCodec, int, int)} into this node.
+     * Entries newer than the specified last version are skipped.
+     */
+    void readHistory(SnapshotInput in, ValueCodec<E> codec, int afterVersion, int lastVersion) throws IOException {
+        int size = in.readCount();
+        int version = Math.max(afterVersion, 0);
+        for (int i = 0; i < size; i++) {
+            long header = in.readVarLong();
+            version += (int) (header >>> 2);
+            E object = (header & 1) == 0 ? codec.read(in) : null;
+            if (version <= lastVersion) {
+                versionedData.put(version, new InnerNode<>(object, (header & 2) != 0));
+            }
+        }
+    }
+
+    /**
+     * Returns true if this node was changed after the first specified version and not after the second one.
+     */
+    boolean isChangedBetween(int afterVersion, int lastVersion) {
+        Integer version = versionedData.higherKey(afterVersion);
+        return null != version && version <= lastVersion;
+    }
+
+    /**
+     * Returns the versions of the changes of this node newer than the specified version.
+     */
+    NavigableSet<Integer> versionsAfter(int version) {
+        return versionedData.navigableKeySet().tailSet(version, false);
+    }
+
+    boolean hasHistory() {
+        return !versionedData.isEmpty();
     }
 }
@@ -0,0 +1,210 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Buffered reader of the binary snapshot format written by {@link SnapshotOutput}.
+ * The channel is read in blocks, so a snapshot is loaded in a single streaming pass.
+ */
+public class SnapshotInput {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    /**
+     * Constructs a reader from the specified channel.
+     *
+     * @param channel channel to read from
+     */
+    public SnapshotInput(ReadableByteChannel channel) {
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(SnapshotOutput.BUFFER_SIZE);
+        buffer.flip();
+    }
+
+    /**
+     * Constructs a reader of the remaining bytes of the specified buffer.
+     */
+    SnapshotInput(ByteBuffer buffer) {
+        channel = null;
+        this.buffer = buffer;
+    }
+
+    public int readByte() throws IOException {
+        ensureAvailable(1);
+        return buffer.get() & 0xFF;
+    }
+
+    /**
+     * Reads the specified number of bytes. A negative number, or a number larger than the bytes left in the input
+     * if their number is known, is rejected. Otherwise the array grows with the bytes read,
+     * so a corrupted length read from a stream ends with the stream and not with a huge allocation.
+     */
+    public byte[] readBytes(int length) throws IOException {
+        if (length < 0 || length > remaining())
+            throw new IOException(Exceptions.CORRUPTED_SNAPSHOT);
+        byte[] bytes = new byte[Math.min(length, SnapshotOutput.BUFFER_SIZE)];
+        int offset = 0;
+        while (offset < length) {
+            ensureAvailable(1);
+            if (offset == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+            }
+            int chunk = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.get(bytes, offset, chunk);
+            offset += chunk;
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads a non-negative int written by {@link SnapshotOutput#writeVarInt(int)}.
+     */
+    public int readVarInt() throws IOException {
+        long value = readVarLong();
+        if (value > 0xFFFFFFFFL)
+            throw new IOException(Exceptions.CORRUPTED_SNAPSHOT);
+        return (int) value;
+    }
+
+    /**
+     * Reads the number of the items which follow it, each of them at least one byte long.
+     * A negative number, or a number larger than the bytes left in the input if their number is known, is rejected.
+     */
+    int readCount() throws IOException {
+        int count = readVarInt();
+        if (count < 0 || count > remaining())
+            throw new IOException(Exceptions.CORRUPTED_SNAPSHOT);
+        return count;
+    }
+
+    /**
+     * Returns the number of bytes left in the input, or Long.MAX_VALUE if the channel does not know its size.
+     */
+    private long remaining() throws IOException {
+        if (null == channel)
+            return buffer.remaining();
+        if (!(channel instanceof SeekableByteChannel))
+            return Long.MAX_VALUE;
+        SeekableByteChannel seekable = (SeekableByteChannel) channel;
+        return buffer.remaining() + seekable.size() - seekable.position();
+    }
+
+    /**
+     * Reads an int written by {@link SnapshotOutput#writeSignedVarInt(int)}.
+     */
+    public int readSignedVarInt() throws IOException {
+        int value = readVarInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads a non-negative long written by {@link SnapshotOutput#writeVarLong(long)}.
+     */
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException(Exceptions.CORRUPTED_SNAPSHOT);
+    }
+
+    /**
+     * Reads a long written by {@link SnapshotOutput#writeSignedVarLong(long)}.
+     */
+    public long readSignedVarLong() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads a long written by {@link SnapshotOutput#writeLong(long)}.
+     */
+    public long readLong() throws IOException {
+        ensureAvailable(8);
+        return buffer.getLong();
+    }
+
+    /**
+     * Reads a string written by {@link SnapshotOutput#writeString(String)}.
+     */
+    public String readString() throws IOException {
+        return new String(readBytes(readVarInt()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a value written by {@link SnapshotOutput#writeNullable(Object, ValueCodec)}.
+     */
+    <T> T readNullable(ValueCodec<T> codec) throws IOException {
+        return readByte() == 0 ? null : codec.read(this);
+    }
+
+    void readHeader(byte type) throws IOException {
+        for (byte b : SnapshotOutput.MAGIC) {
+            if (readByte() != b)
+                throw new IOException(Exceptions.CORRUPTED_SNAPSHOT);
+        }
+        if (readByte() != type)
+            throw new IOException(Exceptions.WRONG_SNAPSHOT_TYPE);
+        if (readVarInt() != SnapshotOutput.FORMAT_VERSION)
+            throw new IOException(Exceptions.UNSUPPORTED_SNAPSHOT_FORMAT);
+    }
+
+    /**
+     * Reads a history written by {@link SnapshotOutput#writeVersionedInts(TreeMap)}.
+     */
+    TreeMap<Integer, Integer> readVersionedInts() throws IOException {
+        return readVersionedInts(-1);
+    }
+
+    /**
+     * Reads the part of a history written by {@link SnapshotOutput#writeVersionedInts(TreeMap, int, int)}.
+     */
+    TreeMap<Integer, Integer> readVersionedInts(int afterVersion) throws IOException {
+        TreeMap<Integer, Integer> history = new TreeMap<>();
+        int size = readCount();
+        int version = Math.max(afterVersion, 0);
+        for (int i = 0; i < size; i++) {
+            version += readVarInt();
+            history.put(version, readSignedVarInt());
+        }
+        return history;
+    }
+
+    /**
+     * Reads a history written by {@link SnapshotOutput#writeVersionedValues(NavigableMap, ValueCodec)}.
+     */
+    <T> TreeMap<Integer, T> readVersionedValues(ValueCodec<T> codec) throws IOException {
+        TreeMap<Integer, T> history = new TreeMap<>();
+        int size = readCount();
+        int version = 0;
+        for (int i = 0; i < size; i++) {
+            long header = readVarLong();
+            version += (int) (header >>> 1);
+            history.put(version, (header & 1) == 0 ? codec.read(this) : null);
+        }
+        return history;
+    }
+
+    private void ensureAvailable(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes)
+            return;
+        if (null == channel)
+            throw new EOFException(Exceptions.CORRUPTED_SNAPSHOT);
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException(Exceptions.CORRUPTED_SNAPSHOT);
+            }
+        }
+        buffer.flip();
+    }
+}
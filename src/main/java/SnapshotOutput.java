@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Buffered writer of the binary snapshot format.
+ * Integers are written as variable-length quantities (seven bits per byte), versions are written as deltas
+ * from the previous version of the same history, so most numbers take one or two bytes.
+ */
+public class SnapshotOutput {
+    static final int BUFFER_SIZE = 1 << 16;
+    static final byte[] MAGIC = {'P', 'D', 'S'};
+    static final int FORMAT_VERSION = 1;
+    static final byte ARRAY = 'A';
+    static final byte MAP = 'M';
+    static final byte LIST = 'L';
+    static final byte MAP_CHECKPOINT = 'C';
+
+    /**
+     * Writes the body of a snapshot.
+     */
+    interface Writer {
+        void write(SnapshotOutput out) throws IOException;
+    }
+
+    private static final ExecutorService EXPORTER = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "snapshot-exporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * Constructs a writer to the specified channel. Nothing is written to the channel until the buffer is full or flushed.
+     *
+     * @param channel channel to write to
+     */
+    public SnapshotOutput(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public void writeByte(int b) throws IOException {
+        ensureCapacity(1);
+        buffer.put((byte) b);
+    }
+
+    public void writeBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            ensureCapacity(1);
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    /**
+     * Writes a non-negative int as a variable-length quantity.
+     */
+    public void writeVarInt(int value) throws IOException {
+        writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes an int as a variable-length quantity in zigzag encoding, so small negative numbers stay short.
+     */
+    public void writeSignedVarInt(int value) throws IOException {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Writes a non-negative long as a variable-length quantity.
+     */
+    public void writeVarLong(long value) throws IOException {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Writes a long as a variable-length quantity in zigzag encoding.
+     */
+    public void writeSignedVarLong(long value) throws IOException {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes a long as eight bytes.
+     */
+    public void writeLong(long value) throws IOException {
+        ensureCapacity(8);
+        buffer.putLong(value);
+    }
+
+    /**
+     * Writes a string as its length in bytes followed by its UTF-8 representation.
+     */
+    public void writeString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        writeBytes(bytes);
+    }
+
+    /**
+     * Writes all buffered bytes to the channel.
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Writes a value which may be null as a presence byte followed by the value.
+     */
+    <T> void writeNullable(T value, ValueCodec<T> codec) throws IOException {
+        writeByte(null == value ? 0 : 1);
+        if (null != value) {
+            codec.write(value, this);
+        }
+    }
+
+    void writeHeader(byte type) throws IOException {
+        writeBytes(MAGIC);
+        writeByte(type);
+        writeVarInt(FORMAT_VERSION);
+    }
+
+    /**
+     * Writes a history of ints (e.g. lengths of versions) as its size followed by (version delta, value) pairs.
+     */
+    void writeVersionedInts(TreeMap<Integer, Integer> history) throws IOException {
+        writeVersionedInts(history, -1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes the part of a history of ints newer than the first specified version and not newer than the second one.
+     */
+    void writeVersionedInts(TreeMap<Integer, Integer> history, int afterVersion, int lastVersion) throws IOException {
+        NavigableMap<Integer, Integer> tail = history.subMap(afterVersion, false, lastVersion, true);
+        writeVarInt(tail.size());
+        int prevVersion = Math.max(afterVersion, 0);
+        for (Map.Entry<Integer, Integer> entry : tail.entrySet()) {
+            writeVarInt(entry.getKey() - prevVersion);
+            writeSignedVarInt(entry.getValue());
+            prevVersion = entry.getKey();
+        }
+    }
+
+    /**
+     * Writes a history of values as its size followed by entries.
+     * Each entry is the version delta with a null flag in the lowest bit, followed by the value if it is not null.
+     */
+    <T> void writeVersionedValues(NavigableMap<Integer, T> history, ValueCodec<T> codec) throws IOException {
+        writeVarInt(history.size());
+        int prevVersion = 0;
+        for (Map.Entry<Integer, T> entry : history.entrySet()) {
+            T value = entry.getValue();
+            writeVarLong(((long) (entry.getKey() - prevVersion) << 1) | (null == value ? 1 : 0));
+            if (null != value) {
+                codec.write(value, this);
+            }
+            prevVersion = entry.getKey();
+        }
+    }
+
+    /**
+     * Writes a history of one int at version zero, in the format of {@link #writeVersionedInts(TreeMap)}.
+     */
+    void writeVersionedInt(int value) throws IOException {
+        writeVarInt(1);
+        writeVarInt(0);
+        writeSignedVarInt(value);
+    }
+
+    /**
+     * Writes a history of one value at version zero, in the format of {@link #writeVersionedValues(NavigableMap, ValueCodec)}.
+     */
+    <T> void writeVersionedValue(T value, ValueCodec<T> codec) throws IOException {
+        writeVarInt(1);
+        writeVarLong(null == value ? 1 : 0);
+        if (null != value) {
+            codec.write(value, this);
+        }
+    }
+
+    /**
+     * Writes a snapshot to the specified channel in a background thread.
+     *
+     * @return future completed when the snapshot is flushed, or exceptionally if writing failed
+     */
+    static CompletableFuture<Void> exportAsync(WritableByteChannel channel, Writer writer) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        EXPORTER.execute(() -> {
+            try {
+                SnapshotOutput out = new SnapshotOutput(channel);
+                writer.write(out);
+                out.flush();
+                result.complete(null);
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private void ensureCapacity(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+}
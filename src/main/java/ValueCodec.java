@@ -0,0 +1,62 @@
+import java.io.IOException;
+
+/**
+ * Writes and reads non-null values of persistent structures in the binary snapshot format.
+ * Nulls are encoded by the structures themselves, so codecs never see them.
+ *
+ * @param <T> type of values
+ */
+public interface ValueCodec<T> {
+
+    void write(T value, SnapshotOutput out) throws IOException;
+
+    T read(SnapshotInput in) throws IOException;
+
+    ValueCodec<Integer> INTEGER = new ValueCodec<Integer>() {
+        @Override
+        public void write(Integer value, SnapshotOutput out) throws IOException {
+            out.writeSignedVarInt(value);
+        }
+
+        @Override
+        public Integer read(SnapshotInput in) throws IOException {
+            return in.readSignedVarInt();
+        }
+    };
+
+    ValueCodec<Long> LONG = new ValueCodec<Long>() {
+        @Override
+        public void write(Long value, SnapshotOutput out) throws IOException {
+            out.writeSignedVarLong(value);
+        }
+
+        @Override
+        public Long read(SnapshotInput in) throws IOException {
+            return in.readSignedVarLong();
+        }
+    };
+
+    ValueCodec<Double> DOUBLE = new ValueCodec<Double>() {
+        @Override
+        public void write(Double value, SnapshotOutput out) throws IOException {
+            out.writeLong(Double.doubleToLongBits(value));
+        }
+
+        @Override
+        public Double read(SnapshotInput in) throws IOException {
+            return Double.longBitsToDouble(in.readLong());
+        }
+    };
+
+    ValueCodec<String> STRING = new ValueCodec<String>() {
+        @Override
+        public void write(String value, SnapshotOutput out) throws IOException {
+            out.writeString(value);
+        }
+
+        @Override
+        public String read(SnapshotInput in) throws IOException {
+            return in.readString();
+        }
+    };
+}
@@ -0,0 +1,98 @@
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Version numbers shared by several persistent structures.
+ * Structures attached to a clock are modified only inside its transactions, and all changes of one transaction
+ * get the same version number in every structure. A version of the clock is therefore one consistent state
+ * of all attached structures: each of them reads it as its last change not newer than the version.
+ */
+public class VersionClock {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Object, Runnable> aborts = new IdentityHashMap<>();
+    private volatile int version = 0;
+    private int pendingVersion = -1;
+
+    /**
+     * Returns the last committed version.
+     *
+     * @return the last committed version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the newest version the current thread may read: the version of its running transaction,
+     * or the last committed version. Changes of a transaction are not read by other threads before it is committed.
+     */
+    int readableVersion() {
+        return (lock.isHeldByCurrentThread() && pendingVersion >= 0) ? pendingVersion : version;
+    }
+
+    /**
+     * Runs the specified mutations of attached structures as one transaction and commits them under one new version.
+     * Transactions are run one at a time, a transaction started inside another one becomes its part.
+     * If the mutations throw an exception, the changes made by them are removed from all structures and the exception is rethrown.
+     *
+     * @param mutations mutations of attached structures
+     * @return the committed version, or the last committed version if no structure was changed
+     */
+    public int transaction(Runnable mutations) {
+        lock.lock();
+        try {
+            if (pendingVersion >= 0) {
+                mutations.run();
+                return pendingVersion;
+            }
+            pendingVersion = version + 1;
+            try {
+                mutations.run();
+                if (!aborts.isEmpty()) {
+                    version = pendingVersion;
+                }
+                return version;
+            } catch (RuntimeException | Error e) {
+                for (Runnable abort : aborts.values()) {
+                    abort.run();
+                }
+                throw e;
+            } finally {
+                aborts.clear();
+                pendingVersion = -1;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the version of the running transaction for a change of the specified structure.
+     * The abort action is remembered at the first change of the structure in the transaction.
+     *
+     * @throws IllegalStateException if the current thread does not run a transaction of this clock
+     */
+    int pendingVersion(Object structure, Runnable abort) {
+        if (!lock.isHeldByCurrentThread() || pendingVersion < 0)
+            throw new IllegalStateException(Exceptions.NO_TRANSACTION);
+        aborts.putIfAbsent(structure, abort);
+        return pendingVersion;
+    }
+
+    /**
+     * Moves the clock forward to the specified version if it is behind it, so that versions of a structure
+     * created before it was attached are not newer than the clock.
+     */
+    void attach(int structureVersion) {
+        lock.lock();
+        try {
+            version = Math.max(version, structureVersion);
+            if (pendingVersion >= 0) {
+                pendingVersion = Math.max(pendingVersion, version + 1);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
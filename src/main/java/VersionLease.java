@@ -0,0 +1,42 @@
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lease of a version of a persistent structure: while it is open, the history of the version is not reclaimed.
+ */
+public class VersionLease implements AutoCloseable {
+    private final int version;
+    private final TreeMap<Integer, Integer> stripe;
+    private final AtomicBoolean isClosed = new AtomicBoolean(false);
+
+    VersionLease(int version, TreeMap<Integer, Integer> stripe) {
+        this.version = version;
+        this.stripe = stripe;
+    }
+
+    /**
+     * Returns the leased version.
+     *
+     * @return the leased version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Releases the version. Closing the lease again has no effect.
+     */
+    @Override
+    public void close() {
+        if (!isClosed.compareAndSet(false, true))
+            return;
+        synchronized (stripe) {
+            int count = stripe.get(version);
+            if (count == 1) {
+                stripe.remove(version);
+            } else {
+                stripe.put(version, count - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Numbers of open leases of every version of one structure.
+ * The counts are split into stripes chosen by the thread, so readers taking leases at the same time rarely share a lock,
+ * and only the reclaimer looks at all stripes.
+ */
+class VersionLeases {
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2;
+
+    private final List<TreeMap<Integer, Integer>> stripes = new ArrayList<>(STRIPES);
+    private volatile int oldestVersion = 0;
+
+    VersionLeases() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.add(new TreeMap<>());
+        }
+    }
+
+    /**
+     * Counts a new lease of the specified version.
+     */
+    VersionLease register(int version) {
+        TreeMap<Integer, Integer> stripe = stripes.get((int) Thread.currentThread().getId() & (STRIPES - 1));
+        synchronized (stripe) {
+            stripe.merge(version, 1, Integer::sum);
+        }
+        return new VersionLease(version, stripe);
+    }
+
+    /**
+     * Returns the oldest leased version, or the specified version if it is older or there are no leases.
+     */
+    int oldest(int version) {
+        for (TreeMap<Integer, Integer> stripe : stripes) {
+            synchronized (stripe) {
+                if (!stripe.isEmpty()) {
+                    version = Math.min(version, stripe.firstKey());
+                }
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Returns the newest leased version, or the specified version if it is newer or there are no leases.
+     */
+    int newest(int version) {
+        for (TreeMap<Integer, Integer> stripe : stripes) {
+            synchronized (stripe) {
+                if (!stripe.isEmpty()) {
+                    version = Math.max(version, stripe.lastKey());
+                }
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Returns the oldest version whose history is kept.
+     */
+    int getOldestVersion() {
+        return oldestVersion;
+    }
+
+    /**
+     * Leases the specified version, if it is not older than the oldest kept version or newer than the current one.
+     * The lease is counted before the check, so a concurrent {@link #advance(int)} either sees it or makes the check fail.
+     */
+    VersionLease acquire(int version, int currentVersion) {
+        VersionLease lease = register(version);
+        if (version < oldestVersion || version > currentVersion) {
+            lease.close();
+            throw new NoSuchElementException(Exceptions.NO_SUCH_VERSION);
+        }
+        return lease;
+    }
+
+    /**
+     * Moves the oldest kept version to the oldest leased version, or to the current version if nothing is leased.
+     * The new oldest version is published before the leases are counted again, so a lease taken meanwhile
+     * either is counted or fails its check.
+     * @return the new oldest kept version
+     */
+    int advance(int currentVersion) {
+        int previous = oldestVersion;
+        int boundary = oldest(currentVersion);
+        if (boundary <= previous)
+            return previous;
+        oldestVersion = boundary;
+        oldestVersion = Math.max(previous, oldest(boundary));
+        return oldestVersion;
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tree of versions of a structure with branches. Every version is numbered after its parent,
+ * so the ancestors of a version have decreasing numbers, and histories keep being maps from versions to values:
+ * the value of a version is the entry of its nearest ancestor (or itself) present in the history.
+ * Every version also has a jump pointer to an ancestor (skew-binary jumps), so the nearest ancestor
+ * not newer than a given number is found in a logarithmic number of steps.
+ */
+final class VersionTree {
+    private int[] parents;
+    private int[] jumps;
+    private int[] depths;
+    private int size;
+
+    /**
+     * Creates the tree of a linear history of versions from zero to the specified one.
+     */
+    VersionTree(int lastVersion) {
+        int capacity = Math.max(16, Integer.highestOneBit(lastVersion + 1) * 2);
+        parents = new int[capacity];
+        jumps = new int[capacity];
+        depths = new int[capacity];
+        parents[0] = -1;
+        size = 1;
+        for (int version = 1; version <= lastVersion; version++) {
+            add(version - 1);
+        }
+    }
+
+    /**
+     * Adds a new version with the specified parent.
+     * @return number of the new version
+     */
+    int add(int parent) {
+        if (size == parents.length) {
+            parents = Arrays.copyOf(parents, size * 2);
+            jumps = Arrays.copyOf(jumps, size * 2);
+            depths = Arrays.copyOf(depths, size * 2);
+        }
+        int version = size++;
+        parents[version] = parent;
+        depths[version] = depths[parent] + 1;
+        int jump = jumps[parent];
+        if (depths[parent] - depths[jump] == depths[jump] - depths[jumps[jump]]) {
+            jumps[version] = jumps[jump];
+        } else {
+            jumps[version] = parent;
+        }
+        return version;
+    }
+
+    /**
+     * Removes the versions newer than the specified one, so their numbers are given to the next added versions.
+     */
+    void truncate(int lastVersion) {
+        size = lastVersion + 1;
+    }
+
+    /**
+     * Returns the parent of the specified version, or -1 for version zero.
+     */
+    int getParent(int version) {
+        return parents[version];
+    }
+
+    /**
+     * Returns the newest ancestor of the specified version (or the version itself) whose number is not greater than the bound.
+     */
+    int ancestorAtMost(int version, int bound) {
+        while (version > bound) {
+            version = (jumps[version] > bound) ? jumps[version] : parents[version];
+        }
+        return version;
+    }
+
+    /**
+     * Returns the newest version that is an ancestor of both specified versions (or one of them).
+     */
+    int commonAncestor(int first, int second) {
+        while (first != second) {
+            if (first > second) {
+                first = ancestorAtMost(first, second);
+            } else {
+                second = ancestorAtMost(second, first);
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Returns the entry of the nearest ancestor of the specified version (or the version itself) in the history,
+     * or null if there is none. Entries of other branches between them are skipped with one lookup each.
+     */
+    <T> Map.Entry<Integer, T> floorEntry(TreeMap<Integer, T> history, int version) {
+        Map.Entry<Integer, T> entry = history.floorEntry(version);
+        while (null != entry) {
+            int ancestor = ancestorAtMost(version, entry.getKey());
+            if (ancestor == entry.getKey())
+                return entry;
+            entry = history.floorEntry(ancestor);
+        }
+        return null;
+    }
+}
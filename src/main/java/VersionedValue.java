@@ -0,0 +1,64 @@
+/**
+ * One change in the history of a key of a persistent map or of an element of a persistent array.
+ *
+ * @param <E> type of the value
+ */
+public class VersionedValue<E> {
+    private final int version;
+    private final E value;
+    private final boolean isRemoved;
+
+    VersionedValue(int version, E value, boolean isRemoved) {
+        this.version = version;
+        this.value = value;
+        this.isRemoved = isRemoved;
+    }
+
+    /**
+     * Returns the version of the change.
+     *
+     * @return the version of the change
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the value stored by the change, or null if the change is a removal.
+     *
+     * @return the stored value
+     */
+    public E getValue() {
+        return value;
+    }
+
+    /**
+     * Returns true if the change removed the key.
+     *
+     * @return true if the change is a removal
+     */
+    public boolean isRemoved() {
+        return isRemoved;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof VersionedValue))
+            return false;
+        VersionedValue<?> other = (VersionedValue<?>) o;
+        return version == other.version && isRemoved == other.isRemoved
+                && (null == value ? null == other.value : value.equals(other.value));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * version + (null == value ? 0 : value.hashCode())) + (isRemoved ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return version + (isRemoved ? ": removed" : ": " + value);
+    }
+}
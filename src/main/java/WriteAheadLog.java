@@ -0,0 +1,272 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the operations of one persistent structure.
+ * Every record is framed by its length and CRC32 and written to the file before the structure applies the operation,
+ * so a crash of the process loses no record. Only the fsync is shared by a group of records (group commit):
+ * it is done when the group is full, when the oldest record of the group waits longer than the commit delay,
+ * or when {@link #sync()} is called.
+ * A record torn by a crash is detected on replay and dropped together with everything after it.
+ */
+public class WriteAheadLog implements Closeable {
+
+    /**
+     * Writes the body of one record.
+     */
+    public interface RecordWriter {
+        void write(SnapshotOutput out) throws IOException;
+    }
+
+    /**
+     * Reads the body of one record.
+     */
+    public interface RecordReader {
+        void read(SnapshotInput in) throws IOException;
+    }
+
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 256;
+    public static final long DEFAULT_COMMIT_DELAY_MILLIS = 10;
+    private static final int FRAME_HEADER_SIZE = 8;
+    private static final ScheduledExecutorService COMMITTER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "write-ahead-log-commit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FileChannel channel;
+    private final int groupCommitSize;
+    private final long commitDelayMillis;
+    private final RecordBuffer record = new RecordBuffer();
+    private final SnapshotOutput recordOut = new SnapshotOutput(record);
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer frame = ByteBuffer.allocate(SnapshotOutput.BUFFER_SIZE);
+    private int pendingRecords = 0;
+    private IOException commitFailure;
+
+    /**
+     * Opens or creates the log in the specified file with the default group commit size and delay.
+     *
+     * @param path file of the log
+     * @throws IOException if an I/O error occurs
+     */
+    public WriteAheadLog(Path path) throws IOException {
+        this(path, DEFAULT_GROUP_COMMIT_SIZE);
+    }
+
+    /**
+     * Opens or creates the log in the specified file.
+     *
+     * @param path            file of the log
+     * @param groupCommitSize number of records forced to the storage device with one fsync
+     * @throws IOException if an I/O error occurs
+     */
+    public WriteAheadLog(Path path, int groupCommitSize) throws IOException {
+        this(path, groupCommitSize, DEFAULT_COMMIT_DELAY_MILLIS);
+    }
+
+    /**
+     * Opens or creates the log in the specified file.
+     *
+     * @param path              file of the log
+     * @param groupCommitSize   number of records forced to the storage device with one fsync
+     * @param commitDelayMillis longest time in milliseconds a written record waits for its fsync
+     * @throws IOException if an I/O error occurs
+     */
+    public WriteAheadLog(Path path, int groupCommitSize, long commitDelayMillis) throws IOException {
+        this.groupCommitSize = groupCommitSize;
+        this.commitDelayMillis = commitDelayMillis;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    /**
+     * Writes a record to the end of the log file. The record survives a crash of the process as soon as this method returns,
+     * and a crash of the system after the fsync of its group. A structure appends the record of an operation
+     * before applying it, so a failed append leaves the structure unchanged.
+     *
+     * @param writer writer of the record body
+     * @throws UncheckedIOException if the record or the fsync of an earlier group cannot be written
+     */
+    public synchronized void append(RecordWriter writer) {
+        try {
+            if (null != commitFailure)
+                throw commitFailure;
+            try {
+                writer.write(recordOut);
+            } finally {
+                recordOut.flush();
+            }
+
+            ByteBuffer body = record.buffer;
+            body.flip();
+            crc.reset();
+            crc.update(body.array(), 0, body.limit());
+            if (frame.capacity() < FRAME_HEADER_SIZE + body.limit()) {
+                frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + body.limit());
+            }
+            frame.putInt(body.limit());
+            frame.putInt((int) crc.getValue());
+            frame.put(body);
+            writeFrame();
+
+            pendingRecords++;
+            if (pendingRecords >= groupCommitSize) {
+                commit();
+            } else if (pendingRecords == 1) {
+                COMMITTER.schedule(this::commit, commitDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            record.buffer.clear();
+        }
+    }
+
+    /**
+     * Forces all written records to the storage device.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void sync() throws IOException {
+        if (pendingRecords == 0 || !channel.isOpen())
+            return;
+        channel.force(false);
+        pendingRecords = 0;
+    }
+
+    /**
+     * Reads all complete records from the beginning of the log.
+     * A torn or corrupted record and everything after it is cut off, so new records follow the last valid one.
+     *
+     * @param reader reader of the record bodies
+     * @return number of records read
+     * @throws IOException if an I/O error occurs or the reader fails
+     */
+    public synchronized int replay(RecordReader reader) throws IOException {
+        sync();
+        long position = 0;
+        int records = 0;
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        while (true) {
+            header.clear();
+            if (!readFully(header, position))
+                break;
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || position + FRAME_HEADER_SIZE + length > channel.size())
+                break;
+            ByteBuffer body = ByteBuffer.allocate(length);
+            if (!readFully(body, position + FRAME_HEADER_SIZE))
+                break;
+            crc.reset();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != checksum)
+                break;
+
+            body.flip();
+            reader.read(new SnapshotInput(body));
+            position += FRAME_HEADER_SIZE + length;
+            records++;
+        }
+        channel.truncate(position);
+        channel.position(position);
+        return records;
+    }
+
+    /**
+     * Forces the written records to the storage device and closes the log.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        channel.close();
+    }
+
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                return false;
+            position += read;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the framed record to the file. A partly written record is cut off, so the next record does not follow garbage.
+     */
+    private void writeFrame() throws IOException {
+        long start = channel.position();
+        frame.flip();
+        try {
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        } catch (IOException e) {
+            try {
+                channel.truncate(start);
+                channel.position(start);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        } finally {
+            frame.clear();
+        }
+    }
+
+    /**
+     * Forces the written group to the storage device. The records are already in the file, so a failure
+     * does not undo the operation that wrote the last one: it is reported by the next append instead.
+     */
+    private synchronized void commit() {
+        try {
+            sync();
+        } catch (IOException e) {
+            commitFailure = e;
+        }
+    }
+
+    /**
+     * In-memory channel collecting the body of the record being written.
+     */
+    private static class RecordBuffer implements WritableByteChannel {
+        private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            if (buffer.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+            buffer.put(src);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class MapCheckpointChainTest {
+
+    private Path directory;
+    private PersistentMap<Integer, String> map;
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("checkpoints");
+        map = new PersistentMap<>();
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private void assertSameVersions(PersistentMap<Integer, String> expected, PersistentMap<Integer, String> actual, int lastVersion) {
+        assertEquals(lastVersion, actual.getCurrentVersion());
+        for (int version = 0; version <= lastVersion; version++) {
+            assertEquals(expected.size(version), actual.size(version));
+            for (int key = 0; key < 100; key++)
+                assertEquals(expected.get(key, version), actual.get(key, version));
+        }
+    }
+
+    @Test
+    public void deltaChain() throws IOException {
+        try (MapCheckpointChain<Integer, String> chain = new MapCheckpointChain<>(directory, ValueCodec.INTEGER, ValueCodec.STRING)) {
+            for (int key = 0; key < 100; key++)
+                map.put(key, "value" + key);
+            chain.checkpoint(map);
+            map.put(5, "changed");
+            map.remove(7);
+            chain.checkpoint(map);
+            chain.checkpoint(map);
+            map.put(5, null);
+            chain.checkpoint(map);
+
+            assertEquals(103, chain.getLastVersion());
+            assertEquals(3, Files.list(directory).count());
+            assertSameVersions(map, chain.load(), 103);
+            assertSameVersions(map, chain.load(101), 101);
+        }
+        try (MapCheckpointChain<Integer, String> chain = new MapCheckpointChain<>(directory, ValueCodec.INTEGER, ValueCodec.STRING)) {
+            assertSameVersions(map, chain.load(), 103);
+        }
+    }
+
+    @Test
+    public void compaction() throws IOException {
+        try (MapCheckpointChain<Integer, String> chain = new MapCheckpointChain<>(directory, ValueCodec.INTEGER, ValueCodec.STRING, 2)) {
+            for (int key = 0; key < 10; key++) {
+                map.put(key, "value" + key);
+                map.put(key + 50, "other" + key);
+                chain.checkpoint(map);
+            }
+        }
+        assertEquals(true, Files.list(directory).count() <= 3);
+        try (MapCheckpointChain<Integer, String> chain = new MapCheckpointChain<>(directory, ValueCodec.INTEGER, ValueCodec.STRING, 2)) {
+            chain.compact();
+            assertEquals(1, Files.list(directory).count());
+            assertSameVersions(map, chain.load(), 20);
+            map.remove(3);
+            chain.checkpoint(map);
+            assertSameVersions(map, chain.load(), 21);
+        }
+    }
+
+    @Test
+    public void checkpointWhileWriting() throws Exception {
+        try (MapCheckpointChain<Integer, String> chain = new MapCheckpointChain<>(directory, ValueCodec.INTEGER, ValueCodec.STRING)) {
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 2000; i++)
+                    map.put(i % 100, "value" + i);
+            });
+            writer.start();
+            while (writer.isAlive()) {
+                chain.checkpoint(map);
+            }
+            writer.join();
+            chain.checkpoint(map);
+            assertSameVersions(map, chain.load(), 2000);
+        }
+    }
+
+    @Test
+    public void loadWrongVersion() throws IOException {
+        try (MapCheckpointChain<Integer, String> chain = new MapCheckpointChain<>(directory, ValueCodec.INTEGER, ValueCodec.STRING)) {
+            map.put(1, "a");
+            chain.checkpoint(map);
+            ex.expect(NoSuchElementException.class);
+            ex.expectMessage(Exceptions.NO_SUCH_VERSION);
+            chain.load(2);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MappedPersistentArrayTest {
+
+    private Path path;
+    private MappedPersistentArray<Long> array;
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Before
+    public void createArray() throws IOException {
+        path = Files.createTempFile("array", ".bin");
+        array = new MappedPersistentArray<>(path, 3, FixedWidthCodec.LONG);
+    }
+
+    @After
+    public void deleteArray() throws IOException {
+        array.close();
+        Files.delete(path);
+    }
+
+    @Test
+    public void getAndSet() {
+        assertNull(array.get(0));
+        array.set(0, 5L);
+        array.set(2, -7L);
+        array.set(0, 6L);
+        assertNull(array.get(0, 0));
+        assertEquals((long) 5, (long) array.get(0, 1));
+        assertEquals((long) 6, (long) array.get(0));
+        assertEquals((long) -7, (long) array.get(2, 2));
+    }
+
+    @Test
+    public void addAndRemove() {
+        assertEquals(1, array.add(1L));
+        assertEquals(2, array.add(2L));
+        assertEquals(3, array.remove());
+        assertEquals(4, array.getLength());
+        assertEquals(5, array.getLength(2));
+        assertEquals(3, array.getLength(0));
+        assertEquals((long) 2, (long) array.get(4, 2));
+        ex.expect(ArrayIndexOutOfBoundsException.class);
+        array.get(4);
+    }
+
+    @Test
+    public void longHistory() {
+        int versions = 20000;
+        for (int i = 1; i <= versions; i++) {
+            array.set(i % 2, (long) i);
+        }
+        for (int i = 1; i <= versions; i++) {
+            assertEquals((long) i, (long) array.get(i % 2, i));
+            assertEquals((long) i, (long) array.get(i % 2, i + 1 > versions ? i : i + 1));
+        }
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        for (int i = 0; i < 3000; i++) {
+            array.add((long) i);
+        }
+        array.set(1, 100L);
+        array.close();
+
+        array = new MappedPersistentArray<>(path, 0, FixedWidthCodec.LONG);
+        assertEquals(3003, array.getLength());
+        assertEquals((long) 2999, (long) array.get(3002));
+        assertEquals((long) 100, (long) array.get(1));
+        assertNull(array.get(1, 3000));
+        array.add(3000L);
+        assertEquals((long) 3000, (long) array.get(3003, 3002));
+    }
+
+    @Test
+    public void longHistoryAfterReopen() throws IOException {
+        int versions = 100000;
+        for (int i = 1; i <= versions / 2; i++) {
+            array.set(0, (long) i);
+        }
+        array.close();
+
+        array = new MappedPersistentArray<>(path, 0, FixedWidthCodec.LONG);
+        for (int i = versions / 2 + 1; i <= versions; i++) {
+            array.set(0, (long) i);
+        }
+        for (int i = 1; i <= versions; i++) {
+            assertEquals((long) i, (long) array.get(0, i));
+        }
+        assertNull(array.get(0, 0));
+    }
+
+    @Test
+    public void reopenWithWrongWidth() throws IOException {
+        array.close();
+        ex.expect(IOException.class);
+        ex.expectMessage(Exceptions.WRONG_ELEMENT_WIDTH);
+        new MappedPersistentArray<>(path, 0, FixedWidthCodec.INTEGER);
+    }
+
+    @Test
+    public void getWrongVersion() {
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(Exceptions.NO_SUCH_VERSION);
+        array.get(0, 1);
+    }
+
+    @Test
+    public void removeFromEmpty() {
+        array.remove();
+        array.remove();
+        array.remove();
+        ex.expect(ArrayIndexOutOfBoundsException.class);
+        ex.expectMessage(Exceptions.NOTHING_TO_REMOVE);
+        array.remove();
+    }
+}
@@ -3,7 +3,20 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 
@@ -118,4 +131,705 @@ public class PersistentArrayTest {
         array.remove();
     }
 
-}
\ No newline at end of file
+    @Test
+    public void snapshot() throws Exception {
+        array = new PersistentArray<>(3);
+        array.set(0, 1);
+        array.set(1, -100000);
+        array.add(7);
+        array.set(0, null);
+        array.remove();
+        array.remove();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        array.writeSnapshot(Channels.newChannel(bytes), ValueCodec.INTEGER);
+
+        PersistentArray<Integer> copy = PersistentArray.readSnapshot(
+                Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), ValueCodec.INTEGER);
+        for (int version = 0; version <= 6; version++) {
+            assertEquals(array.getLength(version), copy.getLength(version));
+            for (int i = 0; i < array.getLength(version); i++)
+                assertEquals(array.get(i, version), copy.get(i, version));
+        }
+        assertEquals(7, copy.add(8));
+        assertEquals((int) 8, (int) copy.get(2));
+    }
+
+    @Test
+    public void snapshotWhileWriting() throws Exception {
+        array = new PersistentArray<>(1);
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 20000; i++)
+                array.set(0, i);
+        });
+        while (!writer.isDone()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            array.writeSnapshot(Channels.newChannel(bytes), ValueCodec.INTEGER);
+            PersistentArray<Integer> copy = PersistentArray.readSnapshot(
+                    Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), ValueCodec.INTEGER);
+            // every version of the snapshot is complete
+            int current = copy.add(0) - 1;
+            for (int version = 1; version <= current; version++)
+                assertEquals((int) version - 1, (int) copy.get(0, version));
+        }
+        writer.get();
+    }
+
+    @Test
+    public void snapshotWrongType() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new PersistentMap<Integer, Integer>().writeSnapshot(Channels.newChannel(bytes), ValueCodec.INTEGER, ValueCodec.INTEGER);
+        ex.expect(IOException.class);
+        ex.expectMessage(Exceptions.WRONG_SNAPSHOT_TYPE);
+        PersistentArray.readSnapshot(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), ValueCodec.INTEGER);
+    }
+
+    @Test
+    public void snapshotCorruptedCount() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new PersistentArray<Integer>(0).writeSnapshot(Channels.newChannel(bytes), ValueCodec.INTEGER);
+        byte[] snapshot = bytes.toByteArray();
+        // the snapshot ends with the number of elements, which is 0
+        assertEquals(0, snapshot[snapshot.length - 1]);
+        for (byte last : new byte[]{0x0F, 0x07}) {
+            byte[] corrupted = Arrays.copyOf(snapshot, snapshot.length + 4);
+            Arrays.fill(corrupted, snapshot.length - 1, corrupted.length - 1, (byte) 0xFF);
+            corrupted[corrupted.length - 1] = last;
+            try {
+                PersistentArray.readSnapshot(Channels.newChannel(new ByteArrayInputStream(corrupted)), ValueCodec.INTEGER);
+                throw new AssertionError();
+            } catch (IOException e) {
+                assertEquals(Exceptions.CORRUPTED_SNAPSHOT, e.getMessage());
+            }
+        }
+        Path path = Files.createTempFile("array", ".snapshot");
+        byte[] corrupted = Arrays.copyOf(snapshot, snapshot.length);
+        corrupted[corrupted.length - 1] = 1;
+        Files.write(path, corrupted);
+        try (FileChannel channel = FileChannel.open(path)) {
+            ex.expect(IOException.class);
+            ex.expectMessage(Exceptions.CORRUPTED_SNAPSHOT);
+            PersistentArray.readSnapshot(channel, ValueCodec.INTEGER);
+        }
+    }
+
+    @Test
+    public void snapshotCorruptedStringLength() throws Exception {
+        PersistentArray<String> strings = new PersistentArray<>(1);
+        strings.set(0, "a");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        strings.writeSnapshot(Channels.newChannel(bytes), ValueCodec.STRING);
+        byte[] snapshot = bytes.toByteArray();
+        // the snapshot ends with the length of the only string and its byte
+        assertEquals(1, snapshot[snapshot.length - 2]);
+        for (byte last : new byte[]{0x0F, 0x07}) {
+            byte[] corrupted = Arrays.copyOf(snapshot, snapshot.length + 4);
+            Arrays.fill(corrupted, snapshot.length - 2, corrupted.length - 2, (byte) 0xFF);
+            corrupted[corrupted.length - 2] = last;
+            corrupted[corrupted.length - 1] = 'a';
+            try {
+                PersistentArray.readSnapshot(Channels.newChannel(new ByteArrayInputStream(corrupted)), ValueCodec.STRING);
+                throw new AssertionError();
+            } catch (IOException e) {
+                assertEquals(Exceptions.CORRUPTED_SNAPSHOT, e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void writeAheadLog() throws Exception {
+        Path path = Files.createTempFile("array", ".log");
+        try (WriteAheadLog log = new WriteAheadLog(path, 2)) {
+            array = new PersistentArray<>(3, log, ValueCodec.INTEGER);
+            array.set(0, 1);
+            array.add(5);
+            array.set(1, null);
+            array.remove();
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.APPEND)) {
+            channel.write(java.nio.ByteBuffer.wrap(new byte[]{0, 0, 0, 9, 1, 2}));
+        }
+
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            PersistentArray<Integer> copy = new PersistentArray<>(3, log, ValueCodec.INTEGER);
+            for (int version = 0; version <= 4; version++) {
+                assertEquals(array.getLength(version), copy.getLength(version));
+                for (int i = 0; i < array.getLength(version); i++)
+                    assertEquals(array.get(i, version), copy.get(i, version));
+            }
+            copy.set(0, 2);
+        }
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            PersistentArray<Integer> copy = new PersistentArray<>(3, log, ValueCodec.INTEGER);
+            assertEquals((int) 2, (int) copy.get(0));
+            assertEquals((int) 1, (int) copy.get(0, 4));
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void writeAheadLogWithoutClose() throws Exception {
+        Path path = Files.createTempFile("array", ".log");
+        WriteAheadLog log = new WriteAheadLog(path);
+        array = new PersistentArray<>(3, log, ValueCodec.INTEGER);
+        array.set(0, 1);
+        array.set(1, 2);
+        assertEquals(true, Files.size(path) > 0);
+
+        try (WriteAheadLog reopened = new WriteAheadLog(path)) {
+            PersistentArray<Integer> copy = new PersistentArray<>(3, reopened, ValueCodec.INTEGER);
+            assertEquals(Arrays.asList(1, 2, null), Arrays.asList(copy.toArray()));
+            assertEquals((int) 1, (int) copy.get(0, 1));
+            assertEquals(null, copy.get(1, 1));
+        }
+        log.close();
+        Files.delete(path);
+    }
+
+    @Test
+    public void writeAheadLogFailedAppend() throws Exception {
+        Path path = Files.createTempFile("array", ".log");
+        ValueCodec<Integer> codec = new ValueCodec<Integer>() {
+            @Override
+            public void write(Integer value, SnapshotOutput out) throws IOException {
+                if (value < 0)
+                    throw new IOException();
+                out.writeSignedVarInt(value);
+            }
+
+            @Override
+            public Integer read(SnapshotInput in) throws IOException {
+                return in.readSignedVarInt();
+            }
+        };
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            array = new PersistentArray<>(2, log, codec);
+            array.set(0, 1);
+            try {
+                array.set(1, -1);
+            } catch (java.io.UncheckedIOException e) {
+                assertEquals(Arrays.asList(1, null), Arrays.asList(array.toArray()));
+            }
+            assertEquals(2, array.set(1, 2));
+        }
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            PersistentArray<Integer> copy = new PersistentArray<>(2, log, codec);
+            assertEquals(Arrays.asList(1, 2), Arrays.asList(copy.toArray()));
+            assertEquals((int) 1, (int) copy.get(0, 1));
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void exportSnapshotAsync() throws Exception {
+        array = new PersistentArray<>(2);
+        array.set(0, 1);
+        array.add(null);
+        array.add(3);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompletableFuture<Void> export = array.exportSnapshotAsync(3, Channels.newChannel(bytes), ValueCodec.INTEGER);
+        for (int i = 0; i < 1000; i++) {
+            array.add(i);
+            array.set(0, i);
+        }
+        export.get();
+
+        PersistentArray<Integer> copy = PersistentArray.readSnapshot(
+                Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), ValueCodec.INTEGER);
+        assertEquals(4, copy.getLength());
+        assertEquals((int) 1, (int) copy.get(0));
+        assertEquals(null, copy.get(1));
+        assertEquals(null, copy.get(2));
+        assertEquals((int) 3, (int) copy.get(3));
+        assertEquals(1, copy.add(4));
+    }
+
+    @Test
+    public void spillHistory() throws Exception {
+        array = new PersistentArray<>(3);
+        for (int i = 0; i < 300; i++)
+            array.set(i % 3, i);
+        Path path = Files.createTempFile("array", ".spill");
+        try (HistorySpill spill = new HistorySpill(path, 1)) {
+            // version 0 of the elements is implicit, so only their changes are spilled
+            assertEquals(197, array.spillHistory(spill, ValueCodec.INTEGER, 200));
+            array.set(0, -1);
+            assertEquals(50, array.spillHistory(spill, ValueCodec.INTEGER, 250));
+            assertEquals(null, array.get(2, 2));
+            for (int version = 3; version <= 300; version++)
+                assertEquals((int) version - 1, (int) array.get((version - 1) % 3, version));
+            assertEquals((int) -1, (int) array.get(0));
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            array.writeSnapshot(Channels.newChannel(bytes), ValueCodec.INTEGER);
+            PersistentArray<Integer> copy = PersistentArray.readSnapshot(
+                    Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), ValueCodec.INTEGER);
+            for (int version = 0; version <= 301; version++)
+                for (int i = 0; i < 3; i++)
+                    assertEquals(array.get(i, version), copy.get(i, version));
+        }
+    }
+
+    @Test
+    public void spillHistoryEvery() throws Exception {
+        array = new PersistentArray<>(3);
+        Path path = Files.createTempFile("array", ".spill");
+        try (HistorySpill spill = new HistorySpill(path, 1, 16)) {
+            array.spillHistoryEvery(spill, ValueCodec.INTEGER, 50);
+            for (int i = 0; i < 300; i++)
+                array.set(i % 3, i);
+            // the last automatic spill moved everything before version 200
+            assertEquals(0, array.spillHistory(spill, ValueCodec.INTEGER, 200));
+            for (int version = 1; version <= 300; version++)
+                assertEquals((int) version - 1, (int) array.get((version - 1) % 3, version));
+            assertEquals(Arrays.asList(new VersionedValue<>(0, null, false), new VersionedValue<>(1, 0, false),
+                    new VersionedValue<>(4, 3, false)), array.history(0, 0, 6));
+            // the range starts inside one spilled part and ends in the next one
+            assertEquals(Arrays.asList(new VersionedValue<>(148, 147, false), new VersionedValue<>(151, 150, false),
+                    new VersionedValue<>(154, 153, false)), array.history(0, 146, 156));
+
+            ex.expect(IllegalStateException.class);
+            ex.expectMessage(Exceptions.SPILLED_VERSIONS);
+            array.set(0, 1, 250);
+        }
+    }
+
+    @Test
+    public void squash() {
+        array = new PersistentArray<>(2);
+        array.set(0, 1);
+        for (int i = 0; i < 100; i++)
+            array.set(1, i);
+        array.add(5);
+        array.remove();
+        array.set(0, 2);
+        assertEquals(100, array.squash(2, 103));
+        assertEquals((int) 1, (int) array.get(0, 1));
+        assertEquals(null, array.get(1, 50));
+        assertEquals((int) 99, (int) array.get(1, 103));
+        assertEquals(2, array.getLength(103));
+        assertEquals((int) 2, (int) array.get(0, 104));
+        assertEquals(2, array.getLength(60));
+    }
+
+    @Test
+    public void leasesAndReclaim() {
+        array = new PersistentArray<>(1);
+        for (int i = 0; i < 10; i++)
+            array.set(0, i);
+        VersionLease lease = array.acquire(5);
+        VersionLease current = array.acquire();
+        assertEquals(10, current.getVersion());
+        assertEquals(4, array.reclaim());
+        assertEquals((int) 4, (int) array.get(0, 5));
+        lease.close();
+        lease.close();
+        assertEquals(5, array.reclaim());
+        assertEquals((int) 9, (int) array.get(0));
+        current.close();
+        assertEquals(0, array.reclaim());
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(Exceptions.NO_SUCH_VERSION);
+        array.get(0, 9);
+    }
+
+    @Test
+    public void acquireReclaimedVersion() {
+        array = new PersistentArray<>(1);
+        array.set(0, 1);
+        array.reclaim();
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(Exceptions.NO_SUCH_VERSION);
+        array.acquire(0);
+    }
+
+    @Test
+    public void backgroundReclaimer() throws Exception {
+        array = new PersistentArray<>(1);
+        for (int i = 0; i < 10; i++)
+            array.set(0, i);
+        try (HistoryReclaimer reclaimer = new HistoryReclaimer(1, TimeUnit.MILLISECONDS);
+             VersionLease lease = array.acquire(3)) {
+            reclaimer.register(array::reclaim);
+            for (int i = 0; i < 1000 && array.reclaim() == 0; i++) {
+                Thread.sleep(1);
+            }
+            assertEquals((int) 2, (int) array.get(0, 3));
+        }
+    }
+
+    @Test
+    public void leasedReadsWhileWriting() throws Exception {
+        array = new PersistentArray<>(1);
+        array.set(0, 0);
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            for (int i = 1; i < 20000; i++) {
+                array.set(0, i);
+                if (i % 100 == 0)
+                    array.reclaim();
+            }
+        });
+        List<CompletableFuture<Void>> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            readers.add(CompletableFuture.runAsync(() -> {
+                while (!writer.isDone()) {
+                    try (VersionLease lease = array.acquire()) {
+                        assertEquals((int) lease.getVersion() - 1, (int) array.get(0, lease.getVersion()));
+                    }
+                }
+            }));
+        }
+        writer.get();
+        for (CompletableFuture<Void> reader : readers)
+            reader.get();
+    }
+
+    @Test
+    public void backgroundReclaimerReportsFailures() throws Exception {
+        CompletableFuture<RuntimeException> failure = new CompletableFuture<>();
+        try (HistoryReclaimer reclaimer = new HistoryReclaimer(1, TimeUnit.MILLISECONDS, failure::complete)) {
+            reclaimer.register(() -> {
+                throw new IllegalStateException("reclaim");
+            });
+            assertEquals("reclaim", failure.get(10, TimeUnit.SECONDS).getMessage());
+        }
+    }
+
+    @Test
+    public void branches() throws Exception {
+        Path path = Files.createTempFile("array", ".log");
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            array = new PersistentArray<>(2, log, ValueCodec.INTEGER);
+            array.set(0, 1);
+            array.set(0, 2);
+            assertEquals(3, array.set(1, 5, 1));
+            assertEquals(4, array.add(6));
+            assertEquals(5, array.remove(2));
+            assertEquals(6, array.add(7, 1));
+        }
+        assertEquals((int) 2, (int) array.get(0, 2));
+        assertEquals(null, array.get(1, 2));
+        assertEquals((int) 1, (int) array.get(0, 3));
+        assertEquals((int) 5, (int) array.get(1, 3));
+        assertEquals(3, array.getLength(4));
+        assertEquals((int) 6, (int) array.get(2, 4));
+        assertEquals(1, array.getLength(5));
+        assertEquals((int) 2, (int) array.get(0, 5));
+        assertEquals((int) 7, (int) array.get(2, 6));
+        assertEquals(null, array.get(1, 6));
+        assertEquals(1, array.getParentVersion(3));
+        assertEquals(3, array.getParentVersion(4));
+        assertEquals(1, array.getParentVersion(6));
+
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            PersistentArray<Integer> copy = new PersistentArray<>(2, log, ValueCodec.INTEGER);
+            for (int version = 0; version <= 6; version++) {
+                assertEquals(array.getLength(version), copy.getLength(version));
+                for (int i = 0; i < array.getLength(version); i++)
+                    assertEquals(array.get(i, version), copy.get(i, version));
+            }
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void manyBranches() {
+        array = new PersistentArray<>(1);
+        for (int i = 1; i <= 1000; i++)
+            array.set(0, i, i / 2);
+        for (int version = 1; version <= 1000; version++)
+            assertEquals((int) version, (int) array.get(0, version));
+        assertEquals(null, array.get(0, 0));
+        assertEquals(250, array.getParentVersion(500));
+    }
+
+    @Test
+    public void squashBranches() {
+        array = new PersistentArray<>(1);
+        array.set(0, 1);
+        array.set(0, 2, 0);
+        ex.expect(IllegalStateException.class);
+        ex.expectMessage(Exceptions.BRANCHED_HISTORY);
+        array.squash(1, 2);
+    }
+
+    @Test
+    public void forkAt() {
+        array = new PersistentArray<>(3);
+        array.set(0, 1);
+        array.set(1, 2);
+        array.set(0, 3);
+        PersistentArray<Integer> fork = array.forkAt(2);
+        assertEquals(3, fork.getLength());
+        assertEquals((int) 1, (int) fork.get(0));
+        assertEquals(3, fork.set(2, 5));
+        assertEquals(4, fork.add(6));
+        array.set(1, 7);
+
+        assertEquals((int) 1, (int) fork.get(0, 4));
+        assertEquals((int) 2, (int) fork.get(1, 4));
+        assertEquals((int) 5, (int) fork.get(2, 4));
+        assertEquals((int) 6, (int) fork.get(3, 4));
+        assertEquals(null, fork.get(0, 0));
+        assertEquals(3, fork.getLength(1));
+        assertEquals(null, array.get(2));
+        assertEquals(3, array.getLength());
+        assertEquals((int) 7, (int) array.get(1));
+
+        PersistentArray<Integer> second = fork.forkAt(3);
+        second.remove();
+        second.set(1, 8);
+        assertEquals(2, second.getLength());
+        assertEquals((int) 8, (int) second.get(1));
+        assertEquals((int) 5, (int) second.get(2, 3));
+        assertEquals((int) 2, (int) fork.get(1));
+
+        ex.expect(IllegalStateException.class);
+        ex.expectMessage(Exceptions.FORKED_HISTORY);
+        fork.squash(3, 4);
+    }
+
+    @Test
+    public void rollbackTo() {
+        array = new PersistentArray<>(2);
+        array.set(0, 1);
+        array.add(2);
+        array.squash(1, 2);
+        array.set(1, 3);
+        array.remove();
+        assertEquals(5, array.rollbackTo(1));
+        assertEquals(2, array.getLength());
+        assertEquals(null, array.get(0));
+        assertEquals(2, array.set(1, 4));
+        assertEquals((int) 4, (int) array.get(1));
+        assertEquals(null, array.get(0, 2));
+
+        VersionLease lease = array.acquire();
+        ex.expect(IllegalStateException.class);
+        ex.expectMessage(Exceptions.LEASED_VERSIONS);
+        array.rollbackTo(0);
+    }
+
+    @Test
+    public void history() {
+        array = new PersistentArray<>(2);
+        array.set(0, 1);
+        array.set(1, 2);
+        array.set(0, 3);
+        PersistentArray<Integer> fork = array.forkAt(3);
+        fork.set(0, 5);
+        array.set(0, 4, 1);
+
+        assertEquals(Arrays.asList(new VersionedValue<>(0, null, false), new VersionedValue<>(1, 1, false),
+                new VersionedValue<>(3, 3, false)), array.history(0, 0, 3));
+        assertEquals(Arrays.asList(new VersionedValue<>(1, 1, false), new VersionedValue<>(4, 4, false)),
+                array.history(0, 1, 4));
+        assertEquals(Arrays.asList(new VersionedValue<>(2, 2, false)), array.history(1, 1, 3));
+        assertEquals(0, array.history(1, 1, 4).size());
+        assertEquals(Arrays.asList(new VersionedValue<>(3, 3, false), new VersionedValue<>(4, 5, false)),
+                fork.history(0, 2, 4));
+        assertEquals(0, array.history(5).size());
+    }
+
+    @Test
+    public void getAll() {
+        array = new PersistentArray<>(3);
+        array.set(0, 1);
+        array.set(2, 3);
+        array.add(4);
+        Integer[] values = new Integer[4];
+        array.getAll(new int[]{3, 0, 2, 0}, 3, values);
+        assertEquals(Arrays.asList(4, 1, 3, 1), Arrays.asList(values));
+        array.getAll(new int[]{2, 1}, 1, values);
+        assertEquals(Arrays.asList(null, null, 3, 1), Arrays.asList(values));
+        ex.expect(ArrayIndexOutOfBoundsException.class);
+        ex.expectMessage(Exceptions.ARRAY_INDEX_OUT_OF_BOUNDS);
+        array.getAll(new int[]{3}, 2, values);
+    }
+
+    @Test
+    public void setAllAndSetRange() throws Exception {
+        Path path = Files.createTempFile("array", ".log");
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            array = new PersistentArray<>(4, log, ValueCodec.INTEGER);
+            assertEquals(1, array.setAll(new int[]{3, 0, 3}, new Integer[]{1, 2, 3}));
+            assertEquals(2, array.setRange(1, new Integer[]{4, 5, null}));
+            assertEquals(2, array.setRange(4, new Integer[0]));
+        }
+        assertEquals(Arrays.asList(2, null, null, 3), Arrays.asList(array.get(0, 1), array.get(1, 1), array.get(2, 1), array.get(3, 1)));
+        assertEquals(Arrays.asList(2, 4, 5, null), Arrays.asList(array.get(0), array.get(1), array.get(2), array.get(3)));
+
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            PersistentArray<Integer> copy = new PersistentArray<>(4, log, ValueCodec.INTEGER);
+            for (int i = 0; i < 4; i++) {
+                assertEquals(array.get(i, 1), copy.get(i, 1));
+            }
+            assertEquals((int) 4, (int) copy.get(1, 2));
+        }
+        Files.delete(path);
+
+        ex.expect(ArrayIndexOutOfBoundsException.class);
+        ex.expectMessage(Exceptions.ARRAY_INDEX_OUT_OF_BOUNDS);
+        try {
+            array.setAll(new int[]{0, 4}, new Integer[]{7, 8});
+        } finally {
+            assertEquals((int) 2, (int) array.get(0));
+        }
+    }
+
+    @Test
+    public void restoreRangeAndRevertTo() throws Exception {
+        Path path = Files.createTempFile("array", ".log");
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            array = new PersistentArray<>(4, log, ValueCodec.INTEGER);
+            array.setRange(0, new Integer[]{1, 2, 3, 4});
+            array.set(1, 5);
+            array.set(2, 6);
+            array.add(7);
+            assertEquals(5, array.restoreRange(0, 3, 1));
+            assertEquals(5, array.restoreRange(0, 3, 1));
+            array.set(0, 8);
+            array.remove();
+            assertEquals(8, array.revertTo(4));
+            assertEquals(8, array.revertTo(8));
+            assertEquals(9, array.revertTo(0));
+        }
+        assertEquals(Arrays.asList(1, 2, 3, 4), Arrays.asList(array.get(0, 5), array.get(1, 5), array.get(2, 5), array.get(3, 5)));
+        assertEquals((int) 7, (int) array.get(4, 5));
+        assertEquals(5, array.getLength(8));
+        assertEquals(Arrays.asList(1, 5, 6, 4, 7), Arrays.asList(array.get(0, 8), array.get(1, 8), array.get(2, 8),
+                array.get(3, 8), array.get(4, 8)));
+        assertEquals(4, array.getLength());
+        assertEquals(Arrays.asList(null, null, null, null), Arrays.asList(array.get(0), array.get(1), array.get(2), array.get(3)));
+
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            PersistentArray<Integer> copy = new PersistentArray<>(4, log, ValueCodec.INTEGER);
+            for (int version = 0; version <= 9; version++) {
+                assertEquals(array.getLength(version), copy.getLength(version));
+                for (int i = 0; i < array.getLength(version); i++)
+                    assertEquals(array.get(i, version), copy.get(i, version));
+            }
+
+            copy.set(1, 9, 3);
+            assertEquals(11, copy.revertTo(8));
+            assertEquals(10, copy.getParentVersion(11));
+            assertEquals(Arrays.asList(1, 5, 6, 4, 7), Arrays.asList(copy.get(0), copy.get(1), copy.get(2),
+                    copy.get(3), copy.get(4)));
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void bulkConstructor() throws Exception {
+        array = new PersistentArray<>(Arrays.asList(1, null, 3));
+        assertEquals(3, array.getLength());
+        assertEquals((int) 3, (int) array.get(2));
+        assertEquals(1, array.set(0, 4));
+        array.add(5);
+        assertEquals(Arrays.asList(1, null, 3), Arrays.asList(array.get(0, 0), array.get(1, 0), array.get(2, 0)));
+        assertEquals(Arrays.asList(new VersionedValue<>(0, 1, false), new VersionedValue<>(1, 4, false)), array.history(0));
+        assertEquals(Arrays.asList(new VersionedValue<>(0, null, false)), array.history(1));
+        assertEquals(3, array.revertTo(0));
+        assertEquals((int) 1, (int) array.get(0));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        array.writeSnapshot(Channels.newChannel(bytes), ValueCodec.INTEGER);
+        PersistentArray<Integer> copy = PersistentArray.readSnapshot(
+                Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), ValueCodec.INTEGER);
+        for (int version = 0; version <= 3; version++) {
+            assertEquals(array.getLength(version), copy.getLength(version));
+            for (int i = 0; i < array.getLength(version); i++)
+                assertEquals(array.get(i, version), copy.get(i, version));
+        }
+
+        PersistentArray<Integer> large = new PersistentArray<>(100000);
+        assertEquals(null, large.get(99999));
+        large.set(99999, 1);
+        assertEquals((int) 1, (int) large.get(99999));
+        assertEquals(null, large.get(99999, 0));
+    }
+
+    @Test
+    public void mirrorCurrentVersion() {
+        array = new PersistentArray<>(Arrays.asList(1, 2, 3));
+        array.set(0, 4);
+        array.mirrorCurrentVersion();
+        assertEquals(Arrays.asList(4, 2, 3), Arrays.asList(array.toArray()));
+        array.add(5);
+        array.remove();
+        array.remove();
+        array.setRange(0, new Integer[]{6, 7});
+        assertEquals(Arrays.asList(6, 7), Arrays.asList(array.toArray()));
+        array.revertTo(2);
+        assertEquals(Arrays.asList(4, 2, 3, 5), Arrays.asList(array.toArray()));
+        assertEquals(4, array.getLength());
+        array.rollbackTo(5);
+        assertEquals(Arrays.asList(6, 7), Arrays.asList(array.toArray()));
+        array.rollbackTo(2);
+        assertEquals(Arrays.asList(4, 2, 3, 5), Arrays.asList(array.toArray()));
+        array.set(1, 8, 0);
+        assertEquals(Arrays.asList(1, 8, 3), Arrays.asList(array.toArray()));
+        assertEquals((int) 8, (int) array.get(1));
+        array.rollbackTo(2);
+        assertEquals(Arrays.asList(4, 2, 3, 5), Arrays.asList(array.toArray()));
+
+        PersistentArray<Integer> attached = new PersistentArray<>(2);
+        attached.mirrorCurrentVersion();
+        VersionClock clock = new VersionClock();
+        attached.attachTo(clock);
+        try {
+            clock.transaction(() -> {
+                attached.set(0, 1);
+                attached.add(2);
+                throw new IllegalStateException();
+            });
+        } catch (IllegalStateException e) {
+            assertEquals(Arrays.asList(null, null), Arrays.asList(attached.toArray()));
+        }
+        ex.expect(ArrayIndexOutOfBoundsException.class);
+        ex.expectMessage(Exceptions.ARRAY_INDEX_OUT_OF_BOUNDS);
+        attached.get(2);
+    }
+
+    @Test
+    public void mirrorReadWhileWriting() throws Exception {
+        array = new PersistentArray<>(Arrays.asList(1, 2));
+        array.mirrorCurrentVersion();
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 10000; i++) {
+                array.add(3);
+                array.remove();
+            }
+        });
+        while (!writer.isDone()) {
+            int length = array.getLength();
+            assertEquals(true, length == 2 || length == 3);
+            assertEquals((int) 2, (int) array.get(1));
+            try {
+                assertEquals((int) 3, (int) array.get(2));
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // the element was removed meanwhile
+            }
+        }
+        writer.get();
+    }
+
+    @Test
+    public void mirrorReadWhileWritingBatches() throws Exception {
+        Integer[] values = new Integer[100];
+        Arrays.fill(values, 0);
+        array = new PersistentArray<>(Arrays.asList(values));
+        array.mirrorCurrentVersion();
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            for (int i = 1; i <= 10000; i++) {
+                Arrays.fill(values, i);
+                array.setRange(0, values);
+            }
+        });
+        while (!writer.isDone()) {
+            int first = array.get(0);
+            int last = array.get(values.length - 1);
+            assertEquals(true, first <= last);
+        }
+        writer.get();
+    }
+}
@@ -2,7 +2,13 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.Assert.assertEquals;
 
@@ -164,6 +170,41 @@ public class PersistentLinkedListTest {
         new PersistentLinkedList().addAll(26, set);
     }
 
+    @Test
+    public void concat() {
+        persistentLinkedList = new PersistentLinkedList<>(set);
+        PersistentLinkedList<Integer> other = new PersistentLinkedList<>();
+        other.add(setSize);
+        other.add(setSize + 1);
+        other.removeFirst();
+        assertEquals(true, persistentLinkedList.concat(other, 2));
+        assertEquals(false, persistentLinkedList.concat(other, 0));
+        assertEquals(setSize + 2, persistentLinkedList.size());
+        assertEquals(setSize + 1, persistentLinkedList.peekLast());
+        persistentLinkedList.concat(persistentLinkedList, 0);
+        assertEquals(2 * setSize + 2, persistentLinkedList.size());
+        assertEquals(0, persistentLinkedList.get(setSize + 2));
+        assertEquals(setSize, persistentLinkedList.size(0));
+    }
+
+    @Test
+    public void splitAt() {
+        persistentLinkedList = new PersistentLinkedList<>(set);
+        List tail = persistentLinkedList.splitAt(10);
+        assertEquals(10, persistentLinkedList.size());
+        assertEquals(9, persistentLinkedList.peekLast());
+        assertEquals(setSize - 10, tail.size());
+        assertEquals(10, tail.get(0));
+        persistentLinkedList.add(-1);
+        assertEquals(-1, persistentLinkedList.get(10));
+        assertEquals(10, tail.get(0));
+        assertEquals(setSize, persistentLinkedList.size(0));
+        assertEquals(11, persistentLinkedList.splitAt(0).size());
+        assertEquals(true, persistentLinkedList.isEmpty());
+        persistentLinkedList.addFirst(1);
+        assertEquals(1, persistentLinkedList.peekLast());
+    }
+
     @Test
     public void retainAll() {
         persistentLinkedList = new PersistentLinkedList<>();
@@ -258,12 +299,49 @@ public class PersistentLinkedListTest {
     @Test
     public void removeIndex() {
         persistentLinkedList = new PersistentLinkedList<>(set);
-        persistentLinkedList.remove(setSize - 1);
+        assertEquals(setSize - 1, persistentLinkedList.remove(setSize - 1));
+        assertEquals(0, persistentLinkedList.remove(0));
         ex.expect(IndexOutOfBoundsException.class);
         ex.expectMessage(Exceptions.LIST_INDEX_OUT_OF_BOUNDS);
         persistentLinkedList.remove(setSize + 1);
     }
 
+    @Test
+    public void dequeOperations() {
+        persistentLinkedList = new PersistentLinkedList<>();
+        assertEquals(null, persistentLinkedList.peekFirst());
+        assertEquals(null, persistentLinkedList.peekLast());
+        persistentLinkedList.addLast(1);
+        persistentLinkedList.addFirst(0);
+        persistentLinkedList.addLast(2);
+        assertEquals(0, persistentLinkedList.peekFirst());
+        assertEquals(2, persistentLinkedList.peekLast());
+        assertEquals(1, persistentLinkedList.peekLast(1));
+        assertEquals(2, persistentLinkedList.removeLast());
+        assertEquals(0, persistentLinkedList.removeFirst());
+        assertEquals(1, persistentLinkedList.size());
+        assertEquals(1, persistentLinkedList.peekFirst());
+        assertEquals(1, persistentLinkedList.removeFirst());
+        assertEquals(true, persistentLinkedList.isEmpty());
+        assertEquals(3, persistentLinkedList.size(3));
+        assertEquals(0, persistentLinkedList.get(0, 3));
+        assertEquals(2, persistentLinkedList.get(2, 3));
+    }
+
+    @Test
+    public void removeFirstEmpty() {
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(Exceptions.NO_SUCH_ELEMENT);
+        new PersistentLinkedList<>().removeFirst();
+    }
+
+    @Test
+    public void removeLastEmpty() {
+        ex.expect(NoSuchElementException.class);
+        ex.expectMessage(Exceptions.NO_SUCH_ELEMENT);
+        new PersistentLinkedList<>().removeLast();
+    }
+
     @Test
     public void indexOf() {
         persistentLinkedList = new PersistentLinkedList<>();
@@ -288,6 +366,26 @@ public class PersistentLinkedListTest {
         persistentLinkedList.add("object");
         persistentLinkedList.add("object");
         assertEquals(1, persistentLinkedList.lastIndexOf("object"));
+        persistentLinkedList.add(null);
+        persistentLinkedList.add("other object");
+        assertEquals(2, persistentLinkedList.lastIndexOf(null));
+        assertEquals(1, persistentLinkedList.lastIndexOf("object", 2));
+        assertEquals(-1, persistentLinkedList.lastIndexOf("other object", 3));
+    }
+
+    @Test
+    public void indexedAccessFromBothEnds() {
+        persistentLinkedList = new PersistentLinkedList<>(set);
+        for (int i = 0; i < setSize; i++)
+            assertEquals(i, persistentLinkedList.get(i));
+        persistentLinkedList.set(setSize - 2, -1);
+        persistentLinkedList.add(setSize - 1, -2);
+        assertEquals(-1, persistentLinkedList.get(setSize - 2));
+        assertEquals(-2, persistentLinkedList.get(setSize - 1));
+        assertEquals(setSize - 1, persistentLinkedList.get(setSize));
+        assertEquals(-1, persistentLinkedList.remove(setSize - 2));
+        assertEquals(-2, persistentLinkedList.get(setSize - 2));
+        assertEquals(setSize - 2, persistentLinkedList.get(setSize - 2, 0));
     }
 
     @Test
@@ -304,7 +402,10 @@ public class PersistentLinkedListTest {
         persistentLinkedList.addAll(set);
         ListIterator li = persistentLinkedList.versionedListIterator(1, 1);
         assertEquals(true, li.hasNext());
-        assertEquals(set.toArray()[2], li.next());
+        assertEquals(set.toArray()[1], li.next());
+        assertEquals(set.toArray()[1], li.previous());
+        assertEquals(set.toArray()[0], li.previous());
+        assertEquals(false, li.hasPrevious());
     }
 
     @Test
@@ -331,12 +432,95 @@ public class PersistentLinkedListTest {
         persistentLinkedList.addAll(set);
         ListIterator li = persistentLinkedList.listIterator(1);
         assertEquals(true, li.hasNext());
-        assertEquals(set.toArray()[2], li.next());
+        assertEquals(set.toArray()[1], li.next());
         li = persistentLinkedList.listIterator();
         assertEquals(true, li.hasNext());
         assertEquals(set.toArray()[0], li.next());
     }
 
+    @Test
+    public void listIteratorStartsAtIndex() {
+        persistentLinkedList = new PersistentLinkedList<>(set);
+        for (int index = 0; index < setSize; index++) {
+            assertEquals(set.toArray()[index], persistentLinkedList.listIterator(index).next());
+            assertEquals(set.toArray()[index], persistentLinkedList.versionedListIterator(0, index).next());
+            assertEquals(index, persistentLinkedList.listIterator(index).nextIndex());
+        }
+        ListIterator li = persistentLinkedList.listIterator(setSize);
+        assertEquals(false, li.hasNext());
+        assertEquals(set.toArray()[setSize - 1], li.previous());
+    }
+
+    @Test
+    public void listIteratorModification() {
+        persistentLinkedList = new PersistentLinkedList<>(set);
+        ListIterator li = persistentLinkedList.listIterator();
+        while (li.hasNext()) {
+            int o = (int) li.next();
+            if (o % 2 == 0) {
+                li.remove();
+            } else {
+                li.set(o * 10);
+                li.add(o);
+            }
+        }
+        assertEquals(setSize, persistentLinkedList.size());
+        assertEquals(setSize, persistentLinkedList.size(1));
+        for (int i = 0; i < setSize / 2; i++) {
+            assertEquals((2 * i + 1) * 10, persistentLinkedList.get(2 * i));
+            assertEquals(2 * i + 1, persistentLinkedList.get(2 * i + 1));
+        }
+        int i = 0;
+        for (Object o : persistentLinkedList.toArray(0)) {
+            assertEquals(i, o);
+            i++;
+        }
+    }
+
+    @Test
+    public void listIteratorAddToEmpty() {
+        persistentLinkedList = new PersistentLinkedList<>();
+        ListIterator li = persistentLinkedList.listIterator();
+        li.add(1);
+        li.add(2);
+        assertEquals(2, li.previous());
+        li.add(0);
+        assertEquals(3, persistentLinkedList.size());
+        assertEquals(true, persistentLinkedList.isEmpty(0));
+        assertEquals(0, persistentLinkedList.get(1));
+        assertEquals(2, persistentLinkedList.lastIndexOf(2));
+    }
+
+    @Test
+    public void listIteratorModifyOldVersion() {
+        persistentLinkedList = new PersistentLinkedList<>(set);
+        persistentLinkedList.add(setSize);
+        ListIterator li = persistentLinkedList.versionedListIterator(0);
+        li.next();
+        ex.expect(UnsupportedOperationException.class);
+        ex.expectMessage(Exceptions.OLD_VERSION_IS_READ_ONLY);
+        li.set(0);
+    }
+
+    @Test
+    public void listIteratorConcurrentModification() {
+        persistentLinkedList = new PersistentLinkedList<>(set);
+        ListIterator li = persistentLinkedList.listIterator();
+        li.next();
+        li.set(-1);
+        persistentLinkedList.add(setSize);
+        ex.expect(ConcurrentModificationException.class);
+        li.remove();
+    }
+
+    @Test
+    public void listIteratorRemoveWithoutNext() {
+        persistentLinkedList = new PersistentLinkedList<>(set);
+        ex.expect(IllegalStateException.class);
+        ex.expectMessage(Exceptions.NO_ELEMENT_TO_MODIFY);
+        persistentLinkedList.listIterator().remove();
+    }
+
     @Test
     public void subList() {
         persistentLinkedList = new PersistentLinkedList<>(set);
@@ -344,6 +528,45 @@ public class PersistentLinkedListTest {
         assertEquals(l.get(0), persistentLinkedList.get(0));
     }
 
+    @Test
+    public void subListView() {
+        persistentLinkedList = new PersistentLinkedList<>(set);
+        List l = persistentLinkedList.subList(20, setSize);
+        persistentLinkedList.removeLast();
+        persistentLinkedList.set(20, -1);
+        assertEquals(setSize - 20, l.size());
+        int i = 20;
+        for (Object o : l) {
+            assertEquals(i, o);
+            i++;
+        }
+        assertEquals(setSize, i);
+        assertEquals(25, l.get(5));
+        assertEquals(3, l.indexOf(23));
+        ListIterator li = l.listIterator(l.size());
+        assertEquals(25, li.previous());
+        assertEquals(true, persistentLinkedList.subList(3, 3).isEmpty());
+    }
+
+    @Test
+    public void subListViewIsReadOnly() {
+        persistentLinkedList = new PersistentLinkedList<>(set);
+        ex.expect(UnsupportedOperationException.class);
+        persistentLinkedList.subList(0, 2).set(0, 1);
+    }
+
+    @Test
+    public void materializeSubList() {
+        persistentLinkedList = new PersistentLinkedList<>(set);
+        PersistentLinkedList<Integer> copy = persistentLinkedList.subList(5, 10).materializeAsNewList();
+        persistentLinkedList.clear();
+        copy.add(10);
+        assertEquals(5, copy.size(0));
+        assertEquals(6, copy.size());
+        for (int i = 0; i < 6; i++)
+            assertEquals(i + 5, copy.get(i));
+    }
+
     @Test
     public void subListWrongIndex() {
         ex.expect(IndexOutOfBoundsException.class);
@@ -360,6 +583,28 @@ public class PersistentLinkedListTest {
         List l = persistentLinkedList.subList(1, setSize - 1, 10);
     }
 
+    @Test
+    public void snapshot() throws Exception {
+        persistentLinkedList = new PersistentLinkedList<>(set);
+        persistentLinkedList.remove(3);
+        persistentLinkedList.addFirst(null);
+        persistentLinkedList.set(10, -10);
+        persistentLinkedList.splitAt(20);
+        persistentLinkedList.clear();
+        persistentLinkedList.add(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        persistentLinkedList.writeSnapshot(Channels.newChannel(bytes), ValueCodec.INTEGER);
+
+        PersistentLinkedList<Integer> copy = PersistentLinkedList.readSnapshot(
+                Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), ValueCodec.INTEGER);
+        for (int version = 0; version <= 6; version++) {
+            assertEquals(Arrays.asList(persistentLinkedList.toArray(version)), Arrays.asList(copy.toArray(version)));
+        }
+        copy.addFirst(0);
+        assertEquals(2, copy.size());
+        assertEquals(1, copy.peekLast());
+    }
+
     @Test
     public void spliterator() {
         ex.expect(UnsupportedOperationException.class);
@@ -371,4 +616,116 @@ public class PersistentLinkedListTest {
         ex.expect(UnsupportedOperationException.class);
         new PersistentLinkedList<>().toArray(new Object[5]);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void writeAheadLog() throws Exception {
+        Path path = Files.createTempFile("list", ".log");
+        PersistentLinkedList<Integer> list;
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            list = new PersistentLinkedList<>(log, ValueCodec.INTEGER);
+            list.addAll(Arrays.asList(1, 2, 3, 4, 5));
+            list.addFirst(0);
+            list.removeLast();
+            list.set(2, null);
+            list.replaceAll(o -> null == o ? 10 : (Integer) o * 2);
+            ListIterator iterator = list.listIterator();
+            iterator.next();
+            iterator.next();
+            iterator.remove();
+            iterator.next();
+            iterator.add(7);
+            iterator.previous();
+            iterator.previous();
+            iterator.set(8);
+            list.removeAll(Arrays.asList(0, 8));
+            list.splitAt(2);
+        }
+
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            PersistentLinkedList<Integer> copy = new PersistentLinkedList<>(log, ValueCodec.INTEGER);
+            for (int version = 0; version <= 8; version++) {
+                assertEquals(list.size(version), copy.size(version));
+                for (int i = 0; i < list.size(version); i++)
+                    assertEquals(list.get(i, version), copy.get(i, version));
+            }
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void exportSnapshotAsync() throws Exception {
+        PersistentLinkedList<Integer> list = new PersistentLinkedList<>(Arrays.asList(1, null, 3));
+        list.addFirst(0);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompletableFuture<Void> export = list.exportSnapshotAsync(1, Channels.newChannel(bytes), ValueCodec.INTEGER);
+        for (int i = 0; i < 1000; i++) {
+            list.add(i);
+            list.removeFirst();
+        }
+        export.get();
+
+        PersistentLinkedList<Integer> copy = PersistentLinkedList.readSnapshot(
+                Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), ValueCodec.INTEGER);
+        assertEquals(Arrays.asList(0, 1, null, 3), Arrays.asList(copy.toArray()));
+        assertEquals(3, (int) copy.peekLast());
+        copy.removeFirst();
+        assertEquals(Arrays.asList(1, null, 3), Arrays.asList(copy.toArray()));
+
+        bytes.reset();
+        new PersistentLinkedList<Integer>().exportSnapshotAsync(0, Channels.newChannel(bytes), ValueCodec.INTEGER).get();
+        assertEquals(0, PersistentLinkedList.readSnapshot(
+                Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), ValueCodec.INTEGER).size());
+    }
+
+    @Test
+    public void squash() {
+        PersistentLinkedList<Integer> list = new PersistentLinkedList<>(Arrays.asList(1, 2));
+        for (int i = 0; i < 10; i++) {
+            list.addFirst(i);
+            list.removeLast();
+        }
+        list.add(100);
+        assertEquals(true, list.squash(1, 20) > 0);
+        assertEquals(Arrays.asList(1, 2), Arrays.asList(list.toArray(0)));
+        assertEquals(Arrays.asList(1, 2), Arrays.asList(list.toArray(10)));
+        assertEquals(Arrays.asList(9, 8), Arrays.asList(list.toArray(20)));
+        assertEquals(Arrays.asList(9, 8, 100), Arrays.asList(list.toArray()));
+        assertEquals(8, (int) list.peekLast(20));
+    }
+
+    @Test
+    public void leasesAndReclaim() {
+        PersistentLinkedList<Integer> list = new PersistentLinkedList<>(Arrays.asList(1, 2, 3));
+        list.removeFirst();
+        list.add(4);
+        VersionLease lease = list.acquire(1);
+        list.set(0, 5);
+        list.reclaim();
+        assertEquals(Arrays.asList(2, 3), Arrays.asList(list.toArray(1)));
+        lease.close();
+        assertEquals(true, list.reclaim() > 0);
+        assertEquals(Arrays.asList(5, 3, 4), Arrays.asList(list.toArray()));
+        list.addFirst(0);
+        assertEquals(Arrays.asList(0, 5, 3, 4), Arrays.asList(list.toArray()));
+        ex.expect(NoSuchElementException.class);
+        list.size(2);
+    }
+
+    @Test
+    public void rollbackTo() {
+        PersistentLinkedList<Integer> list = new PersistentLinkedList<>(Arrays.asList(1, 2));
+        list.addFirst(0);
+        list.removeLast();
+        list.add(3);
+        list.set(0, 4);
+        assertEquals(true, list.rollbackTo(1) > 0);
+        assertEquals(Arrays.asList(0, 1, 2), Arrays.asList(list.toArray()));
+        list.removeFirst();
+        assertEquals(Arrays.asList(1, 2), Arrays.asList(list.toArray()));
+        assertEquals(Arrays.asList(0, 1, 2), Arrays.asList(list.toArray(1)));
+        assertEquals(2, (int) list.peekLast());
+        ex.expect(NoSuchElementException.class);
+        list.size(3);
+    }
+
+}
@@ -2,9 +2,21 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 public class PersistentMapTest {
 
@@ -240,6 +252,32 @@ public class PersistentMapTest {
         assertEquals(null, persistentMap.replace(1, "2"));
     }
 
+    @Test
+    public void snapshot() throws Exception {
+        persistentMap = new PersistentMap<>();
+        persistentMap.put(0, "0");
+        persistentMap.put(1, null);
+        persistentMap.put(-5, "\u0434\u0430");
+        persistentMap.remove(0);
+        persistentMap.put(0, "again");
+        persistentMap.clear();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        persistentMap.writeSnapshot(Channels.newChannel(bytes), ValueCodec.INTEGER, ValueCodec.STRING);
+
+        PersistentMap<Integer, String> copy = PersistentMap.readSnapshot(
+                Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), ValueCodec.INTEGER, ValueCodec.STRING);
+        for (int version = 0; version <= 6; version++) {
+            assertEquals(persistentMap.size(version), copy.size(version));
+            for (int key = -5; key <= 1; key++) {
+                assertEquals(persistentMap.containsKey(key, version), copy.containsKey(key, version));
+                assertEquals(persistentMap.get(key, version), copy.get(key, version));
+            }
+        }
+        copy.put(2, "2");
+        assertEquals(1, copy.size());
+        assertEquals("2", copy.get(2, 7));
+    }
+
     @Test
     public void replaceKeyValue() {
         persistentMap = new PersistentMap<>();
@@ -248,4 +286,464 @@ public class PersistentMapTest {
         assertEquals(true, persistentMap.replace(0, "0", "2"));
         assertEquals(false, persistentMap.replace(1, "0", "2"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void writeAheadLog() throws Exception {
+        Path path = Files.createTempFile("map", ".log");
+        PersistentMap<Integer, String> map;
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            map = new PersistentMap<>(log, ValueCodec.INTEGER, ValueCodec.STRING);
+            map.put(1, "a");
+            map.put(2, "b");
+            map.merge(1, "c", (a, b) -> "" + a + b);
+            map.computeIfAbsent(3, k -> "d" + k);
+            map.replaceAll((k, v) -> "" + v + k);
+            map.remove(2);
+            map.putAll(Collections.singletonMap(4, null));
+        }
+
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            PersistentMap<Integer, String> copy = new PersistentMap<>(log, ValueCodec.INTEGER, ValueCodec.STRING);
+            for (int version = 0; version <= 7; version++) {
+                assertEquals(map.size(version), copy.size(version));
+                for (int key = 1; key <= 4; key++)
+                    assertEquals(map.get(key, version), copy.get(key, version));
+            }
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void writeAheadLogSkipsRejectedChanges() throws Exception {
+        ValueCodec<Integer> nullableKeys = new ValueCodec<Integer>() {
+            @Override
+            public void write(Integer value, SnapshotOutput out) throws IOException {
+                out.writeByte(null == value ? 0 : 1);
+                if (null != value)
+                    out.writeSignedVarInt(value);
+            }
+
+            @Override
+            public Integer read(SnapshotInput in) throws IOException {
+                return 0 == in.readByte() ? null : in.readSignedVarInt();
+            }
+        };
+        Path path = Files.createTempFile("map", ".log");
+        PersistentMap<Integer, String> map;
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            map = new PersistentMap<>(log, nullableKeys, ValueCodec.STRING);
+            map.put(1, "a");
+            try {
+                map.put(null, "b");
+                fail();
+            } catch (NullPointerException e) {
+            }
+            try {
+                map.putAll(Collections.singletonMap(null, "c"));
+                fail();
+            } catch (NullPointerException e) {
+            }
+            map.put(2, "d");
+        }
+
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            PersistentMap<Integer, String> copy = new PersistentMap<>(log, nullableKeys, ValueCodec.STRING);
+            assertEquals(map.getCurrentVersion(), copy.getCurrentVersion());
+            assertEquals("a", copy.get(1));
+            assertEquals("d", copy.get(2));
+            assertEquals(2, copy.size());
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void exportSnapshotAsync() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        for (int i = 0; i < 100; i++)
+            map.put(i, "value" + i);
+        map.remove(5);
+        map.put(7, null);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompletableFuture<Void> export = map.exportSnapshotAsync(map.getCurrentVersion() - 1,
+                Channels.newChannel(bytes), ValueCodec.INTEGER, ValueCodec.STRING);
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, "new");
+            map.remove(i + 1);
+        }
+        export.get();
+
+        PersistentMap<Integer, String> copy = PersistentMap.readSnapshot(
+                Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), ValueCodec.INTEGER, ValueCodec.STRING);
+        assertEquals(99, copy.size());
+        assertEquals(0, copy.getCurrentVersion());
+        assertEquals(false, copy.containsKey(5));
+        assertEquals("value7", copy.get(7));
+        assertEquals("value99", copy.get(99));
+        assertEquals(null, copy.get(100));
+    }
+
+    @Test
+    public void spillHistory() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        for (int i = 0; i < 100; i++)
+            map.put(i % 10, "value" + i);
+        map.remove(3);
+        Path path = Files.createTempFile("map", ".spill");
+        try (HistorySpill spill = new HistorySpill(path, 2)) {
+            assertEquals(80, map.spillHistory(spill, ValueCodec.STRING, 90));
+            assertEquals(11, map.spillHistory(spill, ValueCodec.STRING, 101));
+            assertEquals(false, map.containsKey(3));
+            for (int version = 1; version <= 100; version++)
+                assertEquals("value" + (version - 1), map.get((version - 1) % 10, version));
+            assertEquals(true, map.containsKey(3, 100));
+            map.put(3, "back");
+            assertEquals("back", map.get(3));
+        }
+    }
+
+    @Test
+    public void spillHistoryEvery() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        Path path = Files.createTempFile("map", ".spill");
+        try (HistorySpill spill = new HistorySpill(path, 1, 8)) {
+            map.spillHistoryEvery(spill, ValueCodec.STRING, 20);
+            for (int i = 0; i < 100; i++)
+                map.put(i % 10, "value" + i);
+            map.remove(3);
+            assertEquals(0, map.spillHistory(spill, ValueCodec.STRING, 60));
+            for (int version = 1; version <= 100; version++)
+                assertEquals("value" + (version - 1), map.get((version - 1) % 10, version));
+            assertEquals(false, map.containsKey(3));
+            assertEquals(Arrays.asList(new VersionedValue<>(4, "value3", false), new VersionedValue<>(14, "value13", false)),
+                    map.history(3, 0, 20));
+        }
+    }
+
+    @Test
+    public void sortedBulkLoad() {
+        PersistentMap<Integer, String> map = new PersistentMap<>(IntStream.range(0, 1000)
+                .mapToObj(i -> new AbstractMap.SimpleEntry<>(2 * i, "value" + i)));
+        assertEquals(0, map.getCurrentVersion());
+        assertEquals(1000, map.size());
+        assertEquals("value500", map.get(1000));
+        assertEquals(null, map.get(1001));
+
+        map.remove(0);
+        Map<Integer, String> more = new TreeMap<>();
+        more.put(-1, "first");
+        more.put(0, "again");
+        more.put(3, "odd");
+        more.put(5000, "last");
+        map.putAllSorted(more.entrySet().iterator());
+        assertEquals(2, map.getCurrentVersion());
+        assertEquals(1003, map.size());
+        assertEquals(999, map.size(1));
+        assertEquals("again", map.get(0));
+        assertEquals(null, map.get(0, 1));
+        assertEquals("value1", map.get(2));
+        assertEquals(Arrays.asList(-1, 0, 2, 3), new ArrayList<>(map.keySet()).subList(0, 4));
+    }
+
+    @Test
+    public void sortedBulkLoadUnsorted() {
+        ex.expect(IllegalArgumentException.class);
+        ex.expectMessage(Exceptions.UNSORTED_KEYS);
+        new PersistentMap<>(Stream.of(new AbstractMap.SimpleEntry<>(2, "b"), new AbstractMap.SimpleEntry<>(1, "a")));
+    }
+
+    @Test
+    public void sortedPutAllUnsortedKeepsMap() {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        map.put(1, "a");
+        map.put(5, "e");
+        try {
+            map.putAllSorted(Arrays.asList(new AbstractMap.SimpleEntry<>(1, "x"), new AbstractMap.SimpleEntry<>(0, "y")).iterator());
+        } catch (IllegalArgumentException e) {
+            assertEquals(Exceptions.UNSORTED_KEYS, e.getMessage());
+        }
+        assertEquals(2, map.getCurrentVersion());
+        assertEquals("a", map.get(1));
+        assertEquals(2, map.size());
+        assertEquals(false, map.containsKey(0));
+        map.put(2, "b");
+        assertEquals(3, map.size());
+        assertEquals("a", map.get(1, 3));
+    }
+
+    @Test
+    public void readMappedSnapshot() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        for (int i = 0; i < 100; i++)
+            map.put(i, "value" + i);
+        map.remove(50);
+        Path path = Files.createTempFile("map", ".pds");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            map.exportSnapshotAsync(map.getCurrentVersion(), channel, ValueCodec.INTEGER, ValueCodec.STRING).get();
+        }
+        PersistentMap<Integer, String> copy = PersistentMap.readSnapshot(path, ValueCodec.INTEGER, ValueCodec.STRING);
+        assertEquals(99, copy.size());
+        assertEquals("value99", copy.get(99));
+        assertEquals(false, copy.containsKey(50));
+        Files.delete(path);
+    }
+
+    @Test
+    public void squash() {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        map.put(1, "a");
+        for (int i = 0; i < 10; i++)
+            map.put(2, "b" + i);
+        map.put(3, "c");
+        map.remove(3);
+        map.put(1, "d");
+        assertEquals(12, map.squash(2, 13));
+        assertEquals("a", map.get(1, 13));
+        assertEquals("b9", map.get(2, 13));
+        assertEquals(null, map.get(2, 5));
+        assertEquals(false, map.containsKey(3, 13));
+        assertEquals("d", map.get(1));
+        assertEquals(2, map.size(13));
+    }
+
+    @Test
+    public void leasesAndReclaim() {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        map.put(1, "a");
+        map.put(2, "b");
+        map.remove(1);
+        map.put(2, "c");
+        try (VersionLease lease = map.acquire(2)) {
+            assertEquals(2, map.reclaim());
+            assertEquals("a", map.get(1, 2));
+        }
+        map.reclaim();
+        assertEquals(false, map.containsKey(1));
+        assertEquals(1, map.keySet().size());
+        assertEquals("c", map.get(2));
+        map.put(1, "again");
+        assertEquals("again", map.get(1));
+        ex.expect(NoSuchElementException.class);
+        map.get(2, 3);
+    }
+
+    @Test
+    public void branches() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        map.put(1, "a");
+        map.put(2, "b");
+        assertEquals(3, map.putAt(1, "x", 1));
+        assertEquals(4, map.removeAt(1, 2));
+        assertEquals(5, map.putAt(3, "y", 3));
+        map.put(4, "z");
+
+        assertEquals("a", map.get(1, 2));
+        assertEquals("b", map.get(2, 2));
+        assertEquals("x", map.get(1, 3));
+        assertEquals(false, map.containsKey(2, 3));
+        assertEquals(1, map.size(3));
+        assertEquals(false, map.containsKey(1, 4));
+        assertEquals(1, map.size(4));
+        assertEquals(new HashSet<>(Arrays.asList(1, 3, 4)), map.keySet(6));
+        assertEquals(3, map.size(6));
+        assertEquals(false, map.containsKey(3, 4));
+        assertEquals(5, map.getParentVersion(6));
+        assertEquals(3, map.getParentVersion(5));
+        assertEquals(1, map.getParentVersion(2));
+
+        ex.expect(IllegalStateException.class);
+        ex.expectMessage(Exceptions.BRANCHED_HISTORY);
+        map.writeSnapshot(Channels.newChannel(new ByteArrayOutputStream()), ValueCodec.INTEGER, ValueCodec.STRING);
+    }
+
+    @Test
+    public void forkAt() {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        map.put(1, "a");
+        map.put(2, "b");
+        map.put(3, "c");
+        PersistentMap<Integer, String> fork = map.forkAt(2);
+        map.put(4, "d");
+        map.remove(1);
+        fork.put(2, "x");
+        fork.remove(1);
+        fork.put(5, "y");
+
+        assertEquals(2, fork.size());
+        assertEquals(new HashSet<>(Arrays.asList(2, 5)), fork.keySet());
+        assertEquals("x", fork.get(2));
+        assertEquals("a", fork.get(1, 2));
+        assertEquals("b", fork.get(2, 2));
+        assertEquals(false, fork.containsKey(3));
+        assertEquals(1, fork.size(1));
+        assertEquals(3, map.size());
+        assertEquals("b", map.get(2));
+        assertEquals(false, map.containsKey(5));
+
+        PersistentMap<Integer, String> second = fork.forkAt(fork.getCurrentVersion());
+        second.clear();
+        second.put(6, "z");
+        assertEquals(1, second.size());
+        assertEquals(Arrays.asList("z"), new ArrayList<>(second.values()));
+        assertEquals("y", second.get(5, 5));
+        assertEquals(2, fork.size());
+        second.putAllSorted(Arrays.asList(new AbstractMap.SimpleEntry<>(2, "w"), new AbstractMap.SimpleEntry<>(5, "v")).iterator());
+        assertEquals(3, second.size());
+        assertEquals("w", second.get(2));
+    }
+
+    @Test
+    public void merge() throws Exception {
+        Path path = Files.createTempFile("map", ".log");
+        PersistentMap<Integer, String> map;
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            map = new PersistentMap<>(log, ValueCodec.INTEGER, ValueCodec.STRING);
+            map.put(1, "a");
+            map.put(2, "b");
+            map.put(3, "c");
+            map.put(4, "d");
+            map.put(1, "x");
+            map.remove(2);
+            map.put(3, "first");
+            assertEquals(8, map.putAt(3, "second", 4));
+            assertEquals(9, map.putAt(4, "e", 8));
+            assertEquals(10, map.putAt(5, "f", 9));
+            assertEquals(11, map.putAt(1, "x", 10));
+
+            assertEquals(12, map.merge(4, 7, 11, (key, base, first, second) -> {
+                assertEquals(3, (int) key);
+                assertEquals("c", base);
+                return first + second;
+            }));
+            assertEquals(7, map.getParentVersion(12));
+            assertEquals(13, map.merge(4, 12, 5, (key, base, first, second) -> {
+                throw new AssertionError(key);
+            }));
+            assertEquals(14, map.merge(4, 13, 8, (key, base, first, second) -> null));
+            map.put(6, "g");
+        }
+
+        assertEquals(new HashSet<>(Arrays.asList(1, 3, 4, 5)), map.keySet(12));
+        assertEquals("x", map.get(1, 12));
+        assertEquals("firstsecond", map.get(3, 12));
+        assertEquals("e", map.get(4, 12));
+        assertEquals("f", map.get(5, 12));
+        assertEquals(4, map.size(12));
+        assertEquals("first", map.get(3, 7));
+        assertEquals(false, map.containsKey(5, 7));
+        assertEquals(map.keySet(12), map.keySet(13));
+        assertEquals(false, map.containsKey(3, 14));
+        assertEquals(4, map.size());
+
+        try (WriteAheadLog log = new WriteAheadLog(path)) {
+            PersistentMap<Integer, String> copy = new PersistentMap<>(log, ValueCodec.INTEGER, ValueCodec.STRING);
+            for (int version = 0; version <= map.getCurrentVersion(); version++) {
+                assertEquals(map.size(version), copy.size(version));
+                for (int key = 1; key <= 6; key++)
+                    assertEquals(map.get(key, version), copy.get(key, version));
+            }
+        }
+        Files.delete(path);
+
+        ex.expect(IllegalArgumentException.class);
+        ex.expectMessage(Exceptions.NOT_AN_ANCESTOR);
+        map.merge(8, 7, 11, (key, base, first, second) -> first);
+    }
+
+    @Test
+    public void rollbackTo() {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        map.put(1, "a");
+        map.put(2, "b");
+        map.put(1, "c");
+        map.putAt(3, "d", 1);
+        map.remove(2);
+        assertEquals(5, map.rollbackTo(1));
+        assertEquals(1, map.getCurrentVersion());
+        assertEquals(1, map.size());
+        assertEquals("a", map.get(1));
+        assertEquals(false, map.containsKey(2));
+        map.put(3, "e");
+        assertEquals(2, map.getCurrentVersion());
+        assertEquals(1, map.getParentVersion(2));
+        assertEquals(new HashSet<>(Arrays.asList(1, 3)), map.keySet());
+
+        PersistentMap<Integer, String> linear = new PersistentMap<>();
+        linear.put(1, "a");
+        linear.put(2, "b");
+        PersistentMap<Integer, String> fork = linear.forkAt(2);
+        fork.put(1, "f");
+        assertEquals(1, fork.rollbackTo(1));
+        assertEquals("a", fork.get(1));
+        assertEquals(1, fork.size());
+        fork.put(4, "g");
+        assertEquals(2, fork.getCurrentVersion());
+        assertEquals(new HashSet<>(Arrays.asList(1, 4)), fork.keySet());
+        assertEquals("b", linear.get(2));
+
+        linear.attachTo(new VersionClock());
+        ex.expect(IllegalStateException.class);
+        ex.expectMessage(Exceptions.CLOCK_ROLLBACK);
+        linear.rollbackTo(1);
+    }
+
+    @Test
+    public void history() throws Exception {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        map.put(1, "a");
+        map.put(2, "b");
+        map.remove(1);
+        map.put(1, "c");
+        assertEquals(Arrays.asList(new VersionedValue<>(1, "a", false), new VersionedValue<>(3, null, true),
+                new VersionedValue<>(4, "c", false)), map.history(1));
+        assertEquals(Arrays.asList(new VersionedValue<>(3, null, true)), map.history(1, 2, 3));
+        assertEquals(0, map.history(3).size());
+
+        try (HistorySpill spill = new HistorySpill(Files.createTempFile("spill", ".pds"))) {
+            map.spillHistory(spill, ValueCodec.STRING, 4);
+            assertEquals(map.history(1, 0, 4), map.history(1));
+            assertEquals(Arrays.asList(new VersionedValue<>(4, "c", false)), map.history(1, 4, 4));
+
+            PersistentMap<Integer, String> fork = map.forkAt(3);
+            fork.put(1, "d");
+            assertEquals(Arrays.asList(new VersionedValue<>(1, "a", false), new VersionedValue<>(3, null, true),
+                    new VersionedValue<>(4, "d", false)), fork.history(1));
+        }
+
+        PersistentMap<Integer, String> branched = new PersistentMap<>();
+        branched.put(1, "a");
+        branched.put(1, "b");
+        branched.putAt(1, "c", 1);
+        assertEquals(Arrays.asList(new VersionedValue<>(1, "a", false), new VersionedValue<>(3, "c", false)),
+                branched.history(1));
+        assertEquals(Arrays.asList(new VersionedValue<>(1, "a", false), new VersionedValue<>(2, "b", false)),
+                branched.history(1, 0, 2));
+    }
+
+    @Test
+    public void getAll() {
+        PersistentMap<Integer, String> map = new PersistentMap<>();
+        map.put(1, "a");
+        map.put(2, "b");
+        map.remove(1);
+        String[] values = new String[3];
+        map.getAll(Arrays.asList(2, 1, 3), 2, values);
+        assertEquals(Arrays.asList("b", "a", null), Arrays.asList(values));
+        map.getAll(Arrays.asList(1, 2, 3), 3, values);
+        assertEquals(Arrays.asList(null, "b", null), Arrays.asList(values));
+
+        PersistentMap<Integer, String> fork = map.forkAt(2);
+        map.put(2, "c");
+        fork.put(3, "d");
+        PersistentMap<Integer, String> second = fork.forkAt(fork.getCurrentVersion());
+        fork.put(1, "e");
+        fork.getAll(Arrays.asList(1, 2, 3), 3, values);
+        assertEquals(Arrays.asList("a", "b", "d"), Arrays.asList(values));
+        second.getAll(Arrays.asList(1, 2, 3), second.getCurrentVersion(), values);
+        assertEquals(Arrays.asList("a", "b", "d"), Arrays.asList(values));
+        second.getAll(Arrays.asList(1, 2, 3), 1, values);
+        assertEquals(Arrays.asList("a", null, null), Arrays.asList(values));
+        ex.expect(IllegalArgumentException.class);
+        ex.expectMessage(Exceptions.SHORT_OUTPUT_ARRAY);
+        map.getAll(Arrays.asList(1, 2, 3, 4), 3, values);
+    }
+}
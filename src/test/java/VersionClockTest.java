@@ -0,0 +1,178 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VersionClockTest {
+
+    private VersionClock clock;
+    private PersistentArray<Integer> array;
+    private PersistentMap<String, Integer> map;
+    private PersistentLinkedList<Integer> list;
+
+    @Rule
+    public ExpectedException ex = ExpectedException.none();
+
+    @Before
+    public void attach() {
+        clock = new VersionClock();
+        array = new PersistentArray<>(3);
+        map = new PersistentMap<>();
+        list = new PersistentLinkedList<>();
+        array.attachTo(clock);
+        map.attachTo(clock);
+        list.attachTo(clock);
+    }
+
+    @Test
+    public void transactionCommitsOneVersion() {
+        int first = clock.transaction(() -> {
+            array.set(0, 1);
+            array.set(1, 2);
+            map.put("a", 1);
+            list.add(1);
+            list.add(2);
+        });
+        assertEquals(1, first);
+        int second = clock.transaction(() -> map.put("b", 2));
+        assertEquals(2, second);
+        assertEquals(2, clock.getVersion());
+
+        assertEquals(1, (int) array.get(0, first));
+        assertEquals(2, (int) array.get(1, first));
+        assertEquals(1, map.size(first));
+        assertEquals(2, list.size(first));
+        assertEquals(null, array.get(0, 0));
+        assertEquals(0, list.size(0));
+
+        // structures not changed by a transaction read its version as their last one
+        assertEquals(2, (int) array.get(1, second));
+        assertEquals(2, list.size(second));
+        assertEquals(2, map.size(second));
+        assertEquals(second, clock.transaction(() -> { }));
+    }
+
+    @Test
+    public void changesInTransactionSeeEachOther() {
+        clock.transaction(() -> {
+            map.put("a", 1);
+            assertEquals(1, map.put("a", 2));
+            list.add(1);
+            list.remove((Object) 1);
+            list.add(3);
+        });
+        assertEquals(2, (int) map.get("a", 1));
+        assertEquals(1, list.size(1));
+        assertEquals(3, (int) list.get(0, 1));
+    }
+
+    @Test
+    public void failedTransactionIsRemoved() {
+        clock.transaction(() -> {
+            array.set(0, 1);
+            map.put("a", 1);
+            list.add(1);
+        });
+        try {
+            clock.transaction(() -> {
+                array.set(0, 5);
+                array.add(6);
+                map.put("a", 5);
+                map.put("b", 6);
+                list.add(5);
+                list.add(0, 6);
+                throw new IllegalArgumentException();
+            });
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(1, clock.getVersion());
+        assertEquals(1, (int) array.get(0));
+        assertEquals(3, array.getLength());
+        assertEquals(1, (int) map.get("a"));
+        assertFalse(map.containsKey("b"));
+        assertEquals(1, list.size());
+        assertEquals(1, (int) list.get(0));
+
+        assertEquals(2, clock.transaction(() -> list.add(2)));
+        assertEquals(2, list.size());
+        assertTrue(map.containsKey("a", 2));
+    }
+
+    @Test
+    public void otherThreadsReadCommittedVersion() throws Exception {
+        PersistentArray<Integer> mirrored = new PersistentArray<>(1);
+        mirrored.mirrorCurrentVersion();
+        mirrored.attachTo(clock);
+        List<Object> seen = new ArrayList<>();
+        clock.transaction(() -> {
+            array.set(0, 1);
+            mirrored.set(0, 1);
+            mirrored.add(2);
+            map.put("a", 1);
+            list.add(1);
+            assertEquals(1, (int) map.get("a"));
+            Thread reader = new Thread(() -> {
+                seen.addAll(Arrays.asList(array.get(0), mirrored.get(0), mirrored.getLength(),
+                        Arrays.asList(mirrored.toArray()), map.get("a"), map.containsKey("a"), map.size(), list.size(), list.listIterator().hasNext()));
+                try {
+                    array.get(0, 1);
+                } catch (NoSuchElementException e) {
+                    seen.add(e.getMessage());
+                }
+            });
+            reader.start();
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertEquals(Arrays.asList(null, null, 1, Arrays.asList((Object) null), null, false, 0, 0, false, Exceptions.NO_SUCH_VERSION), seen);
+        assertEquals(1, (int) array.get(0));
+        assertEquals(2, mirrored.getLength());
+        assertEquals(1, list.size());
+    }
+
+    @Test
+    public void listIteratorInTransaction() {
+        clock.transaction(() -> list.add(1));
+        int version = clock.transaction(() -> {
+            ListIterator iterator = list.listIterator();
+            iterator.next();
+            iterator.set(2);
+            iterator.add(3);
+        });
+        assertEquals(2, version);
+        assertEquals(Arrays.asList(2, 3), Arrays.asList(list.toArray()));
+        assertEquals(Arrays.asList(1), Arrays.asList(list.toArray(1)));
+    }
+
+    @Test
+    public void attachMovesClockForward() {
+        PersistentArray<Integer> other = new PersistentArray<>(1);
+        other.set(0, 1);
+        other.set(0, 2);
+        other.attachTo(clock);
+        assertEquals(2, clock.getVersion());
+        assertEquals(3, clock.transaction(() -> array.set(0, 1)));
+        assertEquals(2, (int) other.get(0, 3));
+    }
+
+    @Test
+    public void changeOutsideTransaction() {
+        ex.expect(IllegalStateException.class);
+        ex.expectMessage(Exceptions.NO_TRANSACTION);
+        map.put("a", 1);
+    }
+}